@@ -0,0 +1,59 @@
+package query.avgdist;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link AverageDistancesImpl#init(java.nio.file.Path)} of generated CSVs: parsing, grouping and index building.
+ * Rows per second is {@code tripCount} divided by the reported time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class InitBenchmark {
+    @Param({"1000000"})
+    public long tripCount;
+
+    @Param({"2.0"})
+    public double passengerCountSkew;
+
+    @Param({"1", "4"})
+    public int ingestionThreadCount;
+
+    private TripData data;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        data = new TripData(tripCount, passengerCountSkew);
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        data.close();
+    }
+
+    @Benchmark
+    public long init() throws IOException {
+        try (AverageDistancesImpl impl = new AverageDistancesImpl(2, Long.MAX_VALUE, ingestionThreadCount)) {
+            impl.init(data.dir);
+            return impl.getAverageDistances(TripDataGenerator.START, TripDataGenerator.END).size();
+        }
+    }
+}
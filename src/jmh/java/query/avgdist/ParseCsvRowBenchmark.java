@@ -0,0 +1,70 @@
+package query.avgdist;
+
+import de.siegmar.fastcsv.reader.CsvReader;
+import de.siegmar.fastcsv.reader.CsvRow;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link InputTuple#parseCsvRow} of already split rows, per row.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParseCsvRowBenchmark {
+    private static final int ROW_COUNT = 10000;
+
+    private final List<CsvRow> rows = new ArrayList<>();
+
+    private final InputTuple tuple = new InputTuple();
+
+    @Setup
+    public void generate() throws IOException {
+        String csv = new TripDataGenerator(TripData.SEED, 2.0).generate(ROW_COUNT);
+        try (CsvReader csvReader = CsvReader.builder().build(csv)) {
+            csvReader.forEach(rows::add);
+        }
+        rows.remove(0);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROW_COUNT)
+    public double reusedTuple() {
+        double sum = 0.0;
+        for (CsvRow row : rows) {
+            if (InputTuple.parseCsvRow(row, "benchmark.csv", AverageDistancesImpl::warn, tuple)) {
+                sum += tuple.distance;
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROW_COUNT)
+    public double optionalTuple() {
+        double sum = 0.0;
+        for (CsvRow row : rows) {
+            sum += InputTuple.parseCsvRow(row, "benchmark.csv", AverageDistancesImpl::warn)
+                .map(parsed -> parsed.distance)
+                .orElse(0.0);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,93 @@
+package query.avgdist;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link AverageDistancesImpl#getAverageDistances(LocalDateTime, LocalDateTime)} of windows with seeded random
+ * starts and the given width.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class QueryBenchmark {
+    private static final int WINDOW_COUNT = 1024;
+
+    @Param({"1000000"})
+    public long tripCount;
+
+    @Param({"2.0"})
+    public double passengerCountSkew;
+
+    /**
+     * narrow: one hour, medium: one week, full: the whole data spread.
+     */
+    @Param({"narrow", "medium", "full"})
+    public String width;
+
+    private AverageDistancesImpl impl;
+
+    private final LocalDateTime[] starts = new LocalDateTime[WINDOW_COUNT];
+    private final LocalDateTime[] ends = new LocalDateTime[WINDOW_COUNT];
+
+    private int next;
+
+    @Setup(Level.Trial)
+    public void init() throws IOException {
+        try (TripData data = new TripData(tripCount, passengerCountSkew)) {
+            impl = new AverageDistancesImpl();
+            impl.init(data.dir);
+        }
+
+        Random random = new Random(TripData.SEED);
+        for (int i = 0; i < WINDOW_COUNT; i++) {
+            switch (width) {
+                case "narrow":
+                    starts[i] = TripDataGenerator.START.plusSeconds(random.nextInt(365 * 24 * 3600));
+                    ends[i] = starts[i].plusHours(1);
+                    break;
+                case "medium":
+                    starts[i] = TripDataGenerator.START.plusSeconds(random.nextInt(358 * 24 * 3600));
+                    ends[i] = starts[i].plusDays(7);
+                    break;
+                case "full":
+                    starts[i] = TripDataGenerator.START;
+                    ends[i] = TripDataGenerator.END.plusDays(3);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown width: " + width);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        impl.close();
+    }
+
+    @Benchmark
+    public Map<Integer, Double> query() {
+        int i = next++ & (WINDOW_COUNT - 1);
+        return impl.getAverageDistances(starts[i], ends[i]);
+    }
+}
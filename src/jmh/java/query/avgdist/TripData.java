@@ -0,0 +1,30 @@
+package query.avgdist;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+/**
+ * Temporary data directory generated by {@link TripDataGenerator} for benchmarks.
+ */
+class TripData implements AutoCloseable {
+    static final long SEED = 20200101;
+
+    final Path dir;
+
+    TripData(long tripCount, double passengerCountSkew) throws IOException {
+        dir = Files.createTempDirectory("avgdist-jmh");
+        new TripDataGenerator(SEED, passengerCountSkew).generate(dir, tripCount, 12);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+}
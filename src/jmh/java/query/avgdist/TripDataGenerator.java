@@ -0,0 +1,151 @@
+package query.avgdist;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Random;
+
+/**
+ * Deterministic generator of taxi-like CSV files in the layout of 2020 yellow taxi trip records.
+ * <p>
+ * Pickups are uniform over the year, trip durations are mostly under an hour with a small share of multi-day
+ * trips, distances follow durations. passenger_count values follow a Zipf-like distribution over
+ * {@link #PASSENGER_COUNTS_BY_FREQUENCY}: skew 0 makes them uniform, larger skew makes the most frequent values
+ * dominate (real data is close to skew 2).
+ */
+public class TripDataGenerator {
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private static final String HEADER = "VendorID,tpep_pickup_datetime,tpep_dropoff_datetime,passenger_count,"
+        + "trip_distance,RatecodeID,store_and_fwd_flag,PULocationID,DOLocationID,payment_type,fare_amount,extra,"
+        + "mta_tax,tip_amount,tolls_amount,improvement_surcharge,total_amount,congestion_surcharge";
+
+    /**
+     * passenger_count values from the most to the least frequent one.
+     */
+    static final int[] PASSENGER_COUNTS_BY_FREQUENCY = {1, 2, 3, 5, 0, 6, 4, 7, 8, 9};
+
+    static final LocalDateTime START = LocalDateTime.of(2020, 1, 1, 0, 0, 0);
+    static final LocalDateTime END = LocalDateTime.of(2021, 1, 1, 0, 0, 0);
+
+    private final long seed;
+    private final double passengerCountSkew;
+
+    /**
+     * @param seed               random seed, same seed gives the same files.
+     * @param passengerCountSkew exponent of passenger_count value distribution, 0 for uniform.
+     */
+    public TripDataGenerator(long seed, double passengerCountSkew) {
+        if (passengerCountSkew < 0) {
+            throw new IllegalArgumentException("Passenger count skew should not be negative");
+        }
+        this.seed = seed;
+        this.passengerCountSkew = passengerCountSkew;
+    }
+
+    /**
+     * Writes {@code tripCount} trips split evenly into {@code fileCount} files named {@code 1.csv}, {@code 2.csv}...
+     */
+    public void generate(Path dir, long tripCount, int fileCount) throws IOException {
+        if (fileCount <= 0) {
+            throw new IllegalArgumentException("File count should be positive");
+        }
+
+        Files.createDirectories(dir);
+        Random random = new Random(seed);
+        double[] cumulativeWeights = cumulativeWeights();
+
+        for (int file = 0; file < fileCount; file++) {
+            long fileTrips = tripCount / fileCount + (file < tripCount % fileCount ? 1 : 0);
+            try (BufferedWriter writer = Files.newBufferedWriter(dir.resolve((file + 1) + ".csv"), StandardCharsets.US_ASCII)) {
+                writer.write(HEADER);
+                writer.newLine();
+                for (long i = 0; i < fileTrips; i++) {
+                    writer.write(row(random, cumulativeWeights));
+                    writer.newLine();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return CSV rows of {@code rowCount} trips including the header row, for parsing benchmarks.
+     */
+    public String generate(int rowCount) {
+        Random random = new Random(seed);
+        double[] cumulativeWeights = cumulativeWeights();
+
+        StringBuilder csv = new StringBuilder(HEADER).append('\n');
+        for (int i = 0; i < rowCount; i++) {
+            csv.append(row(random, cumulativeWeights)).append('\n');
+        }
+        return csv.toString();
+    }
+
+    private String row(Random random, double[] cumulativeWeights) {
+        long startSecond = START.toEpochSecond(ZoneOffset.UTC);
+        long yearSeconds = END.toEpochSecond(ZoneOffset.UTC) - startSecond;
+
+        long pickup = startSecond + (long) (random.nextDouble() * yearSeconds);
+        long duration = random.nextInt(100) == 0
+            ? 3600 + random.nextInt(3 * 24 * 3600)
+            : 120 + (long) (Math.abs(random.nextGaussian()) * 900);
+        long dropoff = pickup + duration;
+
+        double speedMph = 5 + random.nextDouble() * 20;
+        double distance = Math.round(duration / 3600.0 * speedMph * 100) / 100.0;
+        double fare = Math.round((2.5 + distance * 2.5) * 100) / 100.0;
+
+        return String.valueOf(1 + random.nextInt(2))
+            + ',' + LocalDateTime.ofEpochSecond(pickup, 0, ZoneOffset.UTC).format(FORMATTER)
+            + ',' + LocalDateTime.ofEpochSecond(dropoff, 0, ZoneOffset.UTC).format(FORMATTER)
+            + ',' + passengerCount(random, cumulativeWeights)
+            + ',' + distance
+            + ",1,N," + (1 + random.nextInt(265)) + ',' + (1 + random.nextInt(265)) + ",1,"
+            + fare + ",0.5,0.5,0,0,0.3," + Math.round((fare + 1.3) * 100) / 100.0 + ",2.5";
+    }
+
+    private static int passengerCount(Random random, double[] cumulativeWeights) {
+        double value = random.nextDouble() * cumulativeWeights[cumulativeWeights.length - 1];
+        int rank = 0;
+        while (cumulativeWeights[rank] < value) {
+            rank++;
+        }
+        return PASSENGER_COUNTS_BY_FREQUENCY[rank];
+    }
+
+    private double[] cumulativeWeights() {
+        double[] weights = new double[PASSENGER_COUNTS_BY_FREQUENCY.length];
+        double sum = 0.0;
+        for (int rank = 0; rank < weights.length; rank++) {
+            sum += Math.pow(rank + 1, -passengerCountSkew);
+            weights[rank] = sum;
+        }
+        return weights;
+    }
+
+    /**
+     * Generates a data directory, e.g. for {@link ManualTest}.
+     * Arguments: directory, trip count, file count, seed, passenger_count skew.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Arguments needed: directory, trip count [, file count [, seed [, skew]]]");
+            return;
+        }
+
+        Path dir = Paths.get(args[0]);
+        long tripCount = Long.parseLong(args[1]);
+        int fileCount = args.length > 2 ? Integer.parseInt(args[2]) : 12;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 1;
+        double skew = args.length > 4 ? Double.parseDouble(args[4]) : 2.0;
+
+        new TripDataGenerator(seed, skew).generate(dir, tripCount, fileCount);
+    }
+}
@@ -0,0 +1,85 @@
+package query.avgdist;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Limits the number of queries running on the query executor at once. Queries over the limit wait
+ * in a bounded FIFO queue, queries over the queue size are rejected right away.
+ * <p>
+ * Admission is a future, so waiting doesn't block a thread.
+ */
+final class AdmissionControl {
+    private final int maxRunning;
+    private final int maxQueued;
+
+    private int running;
+
+    /**
+     * Admissions of waiting queries, completed in order as running queries release their permits.
+     */
+    private final ArrayDeque<CompletableFuture<Void>> queue = new ArrayDeque<>();
+
+    /**
+     * @param maxRunning maximum number of running queries, positive.
+     * @param maxQueued  maximum number of queries waiting for admission.
+     */
+    AdmissionControl(int maxRunning, int maxQueued) {
+        this.maxRunning = maxRunning;
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * @return future completed when the query is admitted; admitted query must be {@link #release() released}.
+     * @throws QueryRejectedException if the wait queue is full.
+     */
+    public synchronized CompletableFuture<Void> acquire() {
+        if (running < maxRunning) {
+            running++;
+            return CompletableFuture.completedFuture(null);
+        }
+
+        if (queue.size() >= maxQueued) {
+            throw new QueryRejectedException("Query rejected: " + maxQueued + " queries are already waiting");
+        }
+        CompletableFuture<Void> admission = new CompletableFuture<>();
+        queue.add(admission);
+        return admission;
+    }
+
+    /**
+     * Passes the permit of a finished query to the next waiting one.
+     */
+    public void release() {
+        while (true) {
+            CompletableFuture<Void> next;
+            synchronized (this) {
+                next = queue.poll();
+                if (next == null) {
+                    running--;
+                    return;
+                }
+            }
+            // completed outside the lock, as it runs the admitted query; abandoned admissions are skipped
+            if (next.complete(null)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops waiting for admission, e.g. at the query deadline. An already admitted query keeps its permit.
+     */
+    public void abandon(CompletableFuture<Void> admission) {
+        if (admission.completeExceptionally(new TimeoutException("Query was not admitted before its deadline"))) {
+            synchronized (this) {
+                queue.remove(admission);
+            }
+        }
+    }
+
+    public synchronized int queuedCount() {
+        return queue.size();
+    }
+}
@@ -0,0 +1,54 @@
+package query.avgdist;
+
+/**
+ * Estimated average distance of a group with its 95% confidence interval,
+ * see {@link AverageDistances#getApproximateAverageDistances(java.time.LocalDateTime, java.time.LocalDateTime)}.
+ */
+public final class ApproximateAverage {
+    private final double average;
+
+    private final double marginOfError;
+
+    private final long sampleCount;
+
+    ApproximateAverage(double average, double marginOfError, long sampleCount) {
+        this.average = average;
+        this.marginOfError = marginOfError;
+        this.sampleCount = sampleCount;
+    }
+
+    /**
+     * @return estimated average distance, 0.0 if the group has no trips in the query.
+     */
+    public double getAverage() {
+        return average;
+    }
+
+    /**
+     * @return half-width of the 95% confidence interval, 0.0 if the average is exact.
+     */
+    public double getMarginOfError() {
+        return marginOfError;
+    }
+
+    public double getLowerBound() {
+        return average - marginOfError;
+    }
+
+    public double getUpperBound() {
+        return average + marginOfError;
+    }
+
+    /**
+     * @return number of trips the estimate is computed from: sampled trips, and all trips of index segments
+     * known to be contained in the query as a whole.
+     */
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    @Override
+    public String toString() {
+        return average + " +- " + marginOfError + " (" + sampleCount + " trips)";
+    }
+}
@@ -2,17 +2,35 @@ package query.avgdist;
 
 import java.io.Closeable;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 public interface AverageDistances extends Closeable {
     /**
      * Initializes the instance.
      *
-     * @param dataDir Path to the data directory that contains the files with CSV data files.
+     * @param dataDir Path to the data directory that contains the files with CSV data files,
+     *                either plain ({@code .csv}) or gzip-compressed ({@code .csv.gz}).
      */
     void init(Path dataDir);
 
+    /**
+     * Adds trips of a CSV file to already initialized instance.
+     *
+     * @param csvFile CSV file that is not loaded yet, its name must differ from names of all loaded files.
+     *                Gzip-compressed if its name ends with {@code .gz}.
+     */
+    void append(Path csvFile);
+
+    /**
+     * Looks for changes in the data directory of the last {@link #init(Path)} call and loads them.
+     */
+    void rescan();
+
     /**
      * Calculates an average of all trip_distance fields for each distinct passenger_count value for trips with
      * tpep_pickup_datetime >= start and tpep_dropoff_datetime <= end.
@@ -20,4 +38,70 @@ public interface AverageDistances extends Closeable {
      * @return A map where key is passenger count and value is the average trip distance for this passenger count.
      */
     Map<Integer, Double> getAverageDistances(LocalDateTime start, LocalDateTime end);
-}
\ No newline at end of file
+
+    /**
+     * Asynchronous version of {@link #getAverageDistances(LocalDateTime, LocalDateTime)}: the calling thread
+     * is not blocked while the query is running.
+     *
+     * @return future of the result; it fails if the query fails or times out.
+     */
+    CompletableFuture<Map<Integer, Double>> getAverageDistancesAsync(LocalDateTime start, LocalDateTime end);
+
+    /**
+     * Same as {@link #getAverageDistances(LocalDateTime, LocalDateTime)}, but gives trip count and distance sum
+     * per passenger_count value rather than averages. Unlike averages, totals of different instances can be merged.
+     *
+     * @param target totals to fill, cleared first; can be reused between calls.
+     * @return the target.
+     */
+    TripTotals getTotals(LocalDateTime start, LocalDateTime end, TripTotals target);
+
+    /**
+     * Approximate version of {@link #getAverageDistances(LocalDateTime, LocalDateTime)} for interactive use:
+     * answered from samples of the data in the calling thread, at a fraction of the exact query cost.
+     *
+     * @return A map where key is passenger count and value is the estimated average trip distance
+     * with its confidence interval.
+     */
+    Map<Integer, ApproximateAverage> getApproximateAverageDistances(LocalDateTime start, LocalDateTime end);
+
+    /**
+     * Same as {@link #getAverageDistances(LocalDateTime, LocalDateTime)}, but groups trips by any combination
+     * of dimensions and only takes trips with the given values of other dimensions.
+     *
+     * @param groupBy dimensions to group by, may be empty to get a single group of all trips.
+     * @param filters required value of dimensions, {@link TripDimension#UNKNOWN} matches trips without a value.
+     * @return A map where key is the values of {@code groupBy} dimensions in the same order, and value
+     * is the average trip distance of the group. Only groups with trips in the query are present.
+     */
+    Map<List<Integer>, Double> getAverageDistances(LocalDateTime start, LocalDateTime end,
+                                                   List<TripDimension> groupBy, Map<TripDimension, Integer> filters);
+
+    /**
+     * Same as {@link #getAverageDistances(LocalDateTime, LocalDateTime)} for many windows at once. All windows
+     * are evaluated over the same data, even if it's updated concurrently.
+     *
+     * @return result for every window, in the order of {@code windows}.
+     */
+    List<Map<Integer, Double>> getAverageDistances(List<TimeWindow> windows);
+
+    /**
+     * Asynchronous version of {@link #getAverageDistances(List)}.
+     */
+    CompletableFuture<List<Map<Integer, Double>>> getAverageDistancesAsync(List<TimeWindow> windows);
+
+    /**
+     * Registers a standing query over a fixed window: its result is kept up to date on every data update,
+     * instead of polling {@link #getAverageDistances(LocalDateTime, LocalDateTime)}.
+     *
+     * @param listener called with the new result after every data update that changes it, in the updating thread.
+     * @return the query; close it to unregister.
+     */
+    StandingQuery registerStandingQuery(TimeWindow window, Consumer<Map<Integer, Double>> listener);
+
+    /**
+     * Same as {@link #registerStandingQuery(TimeWindow, Consumer)} for a sliding window: the last {@code length}
+     * of data, ending at the latest dropoff of all loaded trips.
+     */
+    StandingQuery registerStandingQuery(Duration length, Consumer<Map<Integer, Double>> listener);
+}
@@ -1,35 +1,48 @@
 package query.avgdist;
 
-import com.brein.time.timeintervals.collections.ListIntervalCollection;
-import com.brein.time.timeintervals.indexes.IntervalTree;
-import com.brein.time.timeintervals.indexes.IntervalTreeBuilder;
-import com.brein.time.timeintervals.indexes.IntervalValueComparator;
-import com.brein.time.timeintervals.intervals.LongInterval;
-import de.siegmar.fastcsv.reader.CsvReader;
-
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.TreeMap;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 /**
- * Interval tree-based implementation of {@link AverageDistances}.
+ * {@link ContainmentIndex}-based implementation of {@link AverageDistances}.
  */
 public class AverageDistancesImpl implements AverageDistances {
     /**
@@ -37,11 +50,44 @@ public class AverageDistancesImpl implements AverageDistances {
      */
     private final static boolean DEBUG_ENABLED = System.getProperty("debug") != null;
 
+    // query job splitting parameters; subject to investigation/tuning
+    private static final double MIN_JOBS_PER_THREAD = 1.5;
+    private static final int SPLITS_PER_THREAD = 4;
+    private static final int MIN_JOB_ROWS = 1 << 16;
+
+    /**
+     * Fails queries at their deadline, shared by all instances.
+     */
+    private static final ScheduledThreadPoolExecutor QUERY_TIMER = newQueryTimer();
+
     /**
      * Size of thread pool for parallel query processing.
      */
     private final int executorThreadCount;
 
+    /**
+     * Number of threads parsing CSV files in parallel during {@link #init(Path)}.
+     */
+    private final int ingestionThreadCount;
+
+    /**
+     * File to store loaded indexes to and to restore them from on next {@link #init(Path)},
+     * {@code null} if snapshots are disabled.
+     */
+    private final Path snapshotFile;
+
+    /**
+     * Where index columns are kept after loading.
+     */
+    private final IndexStorage storage;
+
+    /**
+     * Cache of query results, {@code null} if disabled.
+     */
+    private final QueryCache queryCache;
+
+    private final AdmissionControl admissionControl;
+
     /**
      * Maximum allowed query execution time.
      */
@@ -50,17 +96,41 @@ public class AverageDistancesImpl implements AverageDistances {
     /**
      * The executor for parallel query processing.
      */
-    private ThreadPoolExecutor executor;
+    private volatile ForkJoinPool executor;
+
+    /**
+     * Loaded data: separate index for each passengerCount value and their common spread.
+     * Replaced as a whole on every data change, so queries never block and always see a consistent view.
+     */
+    private volatile IndexSnapshot current = IndexSnapshot.EMPTY;
+
+    /**
+     * Serializes data changes: {@link #init(Path)}, {@link #append(Path)}, {@link #rescan()} and {@link #close()}.
+     */
+    private final Object updateLock = new Object();
+
+    /**
+     * Registered standing queries, updated under {@link #updateLock} after every data change.
+     */
+    private final List<StandingQuery> standingQueries = new CopyOnWriteArrayList<>();
+
+    private final Metrics metrics;
+
+    /**
+     * Name of the registered metrics MBean, {@code null} if not registered.
+     */
+    private ObjectName mBeanName;
 
     /**
-     * Separate interval tree for each passengerCount value.
+     * Directory of the last {@link #init(Path)}, guarded by {@link #updateLock}.
      */
-    private final Map<Integer, IntervalTree> treePerPassCnt = new HashMap<>();
+    private Path dataDir;
 
     /**
-     * Common spread of all interval trees.
+     * Files appended from outside of {@link #dataDir}, loaded again with it if {@link #rescan()} reloads the data.
+     * Guarded by {@link #updateLock}.
      */
-    LongInterval spread;
+    private final List<File> externalFiles = new ArrayList<>();
 
     /**
      * Creates an instance with default settings.
@@ -76,225 +146,1207 @@ public class AverageDistancesImpl implements AverageDistances {
      * @param queryTimeoutSeconds maximum allowed query execution time.
      */
     public AverageDistancesImpl(int executorThreadCount, long queryTimeoutSeconds) {
+        this(executorThreadCount, queryTimeoutSeconds, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates an instance.
+     *
+     * @param executorThreadCount  size of thread pool for parallel query processing.
+     * @param queryTimeoutSeconds  maximum allowed query execution time.
+     * @param ingestionThreadCount number of CSV files parsed in parallel, 1 means sequential loading.
+     */
+    public AverageDistancesImpl(int executorThreadCount, long queryTimeoutSeconds, int ingestionThreadCount) {
+        this(executorThreadCount, queryTimeoutSeconds, ingestionThreadCount, null);
+    }
+
+    /**
+     * Creates an instance.
+     *
+     * @param executorThreadCount  size of thread pool for parallel query processing.
+     * @param queryTimeoutSeconds  maximum allowed query execution time.
+     * @param ingestionThreadCount number of CSV files parsed in parallel, 1 means sequential loading.
+     * @param snapshotFile         file to save loaded indexes to, so that next {@link #init(Path)} with unchanged
+     *                             CSV files maps it instead of parsing CSVs; {@code null} disables snapshots.
+     */
+    public AverageDistancesImpl(int executorThreadCount, long queryTimeoutSeconds, int ingestionThreadCount,
+                                Path snapshotFile) {
+        this(executorThreadCount, queryTimeoutSeconds, ingestionThreadCount, snapshotFile, IndexStorage.HEAP);
+    }
+
+    /**
+     * Creates an instance.
+     *
+     * @param executorThreadCount  size of thread pool for parallel query processing.
+     * @param queryTimeoutSeconds  maximum allowed query execution time.
+     * @param ingestionThreadCount number of CSV files parsed in parallel, 1 means sequential loading.
+     * @param snapshotFile         file to save loaded indexes to, so that next {@link #init(Path)} with unchanged
+     *                             CSV files maps it instead of parsing CSVs; {@code null} disables snapshots.
+     * @param storage              where to keep index columns; {@link IndexStorage#DIRECT} and
+     *                             {@link IndexStorage#MAPPED} keep the heap small whatever the data volume,
+     *                             {@link IndexStorage#MAPPED} requires {@code snapshotFile}.
+     */
+    public AverageDistancesImpl(int executorThreadCount, long queryTimeoutSeconds, int ingestionThreadCount,
+                                Path snapshotFile, IndexStorage storage) {
+        this(executorThreadCount, queryTimeoutSeconds, ingestionThreadCount, snapshotFile, storage, 0);
+    }
+
+    /**
+     * Creates an instance.
+     *
+     * @param executorThreadCount  size of thread pool for parallel query processing.
+     * @param queryTimeoutSeconds  maximum allowed query execution time.
+     * @param ingestionThreadCount number of CSV files parsed in parallel, 1 means sequential loading.
+     * @param snapshotFile         file to save loaded indexes to, so that next {@link #init(Path)} with unchanged
+     *                             CSV files maps it instead of parsing CSVs; {@code null} disables snapshots.
+     * @param storage              where to keep index columns; {@link IndexStorage#DIRECT} and
+     *                             {@link IndexStorage#MAPPED} keep the heap small whatever the data volume,
+     *                             {@link IndexStorage#MAPPED} requires {@code snapshotFile}.
+     * @param queryCacheSize       maximum number of query results cached until the next data update,
+     *                             0 disables caching.
+     */
+    public AverageDistancesImpl(int executorThreadCount, long queryTimeoutSeconds, int ingestionThreadCount,
+                                Path snapshotFile, IndexStorage storage, int queryCacheSize) {
+        this(executorThreadCount, queryTimeoutSeconds, ingestionThreadCount, snapshotFile, storage, queryCacheSize,
+            executorThreadCount, 16 * executorThreadCount);
+    }
+
+    /**
+     * Creates an instance.
+     *
+     * @param executorThreadCount  size of thread pool for parallel query processing.
+     * @param queryTimeoutSeconds  maximum allowed query execution time.
+     * @param ingestionThreadCount number of CSV files parsed in parallel, 1 means sequential loading.
+     * @param snapshotFile         file to save loaded indexes to, so that next {@link #init(Path)} with unchanged
+     *                             CSV files maps it instead of parsing CSVs; {@code null} disables snapshots.
+     * @param storage              where to keep index columns; {@link IndexStorage#DIRECT} and
+     *                             {@link IndexStorage#MAPPED} keep the heap small whatever the data volume,
+     *                             {@link IndexStorage#MAPPED} requires {@code snapshotFile}.
+     * @param queryCacheSize       maximum number of query results cached until the next data update,
+     *                             0 disables caching.
+     * @param maxRunningQueries    maximum number of queries running on the thread pool at once; narrow queries
+     *                             run in the calling thread and are not limited.
+     * @param maxQueuedQueries     maximum number of queries waiting to run on the thread pool, further ones
+     *                             are rejected with {@link QueryRejectedException}.
+     */
+    public AverageDistancesImpl(int executorThreadCount, long queryTimeoutSeconds, int ingestionThreadCount,
+                                Path snapshotFile, IndexStorage storage, int queryCacheSize,
+                                int maxRunningQueries, int maxQueuedQueries) {
         this.executorThreadCount = executorThreadCount;
 
         if (queryTimeoutSeconds <= 0) {
             throw new IllegalArgumentException("Query timeout value should be positive");
         }
 
+        if (ingestionThreadCount <= 0) {
+            throw new IllegalArgumentException("Ingestion thread count should be positive");
+        }
+
+        if (storage == IndexStorage.MAPPED && snapshotFile == null) {
+            throw new IllegalArgumentException("Mapped index storage requires snapshot file");
+        }
+
+        if (queryCacheSize < 0) {
+            throw new IllegalArgumentException("Query cache size should not be negative");
+        }
+
+        if (maxRunningQueries <= 0) {
+            throw new IllegalArgumentException("Maximum running query count should be positive");
+        }
+
+        if (maxQueuedQueries < 0) {
+            throw new IllegalArgumentException("Maximum queued query count should not be negative");
+        }
+
         this.queryTimeoutSeconds = queryTimeoutSeconds;
+        this.ingestionThreadCount = ingestionThreadCount;
+        this.snapshotFile = snapshotFile;
+        this.storage = storage;
+        this.queryCache = queryCacheSize > 0 ? new QueryCache(queryCacheSize) : null;
+        this.admissionControl = new AdmissionControl(maxRunningQueries, maxQueuedQueries);
+        this.metrics = new Metrics(() -> current, () -> executor, admissionControl);
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * New data is loaded aside and then replaces the current one at once, queries keep being answered meanwhile.
+     */
     @Override
     public void init(Path dataDir) {
-        close();
+        synchronized (updateLock) {
+            load(dataDir, listCsvFiles(dataDir));
+            externalFiles.clear();
+        }
+    }
+
+    /**
+     * Replaces the loaded data with the trips of the files, restored from the snapshot if it's up to date.
+     * Called under {@link #updateLock}.
+     */
+    private void load(Path dataDir, File[] csvFiles) {
+        List<IndexSnapshot.SourceFile> sources = IndexSnapshot.describe(csvFiles);
+        Optional<IndexSnapshot> snapshot = readSnapshot(sources);
+
+        if (snapshot.isPresent()) {
+            debug("Restored indexes from " + snapshotFile);
+        } else {
+            long startNanos = System.nanoTime();
+            IngestionBuffer loaded = withIngestionExecutor(ingestionExecutor -> loadCsvFiles(csvFiles, ingestionExecutor));
+            snapshot = Optional.of(publishable(appended(IndexSnapshot.EMPTY, sources, loaded)));
+            metrics.ingested(loaded, System.nanoTime() - startNanos);
+        }
+
+        publish(snapshot.get());
+        this.dataDir = dataDir;
+        updateStandingQueries(null, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Trips of the file become new index segments built aside, existing segments are reused, and only the new
+     * segments are written to the snapshot, so the cost is proportional to the file size (amortized).
+     * Queries keep being answered with the previous data meanwhile.
+     */
+    @Override
+    public void append(Path csvFile) {
+        synchronized (updateLock) {
+            File file = csvFile.toFile();
+            if (!file.isFile()) {
+                throw new IllegalArgumentException(file + " is not a file");
+            }
+            appendFiles(new File[] {file});
+            if (!csvFile.toAbsolutePath().getParent().equals(dataDir.toAbsolutePath())) {
+                externalFiles.add(file);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * New files are appended as in {@link #append(Path)}. If any of already loaded files was changed or removed,
+     * then the whole directory is loaded again as in {@link #init(Path)}, together with the files appended
+     * from other directories that still exist.
+     */
+    @Override
+    public void rescan() {
+        synchronized (updateLock) {
+            if (dataDir == null) {
+                throw new IllegalStateException("Not initialized");
+            }
+
+            File[] csvFiles = withExternalFiles(listCsvFiles(dataDir));
+            List<IndexSnapshot.SourceFile> sources = IndexSnapshot.describe(csvFiles);
+            if (!sources.containsAll(current.sources)) {
+                debug("Loaded files were changed, reloading " + dataDir);
+                externalFiles.removeIf(file -> !file.isFile());
+                load(dataDir, withExternalFiles(listCsvFiles(dataDir)));
+                return;
+            }
+
+            File[] newFiles = Arrays.stream(csvFiles)
+                .filter(file -> current.sources.stream().noneMatch(source -> source.name.equals(file.getName())))
+                .toArray(File[]::new);
+            if (newFiles.length > 0) {
+                appendFiles(newFiles);
+            }
+        }
+    }
+
+    private void appendFiles(File[] csvFiles) {
+        if (dataDir == null) {
+            throw new IllegalStateException("Not initialized");
+        }
+
+        IndexSnapshot snapshot = current;
+        List<IndexSnapshot.SourceFile> newSources = IndexSnapshot.describe(csvFiles);
+        for (IndexSnapshot.SourceFile source : newSources) {
+            if (snapshot.sources.stream().anyMatch(loaded -> loaded.name.equals(source.name))) {
+                throw new IllegalArgumentException(source.name + " is already loaded");
+            }
+        }
+
+        long startNanos = System.nanoTime();
+        IngestionBuffer loaded = withIngestionExecutor(ingestionExecutor -> loadCsvFiles(csvFiles, ingestionExecutor));
+        IndexSnapshot updated = publishable(appended(snapshot, newSources, loaded));
+        metrics.ingested(loaded, System.nanoTime() - startNanos);
+        publish(updated);
+        updateStandingQueries(snapshot.spread, loaded);
+    }
+
+    /**
+     * Adds the appended trips to standing queries whose window over the data hasn't changed, the cost is
+     * proportional to the appended trip count. Other queries, e.g. sliding windows moved by the new data,
+     * are evaluated again over the whole data.
+     * <p>
+     * The data is already published, so a query failing to update, e.g. rejected by admission control,
+     * doesn't fail the data update: it's reported and marked stale, then evaluated in full on the next update.
+     *
+     * @param previousSpread spread of the data before the trips were appended, {@code null} to evaluate
+     *                       all queries in full.
+     * @param loaded         appended trips, not used if {@code previousSpread} is {@code null}.
+     */
+    private void updateStandingQueries(TimeInterval previousSpread, IngestionBuffer loaded) {
+        for (StandingQuery query : standingQueries) {
+            try {
+                updateStandingQuery(query, previousSpread, loaded);
+            } catch (RuntimeException e) {
+                query.markStale();
+                warn("Failed to update standing query " + query + ", retrying on next data update: " + e);
+            }
+        }
+    }
+
+    private void updateStandingQuery(StandingQuery query, TimeInterval previousSpread, IngestionBuffer loaded) {
+        TimeWindow window = query.windowFor(current.spread);
+        if (previousSpread == null || query.isStale() || window == null
+            || !window.equals(query.windowFor(previousSpread))) {
+            refresh(query);
+            return;
+        }
+
+        TimeInterval interval = new TimeInterval(
+            InputTuple.toUnixTimestamp(window.getStart()), InputTuple.toUnixTimestamp(window.getEnd()));
+        if (!intersection(interval, previousSpread).isPresent()) {
+            // the window didn't have any passenger count groups before
+            refresh(query);
+            return;
+        }
+
+        TripTotals totals = query.totals().copy();
+        loaded.columnsPerPassCnt.forEach((passCnt, columns) -> {
+            long count = 0;
+            double sum = 0.0;
+            for (int i = 0; i < columns.size; i++) {
+                if (columns.pickups[i] >= interval.start && columns.dropoffs[i] <= interval.end) {
+                    count++;
+                    sum += columns.distances[i];
+                }
+            }
+            totals.add(passCnt, count, sum);
+        });
+        query.update(window, totals);
+    }
+
+    /**
+     * Evaluates the standing query over the current data.
+     */
+    private void refresh(StandingQuery query) {
+        TimeWindow window = query.windowFor(current.spread);
+        TripTotals totals = new TripTotals();
+        if (window != null) {
+            getTotals(window.getStart(), window.getEnd(), totals);
+        }
+        query.update(window, totals);
+    }
+
+    @Override
+    public StandingQuery registerStandingQuery(TimeWindow window, Consumer<Map<Integer, Double>> listener) {
+        if (window.getStart().isAfter(window.getEnd())) {
+            throw new IllegalArgumentException("Inverted window: " + window);
+        }
+        return register(new StandingQuery(window, null, listener, standingQueries::remove));
+    }
+
+    @Override
+    public StandingQuery registerStandingQuery(Duration length, Consumer<Map<Integer, Double>> listener) {
+        if (length.isNegative()) {
+            throw new IllegalArgumentException("Negative window length: " + length);
+        }
+        return register(new StandingQuery(null, length, listener, standingQueries::remove));
+    }
+
+    private StandingQuery register(StandingQuery query) {
+        synchronized (updateLock) {
+            refresh(query);
+            standingQueries.add(query);
+        }
+        return query;
+    }
 
+    private File[] withExternalFiles(File[] csvFiles) {
+        File[] result = Arrays.copyOf(csvFiles, csvFiles.length + externalFiles.size());
+        for (int i = 0; i < externalFiles.size(); i++) {
+            result[csvFiles.length + i] = externalFiles.get(i);
+        }
+        return result;
+    }
+
+    private static File[] listCsvFiles(Path dataDir) {
         File dir = dataDir.toFile();
         if (!dir.isDirectory()) {
             throw new IllegalArgumentException(dir + " is not a directory");
         }
 
-        File[] csvFiles = dir.listFiles((d, name) -> name.endsWith(".csv"));
+        File[] csvFiles = dir.listFiles((d, name) -> name.endsWith(".csv") || name.endsWith(".csv.gz"));
         if (csvFiles == null) {
             throw new IllegalArgumentException("Failed to find CSV files in " + dir);
         }
+        return csvFiles;
+    }
+
+    /**
+     * Builds indexes of the loaded trips and adds them to the snapshot.
+     * New segments are built on heap, or in direct memory for {@link IndexStorage#DIRECT} storage.
+     *
+     * @return new snapshot, the given one is unchanged.
+     */
+    private IndexSnapshot appended(IndexSnapshot snapshot, List<IndexSnapshot.SourceFile> newSources,
+                                   IngestionBuffer loaded) {
+        IndexStorage segmentStorage = storage == IndexStorage.DIRECT ? IndexStorage.DIRECT : IndexStorage.HEAP;
+
+        // the published dictionary stays unchanged, group ids of the loaded trips are translated to the new one
+        GroupDictionary groups = snapshot.groups.copy();
+        int[] groupMapping = groups.addAll(loaded.groups);
+
+        List<Integer> passCnts = new ArrayList<>(loaded.columnsPerPassCnt.keySet());
+        List<SegmentedIndex> indexes = withIngestionExecutor(ingestionExecutor -> invokeAll(passCnts.stream()
+            .map(passCnt -> (Callable<SegmentedIndex>) () -> {
+                TripColumns columns = loaded.columnsPerPassCnt.get(passCnt);
+                columns.remapGroups(groupMapping);
+                debug("Building index for passenger count " + passCnt + ", " + columns.size + " trips");
+                SegmentedIndex existing = snapshot.indexPerPassCnt.get(passCnt);
+                return (existing != null ? existing : SegmentedIndex.EMPTY).append(columns, segmentStorage);
+            })
+            .collect(Collectors.toList()), ingestionExecutor));
+
+        Map<Integer, SegmentedIndex> indexPerPassCnt = new HashMap<>(snapshot.indexPerPassCnt);
+        for (int i = 0; i < passCnts.size(); i++) {
+            indexPerPassCnt.put(passCnts.get(i), indexes.get(i));
+        }
+
+        TimeInterval spread = snapshot.spread;
+        if (!passCnts.isEmpty()) {
+            spread = spread == null
+                ? new TimeInterval(loaded.minTimestamp, loaded.maxTimestamp)
+                : new TimeInterval(Math.min(spread.start, loaded.minTimestamp), Math.max(spread.end, loaded.maxTimestamp));
+        }
+
+        List<IndexSnapshot.SourceFile> sources = new ArrayList<>(snapshot.sources);
+        sources.addAll(newSources);
+        sources.sort(Comparator.comparing(source -> source.name));
+
+        return new IndexSnapshot(sources, spread, indexPerPassCnt, groups, snapshot.segmentFiles);
+    }
+
+    /**
+     * Saves the snapshot to the snapshot file if configured, and maps it back for {@link IndexStorage#MAPPED} storage.
+     *
+     * @return snapshot ready to be published.
+     */
+    private IndexSnapshot publishable(IndexSnapshot snapshot) {
+        if (snapshot.isEmpty()) {
+            return snapshot;
+        }
+
+        IndexSnapshot saved = writeSnapshot(snapshot);
+
+        if (storage != IndexStorage.MAPPED) {
+            return saved;
+        }
+
+        // the snapshot has just been written, so mapping it can fail only if the file is gone
+        Optional<IndexSnapshot> mapped = readSnapshot(snapshot.sources);
+        if (!mapped.isPresent()) {
+            letItCrash("Failed to map index snapshot " + snapshotFile);
+        }
+        return mapped.get();
+    }
+
+    /**
+     * Makes the snapshot visible to queries.
+     */
+    private void publish(IndexSnapshot snapshot) {
+        if (!snapshot.isEmpty() && executor == null) {
+            executor = new ForkJoinPool(executorThreadCount);
+        }
 
-        MutableLong minTimestamp = new MutableLong(Long.MAX_VALUE);
-        MutableLong maxTimestamp = new MutableLong(Long.MIN_VALUE);
+        current = snapshot;
+        if (queryCache != null) {
+            queryCache.invalidate(snapshot);
+        }
+        debug("timestamp spread: " + snapshot.spread);
+    }
 
+    /**
+     * Runs the action with a temporary executor for ingestion tasks,
+     * or {@code null} executor if ingestion is sequential.
+     */
+    private <T> T withIngestionExecutor(Function<ExecutorService, T> action) {
+        ExecutorService ingestionExecutor = ingestionThreadCount > 1
+            ? Executors.newFixedThreadPool(ingestionThreadCount)
+            : null;
+
+        try {
+            return action.apply(ingestionExecutor);
+        } finally {
+            if (ingestionExecutor != null) {
+                ingestionExecutor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Loads CSV files in parallel. Every worker takes the next unprocessed file and loads it into its own buffer,
+     * so there is no shared mutable state until the buffers are merged at the end.
+     * <p>
+     * Big plain files are split into {@link MappedCsvChunk}s that are taken by workers like files, so a single
+     * file is parsed by all workers. Lines of the chunks are counted in parallel first, to report errors
+     * with original line numbers.
+     *
+     * @param ingestionExecutor executor for workers, or {@code null} to load in the current thread.
+     */
+    private IngestionBuffer loadCsvFiles(File[] csvFiles, ExecutorService ingestionExecutor) {
+        List<Consumer<IngestionBuffer>> tasks = new ArrayList<>();
+        List<Consumer<IngestionBuffer>> fileTasks = new ArrayList<>();
         for (File csvFile : csvFiles) {
-            try (CsvReader csvReader = CsvReader.builder()
-                .skipEmptyRows(true)
-                .errorOnDifferentFieldCount(false)
-                .build(csvFile.toPath().toAbsolutePath())) {
-
-                String fileName = csvFile.getName();
-                debug("Loading " + fileName);
-
-                csvReader.stream()
-                    .skip(1)
-                    .forEach(row -> InputTuple.parseCsvRow(row, fileName, AverageDistancesImpl::warn)
-                        .ifPresent(tuple -> {
-                            if (row.getOriginalLineNumber() % 200000 == 0) {
-                                debug(row.getOriginalLineNumber() + " rows loaded");
-                            }
-                            if (tuple.pickupTimestamp <= tuple.dropoffTimestamp) {
-                                treePerPassCnt.computeIfAbsent(tuple.passengerCount, passCnt -> createTimestampIntervalTree())
-                                    .add(new IntervalWithDistance(tuple.pickupTimestamp, tuple.dropoffTimestamp, tuple.distance));
-                                if (tuple.pickupTimestamp < minTimestamp.value) {
-                                    minTimestamp.value = tuple.pickupTimestamp;
-                                }
-                                if (tuple.dropoffTimestamp > maxTimestamp.value) {
-                                    maxTimestamp.value = tuple.dropoffTimestamp;
-                                }
-                            } else {
-                                warn(String.format("Dropping inverted time interval found in %s@%d",
-                                    fileName, row.getOriginalLineNumber()));
-                            }
-                        }));
-            } catch (IOException e) {
-                letItCrash("Failed to read " + csvFile + ", message: " + e.getMessage());
-            }
-        }
-
-        if (!treePerPassCnt.isEmpty()) {
-            shouldBeImpossible(executor != null, "executor should be null after close() call");
-
-            executor = new ThreadPoolExecutor(executorThreadCount, executorThreadCount,
-                Long.MAX_VALUE, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
-
-            spread = new LongInterval(minTimestamp.value, maxTimestamp.value);
-            debug("timestamp spread: " + spread);
+            if (GzipCsvPipeline.isGzipped(csvFile) || csvFile.length() < MappedCsvChunk.MIN_FILE_SIZE) {
+                fileTasks.add(buffer -> buffer.load(csvFile));
+                continue;
+            }
+
+            List<MappedCsvChunk> chunks = splitCsvFile(csvFile, ingestionExecutor);
+            for (MappedCsvChunk chunk : chunks) {
+                tasks.add(buffer -> {
+                    try {
+                        chunk.load(buffer, AverageDistancesImpl::warn);
+                    } catch (IOException e) {
+                        letItCrash("Failed to read " + chunk + ", message: " + e.getMessage());
+                    }
+                });
+            }
+        }
+        // chunks first: files that are not split are smaller than them, so they balance the load at the end
+        tasks.addAll(fileTasks);
+
+        int workerCount = Math.max(Math.min(ingestionThreadCount, tasks.size()), 1);
+        AtomicInteger nextTask = new AtomicInteger();
+
+        List<Callable<IngestionBuffer>> workers = new ArrayList<>();
+        for (int i = 0; i < workerCount; i++) {
+            IngestionBuffer buffer = new IngestionBuffer();
+            workers.add(() -> {
+                for (int task = nextTask.getAndIncrement(); task < tasks.size(); task = nextTask.getAndIncrement()) {
+                    tasks.get(task).accept(buffer);
+                }
+                return buffer;
+            });
+        }
+
+        List<IngestionBuffer> buffers = invokeAll(workers, ingestionExecutor);
+
+        IngestionBuffer result = buffers.get(0);
+        buffers.stream().skip(1).forEach(result::merge);
+        return result;
+    }
+
+    /**
+     * @return chunks of the file with their line numbers assigned.
+     */
+    private static List<MappedCsvChunk> splitCsvFile(File csvFile, ExecutorService ingestionExecutor) {
+        try {
+            List<MappedCsvChunk> chunks = MappedCsvChunk.split(csvFile, MappedCsvChunk.CHUNK_SIZE);
+            debug("Loading " + csvFile.getName() + " in " + chunks.size() + " chunks");
+
+            List<Callable<Long>> counters = new ArrayList<>();
+            for (MappedCsvChunk chunk : chunks) {
+                counters.add(chunk::countLines);
+            }
+            long[] lineCounts = invokeAll(counters, ingestionExecutor).stream().mapToLong(Long::longValue).toArray();
+            MappedCsvChunk.numberLines(chunks, lineCounts);
+            return chunks;
+        } catch (IOException e) {
+            letItCrash("Failed to read " + csvFile + ", message: " + e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+
+    private Optional<IndexSnapshot> readSnapshot(List<IndexSnapshot.SourceFile> sources) {
+        if (snapshotFile == null) {
+            return Optional.empty();
+        }
+
+        try {
+            return IndexSnapshot.read(snapshotFile, sources, storage);
+        } catch (IOException | RuntimeException e) {
+            warn("Ignoring unreadable index snapshot " + snapshotFile + ": " + e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * @return the snapshot with its saved segment files, or as it is if it's not saved.
+     */
+    private IndexSnapshot writeSnapshot(IndexSnapshot snapshot) {
+        if (snapshotFile == null) {
+            return snapshot;
+        }
+
+        try {
+            IndexSnapshot saved = IndexSnapshot.write(snapshotFile, snapshot);
+            debug("Saved indexes to " + snapshotFile);
+            return saved;
+        } catch (IOException e) {
+            warn("Failed to save index snapshot " + snapshotFile + ": " + e.getMessage());
+            return snapshot;
+        }
+    }
+
+    /**
+     * Runs all tasks and waits for them, rethrowing the first failure.
+     *
+     * @param executor executor to run the tasks, or {@code null} to run them in the current thread.
+     * @return task results in the order of tasks.
+     */
+    private static <T> List<T> invokeAll(List<Callable<T>> tasks, ExecutorService executor) {
+        List<T> results = new ArrayList<>();
+        try {
+            if (executor == null) {
+                for (Callable<T> task : tasks) {
+                    results.add(task.call());
+                }
+            } else {
+                for (Future<T> future : executor.invokeAll(tasks)) {
+                    results.add(future.get());
+                }
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
         }
     }
 
     @Override
     public Map<Integer, Double> getAverageDistances(LocalDateTime start, LocalDateTime end) {
-        if (treePerPassCnt.isEmpty()) {
-            return Collections.emptyMap();
+        return await(getAverageDistancesAsync(start, end), Collections.emptyMap());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Narrow queries are answered in the calling thread, so the returned future is already completed.
+     * Cancelling the future cancels jobs of the query.
+     */
+    @Override
+    public CompletableFuture<Map<Integer, Double>> getAverageDistancesAsync(LocalDateTime start, LocalDateTime end) {
+        QueryDeadline deadline = QueryDeadline.after(TimeUnit.SECONDS.toNanos(queryTimeoutSeconds));
+        return measured(deadline, () -> totals(start, end, deadline, new TripTotals())
+            .thenApply(TripTotals::averageDistances));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Narrow queries and cache hits fill the target in the calling thread without allocations
+     * once the target has grown to the number of groups.
+     */
+    @Override
+    public TripTotals getTotals(LocalDateTime start, LocalDateTime end, TripTotals target) {
+        QueryDeadline deadline = QueryDeadline.after(TimeUnit.SECONDS.toNanos(queryTimeoutSeconds));
+        CompletableFuture<TripTotals> result = measured(deadline, () -> totals(start, end, deadline, target));
+        TripTotals totals = await(result, null);
+        if (totals == null) {
+            // interrupted, jobs don't write to the target, so it can be cleared safely
+            target.clear();
+        } else if (totals != target) {
+            target.set(totals);
         }
+        return target;
+    }
 
-        LongInterval initialQuery = new LongInterval(InputTuple.toUnixTimestamp(start), InputTuple.toUnixTimestamp(end));
-        Optional<LongInterval> query = intersection(initialQuery, spread);
+    /**
+     * @param target totals to fill in the calling thread if the returned future is already completed; queries
+     *               run on the thread pool fill their own totals instead, so the target is never written
+     *               by another thread, e.g. after the caller has given up waiting.
+     * @return future completed with the target or with the totals of the pool jobs.
+     */
+    private CompletableFuture<TripTotals> totals(LocalDateTime start, LocalDateTime end, QueryDeadline deadline,
+                                                 TripTotals target) {
+        // single read of the snapshot, so the whole query sees the same data
+        IndexSnapshot snapshot = current;
+        ForkJoinPool executor = this.executor;
+
+        target.clear();
+        if (snapshot.isEmpty()) {
+            return CompletableFuture.completedFuture(target);
+        }
+
+        TimeInterval initialQuery = new TimeInterval(InputTuple.toUnixTimestamp(start), InputTuple.toUnixTimestamp(end));
+        Optional<TimeInterval> query = intersection(initialQuery, snapshot.spread);
 
         if (!query.isPresent()) {
-            return Collections.emptyMap();
+            return CompletableFuture.completedFuture(target);
+        }
+
+        if (queryCache != null && queryCache.get(snapshot, query.get(), target)) {
+            metrics.queryCacheHit();
+            return CompletableFuture.completedFuture(target);
+        }
+
+        // zone maps skip segments or take all of their trips, only segments straddling the query are searched
+        long totalRows = 0;
+        long fullRows = 0;
+        int prunedSegments = 0;
+        int fullSegments = 0;
+        int searchedSegments = 0;
+        for (SegmentedIndex index : snapshot.indexPerPassCnt.values()) {
+            for (ContainmentIndex segment : index.segments) {
+                if (segment.isContainedIn(query.get())) {
+                    fullRows += segment.size();
+                    fullSegments++;
+                } else if (segment.isDisjoint(query.get())) {
+                    prunedSegments++;
+                } else {
+                    // trips picked up after query end can't be dropped off before it
+                    totalRows += segment.upperBound(query.get().end) - segment.lowerBound(query.get().start);
+                    searchedSegments++;
+                }
+            }
+        }
+        metrics.segmentsVisited(prunedSegments, fullSegments, searchedSegments);
+
+        if (totalRows <= MIN_JOB_ROWS) {
+            // not worth splitting, so the query runs in the calling thread and doesn't wait behind wide ones
+            metrics.queryRunInline();
+            DoubleAccumulator accumulator = target.scratch;
+            for (Map.Entry<Integer, SegmentedIndex> entry : snapshot.indexPerPassCnt.entrySet()) {
+                accumulator.reset();
+                for (ContainmentIndex segment : entry.getValue().segments) {
+                    segment.aggregate(query.get(), accumulator);
+                }
+                target.add(entry.getKey(), accumulator.count.sum(), accumulator.value.sum());
+            }
+            if (deadline.check()) {
+                return CompletableFuture.completedFuture(completed(snapshot, query.get(), totalRows + fullRows, target));
+            }
+            metrics.queryTimedOut();
+            CompletableFuture<TripTotals> timedOut = new CompletableFuture<>();
+            timedOut.completeExceptionally(new TimeoutException("Query deadline is over"));
+            return timedOut;
         }
 
+        // row counts estimate the work, so jobs split until every worker can get a few pieces to steal
+        int maxRows = (int) Math.min(Integer.MAX_VALUE,
+            Math.max(MIN_JOB_ROWS, totalRows / (executorThreadCount * SPLITS_PER_THREAD)));
+
         Map<Integer, DoubleAccumulator> accumulators = new HashMap<>();
+        List<QueryJob> jobs = new ArrayList<>();
+        for (Map.Entry<Integer, SegmentedIndex> entry : snapshot.indexPerPassCnt.entrySet()) {
+            DoubleAccumulator accumulator = new DoubleAccumulator();
+            accumulators.put(entry.getKey(), accumulator);
+            for (ContainmentIndex segment : entry.getValue().segments) {
+                if (segment.isContainedIn(query.get())) {
+                    accumulator.add(segment.size(), segment.distanceSum);
+                    continue;
+                }
+                if (segment.isDisjoint(query.get())) {
+                    continue;
+                }
+                QueryJob job = new QueryJob(segment, segment.lowerBound(query.get().start),
+                    segment.upperBound(query.get().end), query.get().end, accumulator, maxRows, deadline);
+                debug("initial job: " + job + " " + job.accumulator);
+                jobs.add(job);
+            }
+        }
 
-        List<QueryJob> jobs = treePerPassCnt.entrySet().stream()
-            .map(entry -> new QueryJob(
-                entry.getValue(),
-                query.get(),
-                accumulators.computeIfAbsent(entry.getKey(), k -> new DoubleAccumulator())))
-            .peek(job -> debug("initial job: " + job.queryInterval + " " + job.accumulator))
-            .collect(Collectors.toList());
+        long candidateRows = totalRows + fullRows;
+        return runJobs(jobs, executor, deadline).thenApply(v -> {
+            TripTotals totals = new TripTotals(accumulators.size());
+            accumulators.forEach((passCnt, accumulator) ->
+                totals.add(passCnt, accumulator.count.sum(), accumulator.value.sum()));
+            return completed(snapshot, query.get(), candidateRows, totals);
+        });
+    }
 
-        List<CompletableFuture<?>> runningJobs = optimizedJobCollection(jobs).stream()
-            .peek(job -> debug("optimized job: " + job.queryInterval + " " + job.accumulator))
-            .peek(job -> shouldBeImpossible(executor == null, "no executor exists"))
-            .map(job -> CompletableFuture.runAsync(job, executor))
-            .collect(Collectors.toList());
+    private TripTotals completed(IndexSnapshot snapshot, TimeInterval query, long candidateRows, TripTotals totals) {
+        metrics.rowsFiltered(candidateRows, totals.totalTripCount());
+        if (queryCache != null) {
+            queryCache.put(snapshot, query, totals);
+        }
+        return totals;
+    }
 
-        try {
-            CompletableFuture.allOf(runningJobs.toArray(new CompletableFuture[] {})).get(queryTimeoutSeconds, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Index segments skipped or taken as a whole by their zone maps are accounted exactly, only segments
+     * straddling the query are estimated from their systematic samples of every
+     * {@value TripSample#SAMPLE_INTERVAL}-th trip in pickup order. So the error only comes from the query edges,
+     * and it shrinks relative to the average as the query gets wider.
+     */
+    @Override
+    public Map<Integer, ApproximateAverage> getApproximateAverageDistances(LocalDateTime start, LocalDateTime end) {
+        IndexSnapshot snapshot = current;
+        metrics.approximateQuery();
+
+        if (snapshot.isEmpty()) {
             return Collections.emptyMap();
-        } catch (ExecutionException | TimeoutException e) {
-            throw new RuntimeException(e);
         }
 
-        return accumulators.entrySet().stream()
-            .collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().count.longValue() != 0
-                ? e.getValue().value.doubleValue() / e.getValue().count.longValue()
-                : 0.0));
+        TimeInterval initialQuery = new TimeInterval(InputTuple.toUnixTimestamp(start), InputTuple.toUnixTimestamp(end));
+        Optional<TimeInterval> query = intersection(initialQuery, snapshot.spread);
+
+        if (!query.isPresent()) {
+            return Collections.emptyMap();
+        }
+
+        Map<Integer, ApproximateAverage> result = new HashMap<>();
+        snapshot.indexPerPassCnt.forEach((passCnt, index) -> {
+            SampleEstimate estimate = new SampleEstimate();
+            for (ContainmentIndex segment : index.segments) {
+                segment.estimate(query.get(), estimate);
+            }
+            result.put(passCnt, estimate.result());
+        });
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Trips of every passenger_count index store a group id, that is mapped to the other dimension values
+     * by the dictionary of the snapshot. Segments filtered out by passenger_count are not read at all,
+     * the others are scanned row by row: the merge-sort tree has no sums per group. Like ungrouped queries,
+     * narrow ones run in the calling thread and wide ones are split into jobs run on the thread pool
+     * once admitted.
+     */
+    @Override
+    public Map<List<Integer>, Double> getAverageDistances(LocalDateTime start, LocalDateTime end,
+                                                          List<TripDimension> groupBy,
+                                                          Map<TripDimension, Integer> filters) {
+        long filterMask = 0;
+        long filterValue = 0;
+        for (Map.Entry<TripDimension, Integer> filter : filters.entrySet()) {
+            int value = filter.getValue();
+            if (value < TripDimension.UNKNOWN || value > TripDimension.MAX_VALUE) {
+                throw new IllegalArgumentException("Filter value out of range: " + filter);
+            }
+            if (filter.getKey() != TripDimension.PASSENGER_COUNT) {
+                filterMask |= filter.getKey().keyMask();
+                filterValue = filter.getKey().withValue(filterValue, value);
+            }
+        }
+        long groupMask = 0;
+        for (TripDimension dimension : groupBy) {
+            if (dimension != TripDimension.PASSENGER_COUNT) {
+                groupMask |= dimension.keyMask();
+            }
+        }
+        GroupAggregator template = new GroupAggregator(filterMask, filterValue, groupMask);
+        Integer passCntFilter = filters.get(TripDimension.PASSENGER_COUNT);
+
+        QueryDeadline deadline = QueryDeadline.after(TimeUnit.SECONDS.toNanos(queryTimeoutSeconds));
+        return await(measured(deadline, () -> groupedAverages(start, end, groupBy, passCntFilter, template, deadline)),
+            Collections.emptyMap());
+    }
+
+    /**
+     * @param template aggregator with the filters and grouping of the query, not filled itself.
+     */
+    private CompletableFuture<Map<List<Integer>, Double>> groupedAverages(LocalDateTime start, LocalDateTime end,
+                                                                          List<TripDimension> groupBy,
+                                                                          Integer passCntFilter,
+                                                                          GroupAggregator template,
+                                                                          QueryDeadline deadline) {
+        IndexSnapshot snapshot = current;
+        ForkJoinPool executor = this.executor;
+
+        TimeInterval initialQuery = new TimeInterval(InputTuple.toUnixTimestamp(start), InputTuple.toUnixTimestamp(end));
+        Optional<TimeInterval> query = snapshot.isEmpty() ? Optional.empty() : intersection(initialQuery, snapshot.spread);
+        if (!query.isPresent()) {
+            return CompletableFuture.completedFuture(Collections.emptyMap());
+        }
+
+        Map<Integer, SegmentedIndex> indexes = new HashMap<>(snapshot.indexPerPassCnt);
+        if (passCntFilter != null) {
+            indexes.keySet().retainAll(Collections.singleton(passCntFilter));
+        }
+
+        // segments contained in the query are scanned too, so only disjoint ones are skipped
+        long totalRows = 0;
+        for (SegmentedIndex index : indexes.values()) {
+            for (ContainmentIndex segment : index.segments) {
+                if (!segment.isDisjoint(query.get())) {
+                    totalRows += segment.upperBound(query.get().end) - segment.lowerBound(query.get().start);
+                }
+            }
+        }
+
+        if (totalRows <= MIN_JOB_ROWS) {
+            metrics.queryRunInline();
+            Map<Integer, GroupAggregator> aggregators = new HashMap<>();
+            indexes.forEach((passCnt, index) -> {
+                GroupAggregator aggregator = template.empty();
+                for (ContainmentIndex segment : index.segments) {
+                    segment.aggregateGroups(query.get(), snapshot.groups.keys, aggregator);
+                }
+                aggregators.put(passCnt, aggregator);
+            });
+            if (deadline.check()) {
+                return CompletableFuture.completedFuture(groupAverages(aggregators, groupBy));
+            }
+            metrics.queryTimedOut();
+            CompletableFuture<Map<List<Integer>, Double>> timedOut = new CompletableFuture<>();
+            timedOut.completeExceptionally(new TimeoutException("Query deadline is over"));
+            return timedOut;
+        }
+
+        int maxRows = (int) Math.min(Integer.MAX_VALUE,
+            Math.max(MIN_JOB_ROWS, totalRows / (executorThreadCount * SPLITS_PER_THREAD)));
+
+        Map<Integer, Queue<GroupAggregator>> partials = new HashMap<>();
+        List<GroupQueryJob> jobs = new ArrayList<>();
+        indexes.forEach((passCnt, index) -> {
+            Queue<GroupAggregator> results = new ConcurrentLinkedQueue<>();
+            partials.put(passCnt, results);
+            for (ContainmentIndex segment : index.segments) {
+                if (segment.isDisjoint(query.get())) {
+                    continue;
+                }
+                GroupQueryJob job = new GroupQueryJob(segment, segment.lowerBound(query.get().start),
+                    segment.upperBound(query.get().end), query.get().end, snapshot.groups.keys, template, results,
+                    maxRows, deadline);
+                debug("initial group job: " + job);
+                jobs.add(job);
+            }
+        });
+
+        return runJobs(jobs, executor, deadline).thenApply(v -> {
+            Map<Integer, GroupAggregator> aggregators = new HashMap<>();
+            partials.forEach((passCnt, results) -> {
+                GroupAggregator aggregator = template.empty();
+                results.forEach(aggregator::merge);
+                aggregators.put(passCnt, aggregator);
+            });
+            return groupAverages(aggregators, groupBy);
+        });
+    }
+
+    /**
+     * @param aggregators filled aggregators by passenger_count value.
+     * @return average distance by values of the grouping dimensions, in the order of {@code groupBy}.
+     */
+    private static Map<List<Integer>, Double> groupAverages(Map<Integer, GroupAggregator> aggregators,
+                                                            List<TripDimension> groupBy) {
+        Map<List<Integer>, DoubleAccumulator> totals = new HashMap<>();
+        aggregators.forEach((passCnt, aggregator) -> {
+            for (int slot = 0; slot < aggregator.capacity(); slot++) {
+                if (aggregator.isUsed(slot)) {
+                    List<Integer> group = new ArrayList<>(groupBy.size());
+                    for (TripDimension dimension : groupBy) {
+                        group.add(dimension == TripDimension.PASSENGER_COUNT
+                            ? passCnt
+                            : dimension.valueOf(aggregator.key(slot)));
+                    }
+                    totals.computeIfAbsent(group, g -> new DoubleAccumulator())
+                        .add(aggregator.count(slot), aggregator.sum(slot));
+                }
+            }
+        });
+
+        Map<List<Integer>, Double> result = new HashMap<>();
+        totals.forEach((group, accumulator) -> result.put(group, accumulator.value.sum() / accumulator.count.sum()));
+        return result;
     }
 
     @Override
-    public void close() {
-        if (executor != null) {
-            executor.shutdown();
-            executor = null;
+    public List<Map<Integer, Double>> getAverageDistances(List<TimeWindow> windows) {
+        return await(getAverageDistancesAsync(windows), Collections.nCopies(windows.size(), Collections.emptyMap()));
+    }
+
+    /**
+     * Evaluates all windows over a single read of the current data. Each job takes a segment and a run
+     * of windows ordered by start, so the row range search of a window continues from the previous one
+     * and the job count depends on the thread count rather than on the window count.
+     */
+    @Override
+    public CompletableFuture<List<Map<Integer, Double>>> getAverageDistancesAsync(List<TimeWindow> windows) {
+        QueryDeadline deadline = QueryDeadline.after(TimeUnit.SECONDS.toNanos(queryTimeoutSeconds));
+        return measured(deadline, () -> averageDistances(windows, deadline));
+    }
+
+    private CompletableFuture<List<Map<Integer, Double>>> averageDistances(List<TimeWindow> windows,
+                                                                           QueryDeadline deadline) {
+        IndexSnapshot snapshot = current;
+        ForkJoinPool executor = this.executor;
+
+        // convert all windows upfront, so an inverted one fails the batch before any work is done
+        TimeInterval[] initialQueries = windows.stream()
+            .map(window -> new TimeInterval(
+                InputTuple.toUnixTimestamp(window.getStart()), InputTuple.toUnixTimestamp(window.getEnd())))
+            .toArray(TimeInterval[]::new);
+
+        List<Map<Integer, Double>> results = new ArrayList<>(Collections.nCopies(windows.size(), Collections.emptyMap()));
+        if (snapshot.isEmpty()) {
+            return CompletableFuture.completedFuture(results);
+        }
+
+        // positions in the batch of windows intersecting the data, ordered by clamped start
+        List<Integer> positions = new ArrayList<>();
+        Map<Integer, TimeInterval> clamped = new HashMap<>();
+        for (int i = 0; i < initialQueries.length; i++) {
+            int position = i;
+            intersection(initialQueries[i], snapshot.spread).ifPresent(query -> {
+                positions.add(position);
+                clamped.put(position, query);
+            });
         }
-        treePerPassCnt.clear();
+        if (positions.isEmpty()) {
+            return CompletableFuture.completedFuture(results);
+        }
+        positions.sort(Comparator.comparingLong(position -> clamped.get(position).start));
+        TimeInterval[] queries = positions.stream().map(clamped::get).toArray(TimeInterval[]::new);
+
+        int segmentCount = snapshot.indexPerPassCnt.values().stream().mapToInt(index -> index.segments.size()).sum();
+        int desiredJobCount = (int) (executorThreadCount * MIN_JOBS_PER_THREAD);
+        int runsPerSegment = Math.min(queries.length, Math.max(1, (desiredJobCount + segmentCount - 1) / segmentCount));
+        int queriesPerRun = (queries.length + runsPerSegment - 1) / runsPerSegment;
+
+        Map<Integer, DoubleAccumulator[]> accumulators = new HashMap<>();
+        List<BatchQueryJob> jobs = new ArrayList<>();
+        snapshot.indexPerPassCnt.forEach((passCnt, index) -> {
+            DoubleAccumulator[] groupAccumulators = new DoubleAccumulator[queries.length];
+            for (int q = 0; q < queries.length; q++) {
+                groupAccumulators[q] = new DoubleAccumulator();
+            }
+            accumulators.put(passCnt, groupAccumulators);
+
+            for (ContainmentIndex segment : index.segments) {
+                for (int from = 0; from < queries.length; from += queriesPerRun) {
+                    jobs.add(new BatchQueryJob(segment, queries, from, Math.min(from + queriesPerRun, queries.length),
+                        groupAccumulators, deadline));
+                }
+            }
+        });
+        jobs.forEach(job -> debug("batch job: " + job));
+
+        return runJobs(jobs.stream().map(ForkJoinTask::adapt).collect(Collectors.toList()), executor, deadline)
+            .thenApply(v -> {
+                TripTotals totals = new TripTotals(accumulators.size());
+                for (int q = 0; q < queries.length; q++) {
+                    totals.clear();
+                    for (Map.Entry<Integer, DoubleAccumulator[]> entry : accumulators.entrySet()) {
+                        DoubleAccumulator accumulator = entry.getValue()[q];
+                        totals.add(entry.getKey(), accumulator.count.sum(), accumulator.value.sum());
+                    }
+                    results.set(positions.get(q), totals.averageDistances());
+                }
+                return results;
+            });
     }
 
-    private static IntervalTree createTimestampIntervalTree() {
-        return IntervalTreeBuilder.newBuilder()
-            .collectIntervals(interval -> new ListIntervalCollection())
-            .overrideComparator(IntervalValueComparator::compareLongs)
-            .build();
+    /**
+     * Records latency of the query once it's completed, and cancels its jobs if the returned future is cancelled.
+     */
+    private <T> CompletableFuture<T> measured(QueryDeadline deadline, Supplier<CompletableFuture<T>> query) {
+        long startNanos = System.nanoTime();
+        CompletableFuture<T> result;
+        try {
+            result = query.get();
+        } catch (RuntimeException e) {
+            metrics.queryCompleted(System.nanoTime() - startNanos);
+            throw e;
+        }
+
+        CompletableFuture<T> measured = result.whenComplete((value, e) -> metrics.queryCompleted(System.nanoTime() - startNanos));
+        measured.whenComplete((value, e) -> {
+            if (e instanceof CancellationException) {
+                deadline.cancel();
+            }
+        });
+        return measured;
     }
 
     /**
-     * If job count is smaller than available thread count, then CPU resources are underutilized,
-     * and jobs should be broken to lesser jobs by fragmenting query intervals.
+     * Waits for the query result in the calling thread.
      *
-     * @param jobs input job list.
-     * @return output job collection, can be the same is input if no optimization needed.
+     * @param interruptedResult result if the calling thread was interrupted while waiting.
      */
-    private Collection<QueryJob> optimizedJobCollection(List<QueryJob> jobs) {
-        // algorithm parameters; subject to investigation/tuning
-        final double minJobsPerThread = 1.5;
-        final double minJobWidthMillis = TimeUnit.DAYS.toMillis(3);
+    private static <T> T await(CompletableFuture<T> result, T interruptedResult) {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            result.cancel(false);
+            Thread.currentThread().interrupt();
+            return interruptedResult;
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+        }
+    }
 
-        int desiredJobCount = (int) (executorThreadCount * minJobsPerThread);
+    /**
+     * Runs the jobs on the query executor once admitted, without blocking the calling thread.
+     * Jobs are forked from a pool worker, so they go to its work queue and other workers steal them.
+     * If the deadline is over before the jobs are done, the query fails with {@link TimeoutException} right away,
+     * and remaining jobs finish without doing anything.
+     *
+     * @param executor executor read by the caller with the snapshot; {@code null} or shut down
+     *                 if the instance was closed in between.
+     * @return future completed when all jobs are done; failed with {@link QueryRejectedException}
+     * if too many queries are waiting for admission, or with {@link CancellationException}
+     * if the instance is closed before the jobs are submitted.
+     */
+    private CompletableFuture<Void> runJobs(Collection<? extends ForkJoinTask<?>> jobs, ForkJoinPool executor,
+                                            QueryDeadline deadline) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        if (executor == null || executor.isShutdown()) {
+            done.completeExceptionally(closedException());
+            return done;
+        }
 
-        if (jobs.isEmpty() || jobs.size() >= desiredJobCount) {
-            return jobs;
+        CompletableFuture<Void> admission;
+        try {
+            admission = admissionControl.acquire();
+        } catch (QueryRejectedException e) {
+            metrics.queryRejected();
+            done.completeExceptionally(e);
+            return done;
         }
 
-        TreeMap<Long, List<QueryJob>> jobsByIntervalWidth = new TreeMap<>();
-        jobs.forEach(job -> jobsByIntervalWidth.computeIfAbsent(width(job.queryInterval), k -> new ArrayList<>()).add(job));
-        int jobCount = jobs.size();
+        admission.thenRun(() -> {
+            // workers may still take tasks submitted from a worker after shutdown, so check it explicitly
+            if (executor.isShutdown()) {
+                admissionControl.release();
+                done.completeExceptionally(closedException());
+                return;
+            }
+
+            ForkJoinTask<?> root = ForkJoinTask.adapt(() -> {
+                try {
+                    ForkJoinTask.invokeAll(jobs);
+                    // jobs noticed the deadline before the timer did
+                    if (deadline.isCancelled()) {
+                        done.completeExceptionally(new TimeoutException("Query deadline is over"));
+                    } else {
+                        done.complete(null);
+                    }
+                } catch (RuntimeException | Error e) {
+                    deadline.cancel();
+                    done.completeExceptionally(e);
+                } finally {
+                    admissionControl.release();
+                }
+            });
 
-        do {
-            Long maxJobWidth = jobsByIntervalWidth.lastEntry().getKey();
-            if (maxJobWidth < minJobWidthMillis) {
-                break;
+            metrics.jobsSubmitted(jobs.size());
+            try {
+                executor.execute(root);
+            } catch (RejectedExecutionException e) {
+                // the executor was shut down by close() while the query waited for admission
+                admissionControl.release();
+                done.completeExceptionally(closedException());
             }
+        });
 
-            List<QueryJob> widestJobs = jobsByIntervalWidth.lastEntry().getValue();
-            long newWidth = maxJobWidth / 2;
-            List<QueryJob> lesserJobs = widestJobs.stream()
-                .flatMap(job -> {
-                    long left = job.queryInterval.getStart();
-                    long center = job.queryInterval.getStart() + newWidth;
-                    long right = job.queryInterval.getEnd();
-                    return Stream.of(
-                        new QueryJob(job.searchTree, new LongInterval(left, center), job.accumulator),
-                        new QueryJob(job.searchTree, new LongInterval(center, right), job.accumulator)
-                    );
-                })
-                .collect(Collectors.toList());
+        ScheduledFuture<?> timeout = QUERY_TIMER.schedule(() -> {
+            if (done.completeExceptionally(new TimeoutException("Query deadline is over"))) {
+                deadline.cancel();
+                admissionControl.abandon(admission);
+            }
+        }, Math.max(deadline.remainingNanos(), 0), TimeUnit.NANOSECONDS);
 
-            jobsByIntervalWidth.remove(maxJobWidth);
-            jobsByIntervalWidth.put(newWidth, lesserJobs);
-            jobCount += widestJobs.size();
-        } while (jobCount < desiredJobCount);
+        return done.whenComplete((v, e) -> {
+            timeout.cancel(false);
+            if (e instanceof TimeoutException) {
+                metrics.queryTimedOut();
+            }
+        });
+    }
 
-        return jobsByIntervalWidth.entrySet().stream()
-            .flatMap(entry -> entry.getValue().stream())
-            .collect(Collectors.toList());
+    /**
+     * @return metrics of this instance, live.
+     */
+    public AverageDistancesMXBean getMetrics() {
+        return metrics;
     }
 
-    private static Optional<LongInterval> intersection(LongInterval i1, LongInterval i2) {
-        if (i1.getEnd() < i2.getStart() || i2.getEnd() < i1.getStart()) {
-            return Optional.empty();
+    /**
+     * Registers {@link #getMetrics()} in the platform MBean server as
+     * {@code query.avgdist:type=AverageDistances,name=<name>}, until {@link #close()}.
+     */
+    public void registerMBean(String name) {
+        synchronized (updateLock) {
+            if (mBeanName != null) {
+                throw new IllegalStateException("Already registered as " + mBeanName);
+            }
+            try {
+                ObjectName objectName = new ObjectName("query.avgdist:type=AverageDistances,name=" + ObjectName.quote(name));
+                ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(new StandardMBean(metrics, AverageDistancesMXBean.class, true), objectName);
+                mBeanName = objectName;
+            } catch (JMException e) {
+                letItCrash("Failed to register MBean " + name + ", message: " + e.getMessage());
+            }
         }
+    }
 
-        long end = Math.min(i1.getEnd(), i2.getEnd());
+    @Override
+    public void close() {
+        synchronized (updateLock) {
+            if (mBeanName != null) {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(mBeanName);
+                } catch (JMException e) {
+                    warn("Failed to unregister MBean " + mBeanName + ", message: " + e.getMessage());
+                }
+                mBeanName = null;
+            }
+            current = IndexSnapshot.EMPTY;
+            standingQueries.clear();
+            if (queryCache != null) {
+                queryCache.invalidate(IndexSnapshot.EMPTY);
+            }
+            dataDir = null;
+            externalFiles.clear();
+            if (executor != null) {
+                executor.shutdown();
+                executor = null;
+            }
+        }
+    }
 
-        LongInterval result = i1.getStart() <= i2.getStart()
-            ? new LongInterval(i2.getStart(), end)
-            : new LongInterval(i1.getStart(), end);
+    private static Optional<TimeInterval> intersection(TimeInterval i1, TimeInterval i2) {
+        if (i1.end < i2.start || i2.end < i1.start) {
+            return Optional.empty();
+        }
 
-        return Optional.of(result);
+        return Optional.of(new TimeInterval(Math.max(i1.start, i2.start), Math.min(i1.end, i2.end)));
     }
 
-    private static long width(LongInterval interval) {
-        return interval.getEnd() - interval.getStart();
+    private static ScheduledThreadPoolExecutor newQueryTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "avgdist-query-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
     }
 
-    private static void warn(String msg) {
+    static void warn(String msg) {
         System.err.println(msg);
     }
 
-    private static void debug(String msg) {
+    static void debug(String msg) {
         if (DEBUG_ENABLED) {
             System.out.println(msg);
         }
     }
 
-    private static void shouldBeImpossible(boolean condition, String message) {
-        if (condition) {
-            letItCrash("Internal error: " + message);
-        }
+    private static CancellationException closedException() {
+        return new CancellationException("Query cancelled: the instance is closed");
     }
 
-    private static void letItCrash(String message) {
+    static void letItCrash(String message) {
         throw new RuntimeException(message);
     }
 }
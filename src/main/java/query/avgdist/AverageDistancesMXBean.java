@@ -0,0 +1,132 @@
+package query.avgdist;
+
+/**
+ * Runtime metrics of {@link AverageDistancesImpl}, see {@link AverageDistancesImpl#registerMBean(String)}.
+ * Counters are totals since the instance was created.
+ */
+public interface AverageDistancesMXBean {
+    /**
+     * @return number of {@code getAverageDistances} calls, including failed ones.
+     */
+    long getQueryCount();
+
+    /**
+     * @return number of queries in every latency bucket, see {@link #getQueryLatencyBucketBoundsMicros()}.
+     */
+    long[] getQueryLatencyHistogram();
+
+    /**
+     * @return inclusive upper bound of every latency histogram bucket in microseconds;
+     * the last bucket is unbounded.
+     */
+    long[] getQueryLatencyBucketBoundsMicros();
+
+    /**
+     * @return upper bound of the latency bucket containing the median query.
+     */
+    long getQueryLatencyP50Micros();
+
+    /**
+     * @return upper bound of the latency bucket containing the 99th percentile query.
+     */
+    long getQueryLatencyP99Micros();
+
+    /**
+     * @return number of jobs submitted to the query executor, before they split.
+     */
+    long getQueryJobCount();
+
+    /**
+     * @return number of trips in pickup row ranges of single window queries, i.e. candidates
+     * before the dropoff condition, including trips of segments taken as a whole.
+     */
+    long getCandidateRowCount();
+
+    /**
+     * @return number of trips contained in single window queries.
+     */
+    long getAcceptedRowCount();
+
+    /**
+     * @return number of index segments skipped by single window queries because their zone maps
+     * are outside of the query.
+     */
+    long getPrunedSegmentCount();
+
+    /**
+     * @return number of index segments taken as a whole by single window queries because their zone maps
+     * are inside of the query.
+     */
+    long getFullSegmentCount();
+
+    /**
+     * @return number of index segments straddling single window queries, so searched.
+     */
+    long getSearchedSegmentCount();
+
+    long getQueryTimeoutCount();
+
+    long getQueryCacheHitCount();
+
+    /**
+     * @return number of narrow queries run in the calling thread rather than on the query executor.
+     */
+    long getInlineQueryCount();
+
+    /**
+     * @return number of approximate queries, not included in other query counters.
+     */
+    long getApproximateQueryCount();
+
+    /**
+     * @return number of queries rejected because too many queries were waiting for admission.
+     */
+    long getRejectedQueryCount();
+
+    /**
+     * @return number of queries waiting for admission to the query executor right now.
+     */
+    int getQueuedQueryCount();
+
+    /**
+     * @return number of jobs waiting in query executor queues right now.
+     */
+    int getExecutorQueueDepth();
+
+    /**
+     * @return number of query executor threads running jobs right now.
+     */
+    int getExecutorActiveThreads();
+
+    /**
+     * @return number of jobs taken by idle query executor threads from work queues of other threads.
+     */
+    long getExecutorStealCount();
+
+    /**
+     * @return number of CSV rows loaded into indexes.
+     */
+    long getLoadedRowCount();
+
+    /**
+     * @return number of CSV rows dropped because of pickup after dropoff.
+     */
+    long getInvertedRowCount();
+
+    /**
+     * @return number of CSV rows dropped because of parsing errors.
+     */
+    long getUnparseableRowCount();
+
+    /**
+     * @return loaded rows per second of the last data update that parsed CSVs, including index building.
+     */
+    double getLastIngestionRowsPerSecond();
+
+    long getIndexedTripCount();
+
+    /**
+     * @return estimated size of index columns in bytes, wherever they are stored.
+     */
+    long getIndexMemoryBytes();
+}
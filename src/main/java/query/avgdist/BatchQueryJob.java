@@ -0,0 +1,61 @@
+package query.avgdist;
+
+/**
+ * Job that aggregates trips of a {@link ContainmentIndex} for a batch of query intervals at once.
+ * Queries are ordered by start, so consecutive row range searches continue from the previous position.
+ */
+class BatchQueryJob implements Runnable {
+    public final ContainmentIndex index;
+
+    /**
+     * Query intervals ordered by start.
+     */
+    public final TimeInterval[] queries;
+
+    /**
+     * Range [fromQuery, toQuery) of {@link #queries} to process.
+     */
+    public final int fromQuery;
+    public final int toQuery;
+
+    /**
+     * Accumulator for every query, in the order of {@link #queries}.
+     */
+    public final DoubleAccumulator[] accumulators;
+
+    public final QueryDeadline deadline;
+
+    public BatchQueryJob(ContainmentIndex index, TimeInterval[] queries, int fromQuery, int toQuery,
+                         DoubleAccumulator[] accumulators, QueryDeadline deadline) {
+        this.index = index;
+        this.queries = queries;
+        this.fromQuery = fromQuery;
+        this.toQuery = toQuery;
+        this.accumulators = accumulators;
+        this.deadline = deadline;
+    }
+
+    @Override
+    public void run() {
+        int fromRow = 0;
+        for (int q = fromQuery; q < toQuery && deadline.check(); q++) {
+            TimeInterval query = queries[q];
+            if (index.isContainedIn(query)) {
+                accumulators[q].add(index.size(), index.distanceSum);
+                continue;
+            }
+            if (index.isDisjoint(query)) {
+                continue;
+            }
+            fromRow = index.lowerBound(query.start, fromRow);
+            // trips picked up after query end can't be dropped off before it
+            int toRow = index.upperBound(query.end);
+            index.aggregate(fromRow, Math.max(fromRow, toRow), query.end, accumulators[q]);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "queries [" + fromQuery + ", " + toQuery + ") of " + queries.length;
+    }
+}
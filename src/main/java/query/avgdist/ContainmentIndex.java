@@ -0,0 +1,495 @@
+package query.avgdist;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Static index of trips answering containment queries: count and distance sum of all trips
+ * with pickup >= start and dropoff <= end.
+ * <p>
+ * Rows are ordered by pickup timestamp, so the pickup condition selects a contiguous row range.
+ * Over that row order a merge-sort tree with fan-out {@link #FANOUT} keeps the dropoff timestamps of every node
+ * sorted, together with node-local prefix sums of distances. A row range is decomposed into at most
+ * {@code 2 * (FANOUT - 1)} nodes per level, each answered by a single binary search, and only unaligned edges
+ * of the range (less than {@link #LEAF_SIZE} rows on each side) are scanned by {@link ScanKernel}.
+ * <p>
+ * The index is immutable after {@link #build(TripColumns)}. It's built on heap and then can be copied
+ * to another {@link IndexStorage}.
+ * <p>
+ * A zone map of the actual pickup and dropoff bounds and of the distance total lets queries skip the index,
+ * or take all of its trips, without any search.
+ */
+final class ContainmentIndex {
+    /**
+     * Number of rows in a leaf node.
+     */
+    static final int LEAF_SIZE = 64;
+
+    /**
+     * Number of children of an inner node, power of 2. Trades memory (one level per power of fan-out)
+     * for query time (number of nodes visited per level).
+     */
+    static final int FANOUT = 8;
+
+    /**
+     * Minimum number of trips to build an index with parallel sort and merge passes.
+     */
+    static final int PARALLEL_BUILD_ROWS = 1 << 16;
+
+    /**
+     * Trip columns ordered by pickup timestamp.
+     */
+    final LongColumn pickups;
+    final LongColumn dropoffs;
+    final DoubleColumn distances;
+
+    /**
+     * {@link GroupDictionary} ids of the trips, in the same order.
+     */
+    final LongColumn groups;
+
+    /**
+     * Per tree level: dropoff timestamps sorted within each node.
+     * Nodes of level {@code k} span {@code LEAF_SIZE * FANOUT^k} rows.
+     */
+    final LongColumn[] levelDropoffs;
+
+    /**
+     * Per tree level: node-local prefix sums of distances in the order of {@link #levelDropoffs}.
+     */
+    final DoubleColumn[] levelDistanceSums;
+
+    /**
+     * Zone map: bounds of pickup and dropoff timestamps of all trips and their distance sum.
+     */
+    final long minPickup;
+    final long maxPickup;
+    final long minDropoff;
+    final long maxDropoff;
+    final double distanceSum;
+
+    /**
+     * Sample for approximate queries, built with the index, so that they never pay for it.
+     */
+    final TripSample sample;
+
+    ContainmentIndex(LongColumn pickups, LongColumn dropoffs, DoubleColumn distances, LongColumn groups,
+                     LongColumn[] levelDropoffs, DoubleColumn[] levelDistanceSums) {
+        this(pickups, dropoffs, distances, groups, levelDropoffs, levelDistanceSums, null);
+    }
+
+    /**
+     * @param sample sample of the same trips, or {@code null} to build it.
+     */
+    private ContainmentIndex(LongColumn pickups, LongColumn dropoffs, DoubleColumn distances, LongColumn groups,
+                             LongColumn[] levelDropoffs, DoubleColumn[] levelDistanceSums, TripSample sample) {
+        this.pickups = pickups;
+        this.dropoffs = dropoffs;
+        this.distances = distances;
+        this.groups = groups;
+        this.levelDropoffs = levelDropoffs;
+        this.levelDistanceSums = levelDistanceSums;
+
+        // the top level is a single node, so its dropoffs are sorted and its prefix sums end with the total
+        int size = pickups.size();
+        LongColumn sortedDropoffs = levelDropoffs[levelDropoffs.length - 1];
+        this.minPickup = size > 0 ? pickups.get(0) : Long.MAX_VALUE;
+        this.maxPickup = size > 0 ? pickups.get(size - 1) : Long.MIN_VALUE;
+        this.minDropoff = size > 0 ? sortedDropoffs.get(0) : Long.MAX_VALUE;
+        this.maxDropoff = size > 0 ? sortedDropoffs.get(size - 1) : Long.MIN_VALUE;
+        this.distanceSum = size > 0 ? levelDistanceSums[levelDistanceSums.length - 1].get(size - 1) : 0.0;
+        this.sample = sample != null ? sample : TripSample.of(this);
+    }
+
+    /**
+     * Builds an index of the given trips. Every trip is expected to have pickup <= dropoff.
+     */
+    public static ContainmentIndex build(TripColumns columns) {
+        int size = columns.size;
+        int[] order = orderByPickup(columns.pickups, size);
+
+        long[] pickups = new long[size];
+        long[] dropoffs = new long[size];
+        double[] distances = new double[size];
+        long[] groups = new long[size];
+        for (int i = 0; i < size; i++) {
+            pickups[i] = columns.pickups[order[i]];
+            dropoffs[i] = columns.dropoffs[order[i]];
+            distances[i] = columns.distances[order[i]];
+            groups[i] = columns.groups[order[i]];
+        }
+
+        // Bottom-up merge sort of (dropoff, distance) pairs; every time sorted run width reaches
+        // a node width of the tree, the current state becomes a tree level.
+        List<LongColumn> levelDropoffs = new ArrayList<>();
+        List<DoubleColumn> levelDistanceSums = new ArrayList<>();
+
+        long[] keys = dropoffs.clone();
+        double[] values = distances.clone();
+        long[] keysBuffer = new long[size];
+        double[] valuesBuffer = new double[size];
+
+        long nextLevelWidth = LEAF_SIZE;
+        for (long width = 1; ; width *= 2) {
+            if (width == nextLevelWidth) {
+                levelDropoffs.add(LongColumn.of(keys.clone()));
+                levelDistanceSums.add(DoubleColumn.of(nodePrefixSums(values, (int) Math.min(width, Integer.MAX_VALUE))));
+                if (width >= size) {
+                    break;
+                }
+                nextLevelWidth *= FANOUT;
+            }
+
+            mergePass(keys, values, width, size, keysBuffer, valuesBuffer);
+
+            long[] swapKeys = keys;
+            keys = keysBuffer;
+            keysBuffer = swapKeys;
+            double[] swapValues = values;
+            values = valuesBuffer;
+            valuesBuffer = swapValues;
+        }
+
+        return new ContainmentIndex(LongColumn.of(pickups), LongColumn.of(dropoffs), DoubleColumn.of(distances),
+            LongColumn.of(groups), levelDropoffs.toArray(new LongColumn[0]), levelDistanceSums.toArray(new DoubleColumn[0]));
+    }
+
+    /**
+     * @return copy of the index with all columns moved to the storage.
+     */
+    public ContainmentIndex copyTo(IndexStorage storage) {
+        LongColumn[] levelDropoffsCopy = new LongColumn[levelDropoffs.length];
+        DoubleColumn[] levelDistanceSumsCopy = new DoubleColumn[levelDistanceSums.length];
+        for (int level = 0; level < levelDropoffs.length; level++) {
+            levelDropoffsCopy[level] = levelDropoffs[level].copyTo(storage);
+            levelDistanceSumsCopy[level] = levelDistanceSums[level].copyTo(storage);
+        }
+        return new ContainmentIndex(pickups.copyTo(storage), dropoffs.copyTo(storage), distances.copyTo(storage),
+            groups.copyTo(storage), levelDropoffsCopy, levelDistanceSumsCopy, sample);
+    }
+
+    public int size() {
+        return pickups.size();
+    }
+
+    /**
+     * @return size of all columns in bytes.
+     */
+    public long memorySize() {
+        long result = pickups.memorySize() + dropoffs.memorySize() + distances.memorySize() + groups.memorySize();
+        for (int level = 0; level < levelDropoffs.length; level++) {
+            result += levelDropoffs[level].memorySize() + levelDistanceSums[level].memorySize();
+        }
+        return result;
+    }
+
+    /**
+     * Appends all trips of the index to the columns, e.g. to merge indexes.
+     */
+    public void appendRowsTo(TripColumns target) {
+        for (int i = 0; i < size(); i++) {
+            target.add(pickups.get(i), dropoffs.get(i), distances.get(i), (int) groups.get(i));
+        }
+    }
+
+    /**
+     * @return index of the first row with pickup >= {@code pickup}, or {@link #size()} if none.
+     */
+    public int lowerBound(long pickup) {
+        return lowerBound(pickup, 0);
+    }
+
+    /**
+     * Same as {@link #lowerBound(long)} for the case when the result is known to be at least {@code fromRow}.
+     * Searches exponentially growing ranges from {@code fromRow}, so the cost depends on the distance
+     * to the result rather than on the index size.
+     */
+    public int lowerBound(long pickup, int fromRow) {
+        int size = pickups.size();
+        int lo = fromRow;
+        int hi = fromRow;
+        for (int step = 1; hi < size && pickups.get(hi) < pickup; step *= 2) {
+            lo = hi + 1;
+            hi = (int) Math.min((long) hi + step, size);
+        }
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (pickups.get(mid) < pickup) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @return index of the first row with pickup > {@code pickup}, or {@link #size()} if none.
+     */
+    public int upperBound(long pickup) {
+        return pickup == Long.MAX_VALUE ? pickups.size() : lowerBound(pickup + 1);
+    }
+
+    /**
+     * @return {@code true} if the zone map shows that no trip is contained in the query interval.
+     */
+    public boolean isDisjoint(TimeInterval query) {
+        return size() == 0 || maxPickup < query.start || minPickup > query.end || minDropoff > query.end;
+    }
+
+    /**
+     * @return {@code true} if the zone map shows that all trips are contained in the query interval.
+     */
+    public boolean isContainedIn(TimeInterval query) {
+        return minPickup >= query.start && maxDropoff <= query.end;
+    }
+
+    /**
+     * Adds distances of all trips contained in the query interval to the accumulator.
+     */
+    public void aggregate(TimeInterval query, DoubleAccumulator accumulator) {
+        if (isContainedIn(query)) {
+            accumulator.add(size(), distanceSum);
+        } else if (!isDisjoint(query)) {
+            // trips picked up after query end can't be dropped off before it
+            aggregate(lowerBound(query.start), upperBound(query.end), query.end, accumulator);
+        }
+    }
+
+    /**
+     * Adds an estimate of trips contained in the query interval: exact totals if the zone map shows that all
+     * trips are contained, otherwise an estimate from the sample.
+     */
+    public void estimate(TimeInterval query, SampleEstimate estimate) {
+        if (isContainedIn(query)) {
+            estimate.addExact(size(), distanceSum);
+        } else if (!isDisjoint(query)) {
+            sample.estimate(query, estimate);
+        }
+    }
+
+    /**
+     * Adds distances of all trips contained in the query interval to the aggregator, by group key.
+     * The merge-sort tree is not used: its node sums are not split by group.
+     *
+     * @param groupKeys group keys by group id, see {@link GroupDictionary}.
+     */
+    public void aggregateGroups(TimeInterval query, long[] groupKeys, GroupAggregator aggregator) {
+        if (isDisjoint(query)) {
+            return;
+        }
+
+        // trips picked up after query end can't be dropped off before it
+        aggregateGroups(lowerBound(query.start), upperBound(query.end), query.end, groupKeys, aggregator);
+    }
+
+    /**
+     * Adds distances of trips from rows [fromRow, toRow) with dropoff <= {@code maxDropoff} to the aggregator,
+     * by group key.
+     *
+     * @param groupKeys group keys by group id, see {@link GroupDictionary}.
+     */
+    public void aggregateGroups(int fromRow, int toRow, long maxDropoff, long[] groupKeys,
+                                GroupAggregator aggregator) {
+        ScanKernel.local().scanGroups(dropoffs, distances, groups, fromRow, toRow, maxDropoff, groupKeys, aggregator);
+    }
+
+    /**
+     * Adds distances of trips from rows [fromRow, toRow) with dropoff <= {@code maxDropoff} to the accumulator.
+     */
+    public void aggregate(int fromRow, int toRow, long maxDropoff, DoubleAccumulator accumulator) {
+        ScanKernel kernel = ScanKernel.local();
+        long count = 0;
+        double sum = 0.0;
+
+        int firstLeaf = fromRow / LEAF_SIZE + (fromRow % LEAF_SIZE == 0 ? 0 : 1);
+        int lastLeaf = toRow / LEAF_SIZE;
+
+        if (firstLeaf >= lastLeaf) {
+            kernel.scan(dropoffs, distances, fromRow, toRow, maxDropoff);
+        } else {
+            int alignedFrom = firstLeaf * LEAF_SIZE;
+            int alignedTo = lastLeaf * LEAF_SIZE;
+            kernel.scan(dropoffs, distances, fromRow, alignedFrom, maxDropoff);
+            kernel.scan(dropoffs, distances, alignedTo, toRow, maxDropoff);
+
+            // standard bottom-up segment tree walk generalized to FANOUT children
+            int left = firstLeaf;
+            int right = lastLeaf;
+            long nodeWidth = LEAF_SIZE;
+            for (int level = 0; left < right; level++) {
+                LongColumn sortedDropoffs = levelDropoffs[level];
+                DoubleColumn distanceSums = levelDistanceSums[level];
+
+                while (left < right && left % FANOUT != 0) {
+                    int nodeStart = (int) (left * nodeWidth);
+                    int found = upperBound(sortedDropoffs, nodeStart, (int) (nodeStart + nodeWidth), maxDropoff);
+                    if (found > nodeStart) {
+                        count += found - nodeStart;
+                        sum += distanceSums.get(found - 1);
+                    }
+                    left++;
+                }
+                while (left < right && right % FANOUT != 0) {
+                    right--;
+                    int nodeStart = (int) (right * nodeWidth);
+                    int found = upperBound(sortedDropoffs, nodeStart, (int) (nodeStart + nodeWidth), maxDropoff);
+                    if (found > nodeStart) {
+                        count += found - nodeStart;
+                        sum += distanceSums.get(found - 1);
+                    }
+                }
+
+                left /= FANOUT;
+                right /= FANOUT;
+                nodeWidth *= FANOUT;
+            }
+        }
+
+        accumulator.add(count + kernel.count, sum + kernel.sum);
+    }
+
+    private static int upperBound(LongColumn sorted, int from, int to, long value) {
+        int lo = from;
+        int hi = to;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted.get(mid) <= value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static double[] nodePrefixSums(double[] values, int nodeWidth) {
+        double[] sums = new double[values.length];
+        long[] fixed = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            fixed[i] = DoubleColumn.FixedPoint.toFixed(values[i]);
+            if (fixed[i] == DoubleColumn.FixedPoint.NOT_FIXED) {
+                for (int j = 0; j < values.length; j++) {
+                    sums[j] = j % nodeWidth == 0 ? values[j] : sums[j - 1] + values[j];
+                }
+                return sums;
+            }
+        }
+
+        // sums of fixed-point values are exact, so they can be stored as fixed-point values too
+        long sum = 0;
+        for (int i = 0; i < values.length; i++) {
+            sum = i % nodeWidth == 0 ? fixed[i] : sum + fixed[i];
+            sums[i] = sum / DoubleColumn.FixedPoint.SCALE;
+        }
+        return sums;
+    }
+
+    /**
+     * Merges every pair of adjacent sorted runs of the given width. Pairs are independent,
+     * so big arrays are merged in parallel while there are several pairs.
+     */
+    static void mergePass(long[] keys, double[] values, long width, int size,
+                                  long[] keysOut, double[] valuesOut) {
+        int pairCount = (int) ((size + 2 * width - 1) / (2 * width));
+        IntStream pairs = IntStream.range(0, pairCount);
+        if (size >= PARALLEL_BUILD_ROWS && pairCount > 1) {
+            pairs = pairs.parallel();
+        }
+        pairs.forEach(pair -> {
+            long lo = 2 * width * pair;
+            int mid = (int) Math.min(lo + width, size);
+            int hi = (int) Math.min(lo + 2 * width, size);
+            merge(keys, values, (int) lo, mid, hi, keysOut, valuesOut);
+        });
+    }
+
+    private static void merge(long[] keys, double[] values, int lo, int mid, int hi,
+                              long[] keysOut, double[] valuesOut) {
+        int i = lo;
+        int j = mid;
+        for (int k = lo; k < hi; k++) {
+            if (j >= hi || (i < mid && keys[i] <= keys[j])) {
+                keysOut[k] = keys[i];
+                valuesOut[k] = values[i];
+                i++;
+            } else {
+                keysOut[k] = keys[j];
+                valuesOut[k] = values[j];
+                j++;
+            }
+        }
+    }
+
+    /**
+     * @return permutation of row indices ordering the rows by pickup timestamp, rows of equal pickups
+     * in their original order.
+     */
+    private static int[] orderByPickup(long[] pickups, int size) {
+        if (size == 0) {
+            return new int[0];
+        }
+
+        long min = pickups[0];
+        long max = pickups[0];
+        for (int i = 0; i < size; i++) {
+            min = Math.min(min, pickups[i]);
+            max = Math.max(max, pickups[i]);
+        }
+
+        // pickups relative to the minimum and row indices packed into a single sortable long;
+        // the span overflows to negative for pickups of both signs far apart
+        int indexBits = 32 - Integer.numberOfLeadingZeros(size - 1);
+        if (max - min < 0 || max - min >= 1L << (63 - indexBits)) {
+            return mergeSortOrder(pickups, size);
+        }
+
+        long[] packed = new long[size];
+        for (int i = 0; i < size; i++) {
+            packed[i] = (pickups[i] - min) << indexBits | i;
+        }
+        // sorts sequentially below its own threshold
+        Arrays.parallelSort(packed);
+
+        int[] order = new int[size];
+        long indexMask = (1L << indexBits) - 1;
+        for (int i = 0; i < size; i++) {
+            order[i] = (int) (packed[i] & indexMask);
+        }
+        return order;
+    }
+
+    /**
+     * Stable merge sort of row indices by pickup, for pickups spanning too wide to pack them with row indices.
+     */
+    private static int[] mergeSortOrder(long[] pickups, int size) {
+        int[] order = new int[size];
+        int[] buffer = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+
+        for (long width = 1; width < size; width *= 2) {
+            for (long lo = 0; lo < size; lo += 2 * width) {
+                int mid = (int) Math.min(lo + width, size);
+                int hi = (int) Math.min(lo + 2 * width, size);
+                int i = (int) lo;
+                int j = mid;
+                for (int k = (int) lo; k < hi; k++) {
+                    if (j >= hi || (i < mid && pickups[order[i]] <= pickups[order[j]])) {
+                        buffer[k] = order[i++];
+                    } else {
+                        buffer[k] = order[j++];
+                    }
+                }
+            }
+            int[] swap = order;
+            order = buffer;
+            buffer = swap;
+        }
+
+        return order;
+    }
+}
@@ -14,4 +14,23 @@ class DoubleAccumulator {
         count.increment();
         value.add(v);
     }
+
+    /**
+     * Adds a partial aggregate of {@code n} values summing up to {@code sum}.
+     */
+    public void add(long n, double sum) {
+        if (n != 0) {
+            count.add(n);
+            value.add(sum);
+        }
+    }
+
+    /**
+     * Resets the accumulator for reuse, the same way as {@link LongAdder#reset()}: only valid while there
+     * are no concurrent updates.
+     */
+    public void reset() {
+        count.reset();
+        value.reset();
+    }
 }
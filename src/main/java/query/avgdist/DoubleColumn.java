@@ -0,0 +1,177 @@
+package query.avgdist;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Read-only column of double values, either on heap or in {@link ByteBuffer}s.
+ * Heap columns of decimal values with at most two fraction digits, like trip distances in miles,
+ * are kept as 32-bit fixed-point numbers when they fit.
+ */
+abstract class DoubleColumn {
+    public abstract int size();
+
+    public abstract double get(int index);
+
+    /**
+     * Decodes values [from, from + count) to the start of the target, see {@link LongColumn#get(int, int, long[])}.
+     */
+    public void get(int from, int count, double[] target) {
+        for (int i = 0; i < count; i++) {
+            target[i] = get(from + i);
+        }
+    }
+
+    /**
+     * @return size of the values in bytes.
+     */
+    public abstract long memorySize();
+
+    /**
+     * @return heap column of the values, in the most compact encoding.
+     */
+    public static DoubleColumn of(double[] values) {
+        int[] hundredths = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            long fixed = FixedPoint.toFixed(values[i]);
+            if (fixed == FixedPoint.NOT_FIXED) {
+                return new Heap(values);
+            }
+            hundredths[i] = (int) fixed;
+        }
+        return new FixedPoint(hundredths);
+    }
+
+    /**
+     * Copies the column to the storage. {@link IndexStorage#MAPPED} columns are created by {@link IndexSnapshot} only.
+     */
+    public DoubleColumn copyTo(IndexStorage storage) {
+        switch (storage) {
+            case HEAP:
+                double[] values = new double[size()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = get(i);
+                }
+                return of(values);
+            case DIRECT:
+                ByteBuffer[] chunks = new ByteBuffer[LongColumn.chunkCount(size())];
+                for (int chunk = 0; chunk < chunks.length; chunk++) {
+                    int from = chunk << LongColumn.CHUNK_SHIFT;
+                    int count = Math.min(size() - from, 1 << LongColumn.CHUNK_SHIFT);
+                    chunks[chunk] = ByteBuffer.allocateDirect(count * 8).order(ByteOrder.LITTLE_ENDIAN);
+                    for (int i = 0; i < count; i++) {
+                        chunks[chunk].putDouble(i * 8, get(from + i));
+                    }
+                }
+                return new Buffer(chunks, size());
+            default:
+                throw new IllegalArgumentException("Can't copy column to " + storage + " storage");
+        }
+    }
+
+    static final class Heap extends DoubleColumn {
+        final double[] values;
+
+        Heap(double[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public int size() {
+            return values.length;
+        }
+
+        @Override
+        public double get(int index) {
+            return values[index];
+        }
+
+        @Override
+        public void get(int from, int count, double[] target) {
+            System.arraycopy(values, from, target, 0, count);
+        }
+
+        @Override
+        public long memorySize() {
+            return 8L * values.length;
+        }
+    }
+
+    /**
+     * Values stored as hundredths in 4 bytes. Decoded values are exactly the same doubles as the original ones:
+     * both are the doubles nearest to the same decimal number.
+     */
+    static final class FixedPoint extends DoubleColumn {
+        static final long NOT_FIXED = Long.MIN_VALUE;
+
+        static final double SCALE = 100.0;
+
+        final int[] hundredths;
+
+        FixedPoint(int[] hundredths) {
+            this.hundredths = hundredths;
+        }
+
+        /**
+         * @return value in hundredths, or {@link #NOT_FIXED} if the value isn't exactly representable in an int.
+         */
+        static long toFixed(double value) {
+            double scaled = Math.rint(value * SCALE);
+            if (!(Math.abs(scaled) <= Integer.MAX_VALUE) || scaled / SCALE != value) {
+                return NOT_FIXED;
+            }
+            return (long) scaled;
+        }
+
+        @Override
+        public int size() {
+            return hundredths.length;
+        }
+
+        @Override
+        public double get(int index) {
+            return hundredths[index] / SCALE;
+        }
+
+        @Override
+        public void get(int from, int count, double[] target) {
+            for (int i = 0; i < count; i++) {
+                target[i] = hundredths[from + i] / SCALE;
+            }
+        }
+
+        @Override
+        public long memorySize() {
+            return 4L * hundredths.length;
+        }
+    }
+
+    static final class Buffer extends DoubleColumn {
+        /**
+         * Little-endian chunks, every one but the last holds exactly 2^{@link LongColumn#CHUNK_SHIFT} values.
+         */
+        final ByteBuffer[] chunks;
+
+        private final int size;
+
+        Buffer(ByteBuffer[] chunks, int size) {
+            this.chunks = chunks;
+            this.size = size;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public double get(int index) {
+            return chunks[index >>> LongColumn.CHUNK_SHIFT].getDouble((index & LongColumn.CHUNK_MASK) << 3);
+        }
+
+        @Override
+        public long memorySize() {
+            return 8L * size;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package query.avgdist;
+
+import java.util.Arrays;
+
+/**
+ * Trip count and distance sum per group key of a group-by query, with the equality filters of the query.
+ * Open addressing over primitive arrays, so the cost of a trip doesn't depend on the number of groups.
+ * Not thread-safe.
+ */
+final class GroupAggregator {
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * Group keys of the trips to aggregate must have these bits...
+     */
+    private final long filterMask;
+
+    /**
+     * ...equal to these ones.
+     */
+    private final long filterValue;
+
+    /**
+     * Bits of group keys of grouping dimensions, the others are cleared.
+     */
+    private final long groupMask;
+
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private boolean[] used = new boolean[INITIAL_CAPACITY];
+    private long[] counts = new long[INITIAL_CAPACITY];
+    private double[] sums = new double[INITIAL_CAPACITY];
+    private int size;
+
+    GroupAggregator(long filterMask, long filterValue, long groupMask) {
+        this.filterMask = filterMask;
+        this.filterValue = filterValue;
+        this.groupMask = groupMask;
+    }
+
+    /**
+     * Adds the trip if its group key passes the filters.
+     */
+    public void add(long groupKey, double distance) {
+        if ((groupKey & filterMask) != filterValue) {
+            return;
+        }
+
+        int slot = slotOf(groupKey & groupMask);
+        counts[slot]++;
+        sums[slot] += distance;
+    }
+
+    /**
+     * Adds all groups of the other aggregator, e.g. of another job of the same query.
+     */
+    public void merge(GroupAggregator other) {
+        for (int i = 0; i < other.keys.length; i++) {
+            if (other.used[i]) {
+                int slot = slotOf(other.keys[i]);
+                counts[slot] += other.counts[i];
+                sums[slot] += other.sums[i];
+            }
+        }
+    }
+
+    /**
+     * @return new empty aggregator with the same filters and grouping.
+     */
+    public GroupAggregator empty() {
+        return new GroupAggregator(filterMask, filterValue, groupMask);
+    }
+
+    public void clear() {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    /**
+     * @return number of slots; slots without a group have zero count.
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+    public boolean isUsed(int slot) {
+        return used[slot];
+    }
+
+    public long key(int slot) {
+        return keys[slot];
+    }
+
+    public long count(int slot) {
+        return counts[slot];
+    }
+
+    public double sum(int slot) {
+        return sums[slot];
+    }
+
+    private int slotOf(long key) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (used[slot]) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (2 * (size + 1) > keys.length) {
+            grow();
+            return slotOf(key);
+        }
+        used[slot] = true;
+        keys[slot] = key;
+        counts[slot] = 0;
+        sums[slot] = 0.0;
+        size++;
+        return slot;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        boolean[] oldUsed = used;
+        long[] oldCounts = counts;
+        double[] oldSums = sums;
+
+        keys = new long[2 * oldKeys.length];
+        used = new boolean[keys.length];
+        counts = new long[keys.length];
+        sums = new double[keys.length];
+        size = 0;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) {
+                int slot = slotOf(oldKeys[i]);
+                counts[slot] = oldCounts[i];
+                sums[slot] = oldSums[i];
+            }
+        }
+    }
+
+    static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
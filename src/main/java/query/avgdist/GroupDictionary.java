@@ -0,0 +1,105 @@
+package query.avgdist;
+
+import java.util.Arrays;
+
+/**
+ * Dense ids of distinct group keys (values of {@link TripDimension#KEY_DIMENSIONS} packed into a long),
+ * so every trip stores a compact group id instead of its dimension values.
+ * Id 0 is always the key with all dimensions unknown.
+ * <p>
+ * Ids are found by open addressing over primitive arrays, like {@link GroupAggregator} does,
+ * since every ingested row looks its key up.
+ * <p>
+ * Not thread-safe: every ingestion worker fills its own dictionary, the dictionary of a published
+ * {@link IndexSnapshot} is never modified.
+ */
+final class GroupDictionary {
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * Hash table of {@code id + 1} of the keys, 0 for empty slots.
+     */
+    private int[] slots = new int[INITIAL_CAPACITY];
+
+    /**
+     * Keys by id, valid up to {@link #size()}.
+     */
+    long[] keys = new long[16];
+
+    private int size;
+
+    GroupDictionary() {
+        idOf(TripDimension.UNKNOWN_KEY);
+    }
+
+    /**
+     * @param keys keys by id, starting with {@link TripDimension#UNKNOWN_KEY}.
+     */
+    GroupDictionary(long[] keys) {
+        for (long key : keys) {
+            idOf(key);
+        }
+        if (size != keys.length || this.keys[0] != TripDimension.UNKNOWN_KEY) {
+            throw new IllegalArgumentException("Malformed group dictionary");
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return id of the key, new ids are assigned in order.
+     */
+    public int idOf(long key) {
+        int mask = slots.length - 1;
+        int slot = GroupAggregator.hash(key) & mask;
+        while (slots[slot] != 0) {
+            int id = slots[slot] - 1;
+            if (keys[id] == key) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (2 * (size + 1) > slots.length) {
+            grow();
+            return idOf(key);
+        }
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, 2 * size);
+        }
+        keys[size] = key;
+        slots[slot] = size + 1;
+        return size++;
+    }
+
+    /**
+     * Adds all keys of the other dictionary.
+     *
+     * @return new id in this dictionary of every id of the other one.
+     */
+    public int[] addAll(GroupDictionary other) {
+        int[] mapping = new int[other.size];
+        for (int id = 0; id < other.size; id++) {
+            mapping[id] = idOf(other.keys[id]);
+        }
+        return mapping;
+    }
+
+    private void grow() {
+        slots = new int[2 * slots.length];
+        int mask = slots.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = GroupAggregator.hash(keys[id]) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id + 1;
+        }
+    }
+
+    public GroupDictionary copy() {
+        return new GroupDictionary(Arrays.copyOf(keys, size));
+    }
+}
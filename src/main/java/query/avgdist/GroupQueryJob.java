@@ -0,0 +1,93 @@
+package query.avgdist;
+
+import java.util.Queue;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Job that aggregates trips from a row range of {@link ContainmentIndex} by group key, for a group-by query.
+ * <p>
+ * Splits like {@link QueryJob}. Every job that isn't split fills its own {@link GroupAggregator},
+ * so workers share nothing while scanning; aggregators are merged once all jobs of the query are done.
+ * <p>
+ * Jobs of a cancelled or timed out query do nothing.
+ */
+class GroupQueryJob extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    public final ContainmentIndex index;
+
+    /**
+     * Row range [fromRow, toRow) of the index, i.e. range of pickup timestamps.
+     */
+    public final int fromRow;
+    public final int toRow;
+
+    /**
+     * Maximum dropoff timestamp, i.e. end of query interval.
+     */
+    public final long maxDropoff;
+
+    /**
+     * Group keys by group id, see {@link GroupDictionary}.
+     */
+    public final long[] groupKeys;
+
+    /**
+     * Aggregator with the filters and grouping of the query, not filled itself.
+     */
+    public final GroupAggregator template;
+
+    /**
+     * Filled aggregators of jobs that were not split.
+     */
+    public final Queue<GroupAggregator> results;
+
+    /**
+     * Maximum row count of a job aggregated without splitting.
+     */
+    public final int maxRows;
+
+    public final QueryDeadline deadline;
+
+    public GroupQueryJob(ContainmentIndex index, int fromRow, int toRow, long maxDropoff, long[] groupKeys,
+                         GroupAggregator template, Queue<GroupAggregator> results, int maxRows,
+                         QueryDeadline deadline) {
+        this.index = index;
+        this.fromRow = fromRow;
+        this.toRow = toRow;
+        this.maxDropoff = maxDropoff;
+        this.groupKeys = groupKeys;
+        this.template = template;
+        this.results = results;
+        this.maxRows = maxRows;
+        this.deadline = deadline;
+    }
+
+    public int rowCount() {
+        return toRow - fromRow;
+    }
+
+    @Override
+    protected void compute() {
+        if (!deadline.check()) {
+            return;
+        }
+
+        if (rowCount() > maxRows) {
+            int center = fromRow + rowCount() / 2;
+            invokeAll(
+                new GroupQueryJob(index, fromRow, center, maxDropoff, groupKeys, template, results, maxRows, deadline),
+                new GroupQueryJob(index, center, toRow, maxDropoff, groupKeys, template, results, maxRows, deadline));
+            return;
+        }
+
+        GroupAggregator aggregator = template.empty();
+        index.aggregateGroups(fromRow, toRow, maxDropoff, groupKeys, aggregator);
+        results.add(aggregator);
+    }
+
+    @Override
+    public String toString() {
+        return "rows [" + fromRow + ", " + toRow + "), dropoff <= " + maxDropoff;
+    }
+}
@@ -0,0 +1,266 @@
+package query.avgdist;
+
+import de.siegmar.fastcsv.reader.CsvReader;
+import de.siegmar.fastcsv.reader.CsvRow;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Rows of a gzip-compressed CSV file, read by a pipeline of stages on separate threads:
+ * <ol>
+ * <li>decompression of the file into chunks of bytes;</li>
+ * <li>splitting of the chunks into rows and fields by {@link CsvReader}, in batches of rows;</li>
+ * <li>parsing of the fields, by the thread iterating over the pipeline.</li>
+ * </ol>
+ * Stages are connected by bounded queues, so they overlap with at most {@link #QUEUE_CAPACITY} items in flight
+ * between any two of them: reading a file takes as long as its slowest stage, and memory doesn't grow with file size.
+ * <p>
+ * A failure of a stage fails the iteration with {@link UncheckedIOException} once the rows before the failure are
+ * consumed. {@link #close()} stops the stages, whether or not all rows are consumed.
+ */
+final class GzipCsvPipeline implements Iterable<CsvRow>, Closeable {
+    static final int CHUNK_SIZE = 1 << 20;
+    static final int ROW_BATCH_SIZE = 4096;
+    static final int QUEUE_CAPACITY = 4;
+
+    /**
+     * End of stream markers.
+     */
+    private static final byte[] END_OF_CHUNKS = new byte[0];
+    private static final List<CsvRow> END_OF_ROWS = Collections.emptyList();
+
+    private final File gzipFile;
+
+    private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final BlockingQueue<List<CsvRow>> rowBatches = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    private final Thread decompressor;
+    private final Thread splitter;
+
+    /**
+     * First failure of a stage, published to the next stage before its end of stream marker.
+     */
+    private volatile IOException failure;
+
+    private boolean iterated;
+
+    /**
+     * Starts the decompression and splitting stages.
+     */
+    GzipCsvPipeline(File gzipFile) {
+        this.gzipFile = gzipFile;
+        this.decompressor = new Thread(this::decompress, "gunzip " + gzipFile.getName());
+        this.splitter = new Thread(this::split, "split " + gzipFile.getName());
+        decompressor.setDaemon(true);
+        splitter.setDaemon(true);
+        decompressor.start();
+        splitter.start();
+    }
+
+    static boolean isGzipped(File file) {
+        return file.getName().endsWith(".gz");
+    }
+
+    /**
+     * @return rows of the file; can be iterated once.
+     */
+    @Override
+    public Iterator<CsvRow> iterator() {
+        if (iterated) {
+            throw new IllegalStateException("Rows of " + gzipFile + " are already iterated");
+        }
+        iterated = true;
+
+        return new Iterator<CsvRow>() {
+            private List<CsvRow> batch = Collections.emptyList();
+            private int next;
+            private boolean ended;
+
+            @Override
+            public boolean hasNext() {
+                while (next == batch.size()) {
+                    if (ended) {
+                        return false;
+                    }
+                    batch = take(rowBatches);
+                    next = 0;
+                    if (batch == END_OF_ROWS) {
+                        ended = true;
+                        if (failure != null) {
+                            throw new UncheckedIOException(failure);
+                        }
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public CsvRow next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return batch.get(next++);
+            }
+        };
+    }
+
+    /**
+     * Stops the stages; rows not consumed yet are dropped.
+     */
+    @Override
+    public void close() {
+        decompressor.interrupt();
+        splitter.interrupt();
+    }
+
+    private void decompress() {
+        try (InputStream in = new GZIPInputStream(new FileInputStream(gzipFile), 1 << 16)) {
+            while (true) {
+                byte[] chunk = new byte[CHUNK_SIZE];
+                int length = readFully(in, chunk);
+                if (length == 0) {
+                    break;
+                }
+                chunks.put(length == CHUNK_SIZE ? chunk : Arrays.copyOf(chunk, length));
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (InterruptedException e) {
+            return;
+        }
+        putQuietly(chunks, END_OF_CHUNKS);
+    }
+
+    private void split() {
+        try (CsvReader csvReader = CsvReader.builder()
+            .skipEmptyRows(true)
+            .errorOnDifferentFieldCount(false)
+            .build(new InputStreamReader(new ChunkInputStream(), StandardCharsets.UTF_8))) {
+
+            List<CsvRow> batch = new ArrayList<>(ROW_BATCH_SIZE);
+            for (CsvRow row : csvReader) {
+                batch.add(row);
+                if (batch.size() == ROW_BATCH_SIZE) {
+                    rowBatches.put(batch);
+                    batch = new ArrayList<>(ROW_BATCH_SIZE);
+                }
+            }
+            if (!batch.isEmpty()) {
+                rowBatches.put(batch);
+            }
+        } catch (InterruptedIOException | InterruptedException e) {
+            return;
+        } catch (IOException e) {
+            fail(e);
+        } catch (UncheckedIOException e) {
+            if (e.getCause() instanceof InterruptedIOException) {
+                return;
+            }
+            fail(e.getCause());
+        }
+        putQuietly(rowBatches, END_OF_ROWS);
+    }
+
+    private void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] target) throws IOException {
+        int length = 0;
+        while (length < target.length) {
+            int read = in.read(target, length, target.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+        return length;
+    }
+
+    private static <T> T take(BlockingQueue<T> queue) {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("Interrupted while reading CSV rows"));
+        }
+    }
+
+    private static <T> void putQuietly(BlockingQueue<T> queue, T item) {
+        try {
+            queue.put(item);
+        } catch (InterruptedException e) {
+            // the pipeline is closed, nobody waits for the item
+        }
+    }
+
+    /**
+     * Bytes of the decompressed chunks, as the input of the splitting stage.
+     */
+    private final class ChunkInputStream extends InputStream {
+        private byte[] chunk = new byte[0];
+        private int position;
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+            return chunk[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] target, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!nextChunk()) {
+                return -1;
+            }
+            int count = Math.min(length, chunk.length - position);
+            System.arraycopy(chunk, position, target, offset, count);
+            position += count;
+            return count;
+        }
+
+        /**
+         * @return {@code false} at the end of the stream.
+         */
+        private boolean nextChunk() throws IOException {
+            while (position == chunk.length) {
+                if (chunk == END_OF_CHUNKS) {
+                    return false;
+                }
+                try {
+                    chunk = chunks.take();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while decompressing " + gzipFile);
+                }
+                position = 0;
+                if (chunk == END_OF_CHUNKS && failure != null) {
+                    throw failure;
+                }
+            }
+            return true;
+        }
+    }
+}
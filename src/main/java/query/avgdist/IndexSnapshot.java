@@ -0,0 +1,603 @@
+package query.avgdist;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Immutable state of loaded data: indexes, their spread and source files. Published to query threads
+ * as a whole, so every query sees a consistent view while data is reloaded or appended.
+ * <p>
+ * Can be saved to binary files, that saves CSV parsing and index building on restarts.
+ * Snapshot file is valid only for the same set of source files with the same sizes and modification times.
+ * Every segment is saved to a file of its own next to the snapshot file, named after it, and the snapshot file
+ * refers to the segment files. Segments are immutable and reused by later snapshots, so saving a snapshot after
+ * an append writes only the new segments; files of segments that are no longer referenced are deleted.
+ * So a snapshot file must be written by a single instance at a time.
+ * <p>
+ * All values are little-endian 8-byte words, so every array is 8-byte aligned in the file and can be mapped
+ * as is; compact heap encodings of columns are decoded when written and encoded again when read to heap.
+ * Strings are written as length, then UTF-8 bytes padded to 8. Snapshot file:
+ * <pre>
+ * magic, version,
+ * source file count, then per file: name, size, modification time,
+ * spread start, spread end,
+ * group key count, group keys,
+ * index count, then per index: passenger count, segment count,
+ *     then per segment: segment file name, row count.
+ * </pre>
+ * Segment file:
+ * <pre>
+ * segment magic, version, row count, level count, pickups, dropoffs, distances, group ids,
+ *     then per level: sorted dropoffs, distance prefix sums.
+ * </pre>
+ */
+final class IndexSnapshot {
+    private static final long MAGIC = 0x5845444e49475641L; // "AVGINDEX"
+
+    private static final long SEGMENT_MAGIC = 0x544e454d47455347L; // "GSEGMENT"
+
+    /**
+     * Format version, to be incremented on every layout change.
+     */
+    static final long VERSION = 4;
+
+    private static final String SEGMENT_FILE_SUFFIX = ".segment";
+
+    /**
+     * Maximum size of mapped file region when reading.
+     */
+    private static final int MAPPED_WINDOW_SIZE = 1 << 28;
+
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    static final IndexSnapshot EMPTY = new IndexSnapshot(Collections.emptyList(), null, Collections.emptyMap(),
+        new GroupDictionary(), Collections.emptyMap());
+
+    /**
+     * Source files ordered by name.
+     */
+    final List<SourceFile> sources;
+
+    /**
+     * Common spread of all indexes, {@code null} if there are no indexes.
+     */
+    final TimeInterval spread;
+
+    final Map<Integer, SegmentedIndex> indexPerPassCnt;
+
+    /**
+     * Group keys of the ids stored in the indexes, never modified.
+     */
+    final GroupDictionary groups;
+
+    /**
+     * Names of saved segment files by segment, compared by identity. Segments without a file aren't saved yet;
+     * the map may also have segments of the snapshot this one was built from, until this one is saved.
+     */
+    final Map<ContainmentIndex, String> segmentFiles;
+
+    IndexSnapshot(List<SourceFile> sources, TimeInterval spread, Map<Integer, SegmentedIndex> indexPerPassCnt,
+                  GroupDictionary groups, Map<ContainmentIndex, String> segmentFiles) {
+        this.sources = Collections.unmodifiableList(sources);
+        this.spread = spread;
+        this.indexPerPassCnt = Collections.unmodifiableMap(indexPerPassCnt);
+        this.groups = groups;
+        this.segmentFiles = Collections.unmodifiableMap(segmentFiles);
+    }
+
+    public boolean isEmpty() {
+        return indexPerPassCnt.isEmpty();
+    }
+
+    /**
+     * Identity of a source CSV file.
+     */
+    static final class SourceFile {
+        final String name;
+        final long size;
+        final long lastModified;
+
+        SourceFile(String name, long size, long lastModified) {
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof SourceFile)) {
+                return false;
+            }
+            SourceFile other = (SourceFile) o;
+            return size == other.size && lastModified == other.lastModified && name.equals(other.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, size, lastModified);
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + size + " bytes, modified " + lastModified + ")";
+        }
+    }
+
+    /**
+     * @return identities of the files ordered by name.
+     */
+    static List<SourceFile> describe(File[] sourceFiles) {
+        List<SourceFile> result = new ArrayList<>();
+        for (File file : sourceFiles) {
+            result.add(new SourceFile(file.getName(), file.length(), file.lastModified()));
+        }
+        result.sort(Comparator.comparing(sourceFile -> sourceFile.name));
+        return result;
+    }
+
+    /**
+     * Reads the snapshot if it exists and was written for the same source files.
+     *
+     * @param storage storage for index columns; {@link IndexStorage#MAPPED} columns refer to the segment files directly.
+     * @return snapshot or empty {@code Optional} if there is no up-to-date snapshot.
+     * @throws IOException if the file can't be read or has unknown format.
+     */
+    static Optional<IndexSnapshot> read(Path file, List<SourceFile> sources, IndexStorage storage) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return Optional.empty();
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Reader reader = new Reader(channel);
+
+            if (reader.readLong() != MAGIC) {
+                throw new IOException(file + " is not an index snapshot");
+            }
+            long version = reader.readLong();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + " in " + file);
+            }
+
+            long sourceCount = reader.readLong();
+            List<SourceFile> snapshotSources = new ArrayList<>();
+            for (long i = 0; i < sourceCount; i++) {
+                snapshotSources.add(new SourceFile(reader.readString(), reader.readLong(), reader.readLong()));
+            }
+            if (!snapshotSources.equals(sources)) {
+                return Optional.empty();
+            }
+
+            TimeInterval spread = new TimeInterval(reader.readLong(), reader.readLong());
+
+            long[] groupKeys = new long[(int) reader.readLong()];
+            for (int i = 0; i < groupKeys.length; i++) {
+                groupKeys[i] = reader.readLong();
+            }
+            GroupDictionary groups = new GroupDictionary(groupKeys);
+
+            Map<Integer, SegmentedIndex> indexPerPassCnt = new HashMap<>();
+            Map<ContainmentIndex, String> segmentFiles = new IdentityHashMap<>();
+            long indexCount = reader.readLong();
+            for (long i = 0; i < indexCount; i++) {
+                int passCnt = (int) reader.readLong();
+                long segmentCount = reader.readLong();
+
+                List<ContainmentIndex> segments = new ArrayList<>();
+                for (long segment = 0; segment < segmentCount; segment++) {
+                    String segmentFile = reader.readString();
+                    int rows = (int) reader.readLong();
+                    ContainmentIndex index = readSegment(segmentFile(file, segmentFile), rows, storage);
+                    segments.add(index);
+                    segmentFiles.put(index, segmentFile);
+                }
+
+                indexPerPassCnt.put(passCnt, new SegmentedIndex(segments));
+            }
+
+            return Optional.of(new IndexSnapshot(snapshotSources, spread, indexPerPassCnt, groups, segmentFiles));
+        }
+    }
+
+    private static ContainmentIndex readSegment(Path file, int rows, IndexStorage storage) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Reader reader = new Reader(channel);
+
+            if (reader.readLong() != SEGMENT_MAGIC) {
+                throw new IOException(file + " is not an index segment");
+            }
+            long version = reader.readLong();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + " in " + file);
+            }
+            if (reader.readLong() != rows) {
+                throw new IOException("Unexpected row count in " + file);
+            }
+            int levels = (int) reader.readLong();
+
+            LongColumn pickups = reader.readLongColumn(rows, storage);
+            LongColumn dropoffs = reader.readLongColumn(rows, storage);
+            DoubleColumn distances = reader.readDoubleColumn(rows, storage);
+            LongColumn groupIds = reader.readLongColumn(rows, storage);
+            LongColumn[] levelDropoffs = new LongColumn[levels];
+            DoubleColumn[] levelDistanceSums = new DoubleColumn[levels];
+            for (int level = 0; level < levels; level++) {
+                levelDropoffs[level] = reader.readLongColumn(rows, storage);
+                levelDistanceSums[level] = reader.readDoubleColumn(rows, storage);
+            }
+
+            return new ContainmentIndex(pickups, dropoffs, distances, groupIds, levelDropoffs, levelDistanceSums);
+        }
+    }
+
+    /**
+     * Writes files of the segments that don't have one yet, then the snapshot file, then deletes files of segments
+     * that are no longer referenced. The snapshot file is replaced atomically, so concurrent readers never see
+     * partial snapshots.
+     *
+     * @return the snapshot with files of all its segments and only them.
+     */
+    static IndexSnapshot write(Path file, IndexSnapshot snapshot) throws IOException {
+        Path absoluteFile = file.toAbsolutePath();
+        Map<ContainmentIndex, String> segmentFiles = new IdentityHashMap<>();
+        for (SegmentedIndex index : snapshot.indexPerPassCnt.values()) {
+            for (ContainmentIndex segment : index.segments) {
+                String segmentFile = snapshot.segmentFiles.get(segment);
+                if (segmentFile == null || !Files.isRegularFile(segmentFile(absoluteFile, segmentFile))) {
+                    segmentFile = writeSegment(absoluteFile, segment);
+                }
+                segmentFiles.put(segment, segmentFile);
+            }
+        }
+
+        Path tempFile = Files.createTempFile(absoluteFile.getParent(), absoluteFile.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+                Writer writer = new Writer(channel);
+
+                writer.writeLong(MAGIC);
+                writer.writeLong(VERSION);
+
+                writer.writeLong(snapshot.sources.size());
+                for (SourceFile source : snapshot.sources) {
+                    writer.writeString(source.name);
+                    writer.writeLong(source.size);
+                    writer.writeLong(source.lastModified);
+                }
+
+                writer.writeLong(snapshot.spread.start);
+                writer.writeLong(snapshot.spread.end);
+
+                writer.writeLong(snapshot.groups.size());
+                for (int i = 0; i < snapshot.groups.size(); i++) {
+                    writer.writeLong(snapshot.groups.keys[i]);
+                }
+
+                writer.writeLong(snapshot.indexPerPassCnt.size());
+                for (Map.Entry<Integer, SegmentedIndex> entry : snapshot.indexPerPassCnt.entrySet()) {
+                    writer.writeLong(entry.getKey());
+                    writer.writeLong(entry.getValue().segments.size());
+
+                    for (ContainmentIndex segment : entry.getValue().segments) {
+                        writer.writeString(segmentFiles.get(segment));
+                        writer.writeLong(segment.size());
+                    }
+                }
+
+                writer.flush();
+                channel.force(false);
+            }
+
+            Files.move(tempFile, absoluteFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+
+        deleteUnreferencedSegments(absoluteFile, segmentFiles.values());
+        return new IndexSnapshot(snapshot.sources, snapshot.spread, snapshot.indexPerPassCnt, snapshot.groups,
+            segmentFiles);
+    }
+
+    /**
+     * @return name of the new segment file.
+     */
+    private static String writeSegment(Path snapshotFile, ContainmentIndex segment) throws IOException {
+        Path file = Files.createTempFile(snapshotFile.getParent(), snapshotFile.getFileName() + ".", SEGMENT_FILE_SUFFIX);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Writer writer = new Writer(channel);
+
+            writer.writeLong(SEGMENT_MAGIC);
+            writer.writeLong(VERSION);
+            writer.writeLong(segment.size());
+            writer.writeLong(segment.levelDropoffs.length);
+
+            writer.writeColumn(segment.pickups);
+            writer.writeColumn(segment.dropoffs);
+            writer.writeColumn(segment.distances);
+            writer.writeColumn(segment.groups);
+            for (int level = 0; level < segment.levelDropoffs.length; level++) {
+                writer.writeColumn(segment.levelDropoffs[level]);
+                writer.writeColumn(segment.levelDistanceSums[level]);
+            }
+
+            writer.flush();
+            channel.force(false);
+        }
+        return file.getFileName().toString();
+    }
+
+    /**
+     * Deletes segment files of the snapshot file that are not referenced, e.g. of merged segments or left
+     * by a failed write. Mapped segments stay readable where the OS allows deleting mapped files; otherwise
+     * deletion fails, and it's retried on the next write.
+     */
+    private static void deleteUnreferencedSegments(Path snapshotFile, Collection<String> referenced) throws IOException {
+        String prefix = snapshotFile.getFileName() + ".";
+        Set<String> names = new HashSet<>(referenced);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(snapshotFile.getParent())) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.startsWith(prefix) && name.endsWith(SEGMENT_FILE_SUFFIX) && !names.contains(name)) {
+                    try {
+                        Files.deleteIfExists(file);
+                    } catch (IOException e) {
+                        AverageDistancesImpl.warn("Failed to delete unreferenced index segment " + file + ": " + e);
+                    }
+                }
+            }
+        }
+    }
+
+    private static Path segmentFile(Path snapshotFile, String name) throws IOException {
+        Path file = snapshotFile.toAbsolutePath().resolveSibling(name);
+        if (!name.endsWith(SEGMENT_FILE_SUFFIX) || !file.getParent().equals(snapshotFile.toAbsolutePath().getParent())) {
+            throw new IOException("Malformed segment file name " + name);
+        }
+        return file;
+    }
+
+    /**
+     * Sequential reader mapping the file window by window, as a single mapping is limited to 2GB.
+     */
+    private static final class Reader {
+        private final FileChannel channel;
+        private final long fileSize;
+        private MappedByteBuffer window;
+        private long windowStart;
+
+        Reader(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.fileSize = channel.size();
+        }
+
+        long readLong() throws IOException {
+            ensureMapped(8);
+            return window.getLong();
+        }
+
+        String readString() throws IOException {
+            int length = (int) readLong();
+            byte[] bytes = new byte[length];
+            ensureMapped(padded(length));
+            window.get(bytes);
+            window.position(window.position() + padded(length) - length);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        LongColumn readLongColumn(int count, IndexStorage storage) throws IOException {
+            if (storage == IndexStorage.HEAP) {
+                long[] values = new long[count];
+                for (int done = 0; done < count; ) {
+                    ensureMapped(8);
+                    int chunk = Math.min(window.remaining() / 8, count - done);
+                    window.asLongBuffer().get(values, done, chunk);
+                    window.position(window.position() + chunk * 8);
+                    done += chunk;
+                }
+                return LongColumn.of(values);
+            }
+            return new LongColumn.Buffer(readChunks(count, storage), count);
+        }
+
+        DoubleColumn readDoubleColumn(int count, IndexStorage storage) throws IOException {
+            if (storage == IndexStorage.HEAP) {
+                double[] values = new double[count];
+                for (int done = 0; done < count; ) {
+                    ensureMapped(8);
+                    int chunk = Math.min(window.remaining() / 8, count - done);
+                    window.asDoubleBuffer().get(values, done, chunk);
+                    window.position(window.position() + chunk * 8);
+                    done += chunk;
+                }
+                return DoubleColumn.of(values);
+            }
+            return new DoubleColumn.Buffer(readChunks(count, storage), count);
+        }
+
+        /**
+         * Reads {@code count} 8-byte values to buffer chunks of {@link LongColumn.Buffer} layout.
+         * {@link IndexStorage#MAPPED} chunks are separate read-only mappings of the file.
+         */
+        private ByteBuffer[] readChunks(int count, IndexStorage storage) throws IOException {
+            ByteBuffer[] chunks = new ByteBuffer[LongColumn.chunkCount(count)];
+            for (int chunk = 0; chunk < chunks.length; chunk++) {
+                int bytes = Math.min(count - (chunk << LongColumn.CHUNK_SHIFT), 1 << LongColumn.CHUNK_SHIFT) * 8;
+                if (storage == IndexStorage.MAPPED) {
+                    long position = position();
+                    if (position + bytes > fileSize) {
+                        throw new IOException("Unexpected end of snapshot file");
+                    }
+                    chunks[chunk] = channel.map(FileChannel.MapMode.READ_ONLY, position, bytes);
+                    seek(position + bytes);
+                } else {
+                    chunks[chunk] = ByteBuffer.allocateDirect(bytes);
+                    while (chunks[chunk].hasRemaining()) {
+                        ensureMapped(8);
+                        ByteBuffer source = window.duplicate();
+                        source.limit(source.position() + Math.min(source.remaining(), chunks[chunk].remaining()));
+                        window.position(source.limit());
+                        chunks[chunk].put(source);
+                    }
+                }
+                chunks[chunk].order(ByteOrder.LITTLE_ENDIAN);
+            }
+            return chunks;
+        }
+
+        private long position() {
+            return window == null ? windowStart : windowStart + window.position();
+        }
+
+        private void seek(long position) {
+            window = null;
+            windowStart = position;
+        }
+
+        /**
+         * Makes sure that the current window has at least {@code bytes} bytes remaining.
+         */
+        private void ensureMapped(int bytes) throws IOException {
+            if (window != null && window.remaining() >= bytes) {
+                return;
+            }
+
+            long position = position();
+            long size = Math.min(MAPPED_WINDOW_SIZE, fileSize - position);
+            if (size < bytes) {
+                throw new IOException("Unexpected end of snapshot file");
+            }
+
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            window.order(ByteOrder.LITTLE_ENDIAN);
+            windowStart = position;
+        }
+    }
+
+    /**
+     * Sequential buffered writer.
+     */
+    private static final class Writer {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        Writer(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void writeLong(long value) throws IOException {
+            ensureRemaining(8);
+            buffer.putLong(value);
+        }
+
+        void writeString(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeLong(bytes.length);
+            byte[] padded = Arrays.copyOf(bytes, padded(bytes.length));
+            for (int done = 0; done < padded.length; ) {
+                ensureRemaining(8);
+                int chunk = Math.min(buffer.remaining(), padded.length - done);
+                buffer.put(padded, done, chunk);
+                done += chunk;
+            }
+        }
+
+        void writeColumn(LongColumn column) throws IOException {
+            if (column instanceof LongColumn.Heap) {
+                long[] values = ((LongColumn.Heap) column).values;
+                for (int done = 0; done < values.length; ) {
+                    ensureRemaining(8);
+                    int chunk = Math.min(buffer.remaining() / 8, values.length - done);
+                    buffer.asLongBuffer().put(values, done, chunk);
+                    buffer.position(buffer.position() + chunk * 8);
+                    done += chunk;
+                }
+            } else if (column instanceof LongColumn.Buffer) {
+                writeChunks(((LongColumn.Buffer) column).chunks);
+            } else {
+                for (int i = 0; i < column.size(); i++) {
+                    writeLong(column.get(i));
+                }
+            }
+        }
+
+        void writeColumn(DoubleColumn column) throws IOException {
+            if (column instanceof DoubleColumn.Heap) {
+                double[] values = ((DoubleColumn.Heap) column).values;
+                for (int done = 0; done < values.length; ) {
+                    ensureRemaining(8);
+                    int chunk = Math.min(buffer.remaining() / 8, values.length - done);
+                    buffer.asDoubleBuffer().put(values, done, chunk);
+                    buffer.position(buffer.position() + chunk * 8);
+                    done += chunk;
+                }
+            } else if (column instanceof DoubleColumn.Buffer) {
+                writeChunks(((DoubleColumn.Buffer) column).chunks);
+            } else {
+                for (int i = 0; i < column.size(); i++) {
+                    writeLong(Double.doubleToRawLongBits(column.get(i)));
+                }
+            }
+        }
+
+        /**
+         * Writes little-endian buffer chunks as is.
+         */
+        private void writeChunks(ByteBuffer[] chunks) throws IOException {
+            for (ByteBuffer chunk : chunks) {
+                ByteBuffer source = chunk.duplicate();
+                source.clear();
+                while (source.hasRemaining()) {
+                    ensureRemaining(8);
+                    ByteBuffer part = source.duplicate();
+                    part.limit(part.position() + Math.min(part.remaining(), buffer.remaining()));
+                    source.position(part.limit());
+                    buffer.put(part);
+                }
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        private void ensureRemaining(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+    }
+
+    private static int padded(int length) {
+        return (length + 7) & ~7;
+    }
+}
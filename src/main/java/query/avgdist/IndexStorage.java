@@ -0,0 +1,22 @@
+package query.avgdist;
+
+/**
+ * Where index columns of {@link AverageDistancesImpl} are kept.
+ */
+public enum IndexStorage {
+    /**
+     * Java arrays on the garbage-collected heap.
+     */
+    HEAP,
+
+    /**
+     * Direct {@link java.nio.ByteBuffer}s outside of the heap.
+     */
+    DIRECT,
+
+    /**
+     * Read-only memory mapping of the segment files of the index snapshot, shared through OS page cache.
+     * Requires snapshot file to be configured.
+     */
+    MAPPED
+}
@@ -0,0 +1,138 @@
+package query.avgdist;
+
+import de.siegmar.fastcsv.reader.CsvReader;
+import de.siegmar.fastcsv.reader.CsvRow;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Trips loaded by a single ingestion worker, grouped by passengerCount value.
+ * Not thread-safe: every worker fills its own buffer, buffers are merged once loading is over.
+ */
+class IngestionBuffer {
+    final Map<Integer, TripColumns> columnsPerPassCnt = new HashMap<>();
+
+    /**
+     * Dictionary of group ids of the loaded trips, local to the buffer.
+     */
+    final GroupDictionary groups = new GroupDictionary();
+
+    long minTimestamp = Long.MAX_VALUE;
+    long maxTimestamp = Long.MIN_VALUE;
+
+    long loadedRows;
+    long invertedRows;
+    long unparseableRows;
+
+    /**
+     * Parsing target reused for all rows.
+     */
+    private final InputTuple tuple = new InputTuple();
+
+    /**
+     * Loads all valid rows of the CSV file, reporting invalid ones with warnings.
+     * Gzip-compressed files ({@code .csv.gz}) are decompressed on the fly by a {@link GzipCsvPipeline}.
+     */
+    public void load(File csvFile) {
+        load(csvFile, AverageDistancesImpl::warn);
+    }
+
+    /**
+     * Same as {@link #load(File)}, reporting invalid rows to the given reporter.
+     */
+    void load(File csvFile, Consumer<String> errorReporter) {
+        String fileName = csvFile.getName();
+        AverageDistancesImpl.debug("Loading " + fileName);
+
+        if (GzipCsvPipeline.isGzipped(csvFile)) {
+            try (GzipCsvPipeline rows = new GzipCsvPipeline(csvFile)) {
+                load(rows, fileName, errorReporter);
+            } catch (UncheckedIOException e) {
+                AverageDistancesImpl.letItCrash("Failed to read " + csvFile + ", message: " + e.getCause().getMessage());
+            }
+            return;
+        }
+
+        try (CsvReader csvReader = CsvReader.builder()
+            .skipEmptyRows(true)
+            .errorOnDifferentFieldCount(false)
+            .build(csvFile.toPath().toAbsolutePath())) {
+            load(csvReader, fileName, errorReporter);
+        } catch (IOException e) {
+            AverageDistancesImpl.letItCrash("Failed to read " + csvFile + ", message: " + e.getMessage());
+        }
+    }
+
+    private void load(Iterable<CsvRow> rows, String fileName, Consumer<String> errorReporter) {
+        int[] keyColumns = null;
+        for (CsvRow row : rows) {
+            if (keyColumns == null) {
+                keyColumns = InputTuple.keyColumns(row);
+                continue;
+            }
+            if (InputTuple.parseCsvRow(row, fileName, errorReporter, tuple, keyColumns)) {
+                addParsed(tuple, fileName, row.getOriginalLineNumber(), errorReporter);
+            } else {
+                unparseableRows++;
+            }
+        }
+    }
+
+    /**
+     * Adds a successfully parsed row, or drops it with a warning if its time interval is inverted.
+     */
+    void addParsed(InputTuple parsed, String fileName, long lineNumber, Consumer<String> errorReporter) {
+        if (lineNumber % 200000 == 0) {
+            AverageDistancesImpl.debug(fileName + ": " + lineNumber + " rows loaded");
+        }
+        if (parsed.pickupTimestamp <= parsed.dropoffTimestamp) {
+            add(parsed.passengerCount, parsed.pickupTimestamp, parsed.dropoffTimestamp, parsed.distance,
+                groups.idOf(parsed.groupKey));
+            loadedRows++;
+        } else {
+            invertedRows++;
+            errorReporter.accept(String.format("Dropping inverted time interval found in %s@%d", fileName, lineNumber));
+        }
+    }
+
+    /**
+     * @param group id of {@link #groups}.
+     */
+    public void add(int passengerCount, long pickup, long dropoff, double distance, int group) {
+        columnsPerPassCnt.computeIfAbsent(passengerCount, passCnt -> new TripColumns())
+            .add(pickup, dropoff, distance, group);
+        if (pickup < minTimestamp) {
+            minTimestamp = pickup;
+        }
+        if (dropoff > maxTimestamp) {
+            maxTimestamp = dropoff;
+        }
+    }
+
+    /**
+     * Moves all trips of the other buffer to this one.
+     */
+    public void merge(IngestionBuffer other) {
+        int[] groupMapping = groups.addAll(other.groups);
+        other.columnsPerPassCnt.forEach((passCnt, columns) -> {
+            columns.remapGroups(groupMapping);
+            TripColumns existing = columnsPerPassCnt.putIfAbsent(passCnt, columns);
+            if (existing != null) {
+                existing.addAll(columns);
+            }
+        });
+        other.columnsPerPassCnt.clear();
+
+        minTimestamp = Math.min(minTimestamp, other.minTimestamp);
+        maxTimestamp = Math.max(maxTimestamp, other.maxTimestamp);
+
+        loadedRows += other.loadedRows;
+        invertedRows += other.invertedRows;
+        unparseableRows += other.unparseableRows;
+    }
+}
@@ -15,15 +15,45 @@ import java.util.function.Consumer;
 class InputTuple {
     private static final DateTimeFormatter CSV_DATE_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
+    /**
+     * Returned by fast path decoders for input they can't handle.
+     */
+    private static final long NOT_DECODED = Long.MIN_VALUE;
+
+    private static final int CSV_DATE_TIME_LENGTH = "yyyy-MM-dd HH:mm:ss".length();
+
+    /**
+     * Rows with fewer fields don't have all the essential ones: they end with trip_distance.
+     */
+    static final int MIN_FIELD_COUNT = 5;
+
+    private static final long DAYS_0000_TO_1970 = 719528;
+
+    /**
+     * Maximum number of digits of a decimal number decoded by fast path. Mantissa remains exactly representable
+     * as double, so division by an exact power of ten gives the same result as {@link Double#parseDouble(String)}.
+     */
+    private static final int MAX_FAST_DIGITS = 15;
+
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+    };
+
     long pickupTimestamp;
     long dropoffTimestamp;
     int passengerCount;
     double distance;
 
     /**
-     * Do not construct. Use {@link #parseCsvRow(CsvRow, String, Consumer)}.
+     * Values of {@link TripDimension#KEY_DIMENSIONS} packed by {@link TripDimension#withValue(long, int)}.
      */
-    private InputTuple() {
+    long groupKey = TripDimension.UNKNOWN_KEY;
+
+    /**
+     * Do not construct other than as a reusable target of {@link #parseCsvRow(CsvRow, String, Consumer, InputTuple)}.
+     * Use {@link #parseCsvRow(CsvRow, String, Consumer)}.
+     */
+    InputTuple() {
     }
 
     /**
@@ -31,29 +61,295 @@ class InputTuple {
      */
     public static Optional<InputTuple> parseCsvRow(CsvRow row, String fileName, Consumer<String> errorReporter) {
         InputTuple result = new InputTuple();
+        return parseCsvRow(row, fileName, errorReporter, result) ? Optional.of(result) : Optional.empty();
+    }
+
+    /**
+     * @return CSV field index of every {@link TripDimension#KEY_DIMENSIONS} value, -1 if the file doesn't have it.
+     */
+    public static int[] keyColumns(CsvRow header) {
+        int[] result = new int[TripDimension.KEY_DIMENSIONS.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = -1;
+            for (int field = 0; field < header.getFieldCount(); field++) {
+                if (header.getField(field).trim().equalsIgnoreCase(TripDimension.KEY_DIMENSIONS[i].columnName)) {
+                    result[i] = field;
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Same as {@link #parseCsvRow(CsvRow, String, Consumer, InputTuple)}, also decoding the group key.
+     * Dimension values don't fail the row: missing or malformed ones are {@link TripDimension#UNKNOWN}.
+     *
+     * @param keyColumns field indexes of dimension values, see {@link #keyColumns(CsvRow)}.
+     */
+    public static boolean parseCsvRow(CsvRow row, String fileName, Consumer<String> errorReporter, InputTuple target,
+                                      int[] keyColumns) {
+        if (!parseCsvRow(row, fileName, errorReporter, target)) {
+            return false;
+        }
+
+        long key = TripDimension.UNKNOWN_KEY;
+        for (int i = 0; i < keyColumns.length; i++) {
+            if (keyColumns[i] >= 0 && keyColumns[i] < row.getFieldCount()) {
+                key = withKeyValue(key, i, row.getField(keyColumns[i]));
+            }
+        }
+        target.groupKey = key;
+        return true;
+    }
+
+    /**
+     * @param dimension index of {@link TripDimension#KEY_DIMENSIONS}.
+     * @return group key with the decoded dimension value, {@link TripDimension#UNKNOWN} if malformed.
+     */
+    static long withKeyValue(long key, int dimension, CharSequence field) {
+        long value = decodeInteger(field);
+        return TripDimension.KEY_DIMENSIONS[dimension].withValue(key, value == NOT_DECODED ? TripDimension.UNKNOWN : (int) value);
+    }
+
+    /**
+     * Allocation-free version of {@link #parseCsvRow(CsvRow, String, Consumer)}: fields are decoded right
+     * from characters when they have the expected layout, otherwise the strict parser is used.
+     *
+     * @param target tuple to store parsed fields to, can be reused between calls.
+     * @return {@code true} if parsed, {@code false} if failed (and reported).
+     */
+    public static boolean parseCsvRow(CsvRow row, String fileName, Consumer<String> errorReporter, InputTuple target) {
+        if (!checkFieldCount(row.getFieldCount(), fileName, row.getOriginalLineNumber(), errorReporter)) {
+            return false;
+        }
+        return parseFields(row.getField(1), row.getField(2), row.getField(3), row.getField(4),
+            fileName, row.getOriginalLineNumber(), errorReporter, target);
+    }
+
+    /**
+     * @param lineNumber original line number of the row in the file, for error messages.
+     * @return {@code true} if the row has all essential fields, {@code false} if not (and reported).
+     */
+    static boolean checkFieldCount(int fieldCount, String fileName, long lineNumber, Consumer<String> errorReporter) {
+        if (fieldCount < MIN_FIELD_COUNT) {
+            errorReporter.accept(String.format("CSV field count error in %s@%d: %d fields",
+                fileName, lineNumber, fieldCount));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Same as {@link #parseCsvRow(CsvRow, String, Consumer, InputTuple)} for fields that aren't necessarily
+     * {@code String}s, e.g. views of mapped bytes: they are only converted to strings if the fast path fails.
+     *
+     * @param lineNumber original line number of the row in the file, for error messages.
+     */
+    static boolean parseFields(CharSequence pickup, CharSequence dropoff, CharSequence passengerCount,
+                               CharSequence distance, String fileName, long lineNumber,
+                               Consumer<String> errorReporter, InputTuple target) {
+        long pickupTimestamp = decodeTimestamp(pickup);
+        long dropoffTimestamp = decodeTimestamp(dropoff);
+        long decodedPassengerCount = decodeInteger(passengerCount);
+        double decodedDistance = decodeDecimal(distance);
+
+        if (pickupTimestamp == NOT_DECODED || dropoffTimestamp == NOT_DECODED
+            || decodedPassengerCount == NOT_DECODED || Double.isNaN(decodedDistance)) {
+            return parseFieldsStrictly(pickup, dropoff, passengerCount, distance, fileName, lineNumber,
+                errorReporter, target);
+        }
+
+        target.pickupTimestamp = pickupTimestamp;
+        target.dropoffTimestamp = dropoffTimestamp;
+        target.passengerCount = (int) decodedPassengerCount;
+        target.distance = decodedDistance;
+        return true;
+    }
 
+    private static boolean parseFieldsStrictly(CharSequence pickup, CharSequence dropoff, CharSequence passengerCount,
+                                               CharSequence distance, String fileName, long lineNumber,
+                                               Consumer<String> errorReporter, InputTuple target) {
         try {
-            result.pickupTimestamp = toUnixTimestamp(LocalDateTime.parse(row.getField(1), CSV_DATE_TIME_FORMAT));
-            result.dropoffTimestamp = toUnixTimestamp(LocalDateTime.parse(row.getField(2), CSV_DATE_TIME_FORMAT));
+            target.pickupTimestamp = toUnixTimestamp(LocalDateTime.parse(pickup, CSV_DATE_TIME_FORMAT));
+            target.dropoffTimestamp = toUnixTimestamp(LocalDateTime.parse(dropoff, CSV_DATE_TIME_FORMAT));
         } catch (DateTimeParseException e) {
             errorReporter.accept(String.format("CSV datetime parsing error in %s@%d: %s",
-                fileName, row.getOriginalLineNumber(), e.getMessage()));
-            return Optional.empty();
+                fileName, lineNumber, e.getMessage()));
+            return false;
         }
 
         try {
-            result.passengerCount = (int) Double.parseDouble(row.getField(3));
-            result.distance = Double.parseDouble(row.getField(4));
+            target.passengerCount = (int) Double.parseDouble(passengerCount.toString());
+            target.distance = Double.parseDouble(distance.toString());
         } catch (NumberFormatException e) {
             errorReporter.accept(String.format("CSV number parsing error in %s@%d: %s",
-                fileName, row.getOriginalLineNumber(), e.getMessage()));
-            return Optional.empty();
+                fileName, lineNumber, e.getMessage()));
+            return false;
         }
 
-        return Optional.of(result);
+        return true;
     }
 
     public static long toUnixTimestamp(LocalDateTime dateTime) {
         return dateTime.toEpochSecond(ZoneOffset.UTC);
     }
+
+    /**
+     * Decodes {@code yyyy-MM-dd HH:mm:ss} to unix timestamp.
+     *
+     * @return timestamp or {@link #NOT_DECODED} if the value doesn't have exactly this layout or is out of range.
+     */
+    static long decodeTimestamp(CharSequence s) {
+        if (s.length() != CSV_DATE_TIME_LENGTH
+            || s.charAt(4) != '-' || s.charAt(7) != '-' || s.charAt(10) != ' '
+            || s.charAt(13) != ':' || s.charAt(16) != ':') {
+            return NOT_DECODED;
+        }
+
+        int year = digits(s, 0, 4);
+        int month = digits(s, 5, 7);
+        int day = digits(s, 8, 10);
+        int hour = digits(s, 11, 13);
+        int minute = digits(s, 14, 16);
+        int second = digits(s, 17, 19);
+
+        // year 0 doesn't exist in the year-of-era of the strict parser's pattern
+        if ((year | month | day | hour | minute | second) < 0 || year < 1
+            || month < 1 || month > 12 || day < 1 || day > lengthOfMonth(year, month)
+            || hour > 23 || minute > 59 || second > 59) {
+            return NOT_DECODED;
+        }
+
+        return epochDay(year, month, day) * 86400 + hour * 3600 + minute * 60 + second;
+    }
+
+    /**
+     * Decodes non-negative decimal number truncated to integer, like {@code (int) Double.parseDouble(s)}.
+     *
+     * @return value or {@link #NOT_DECODED} if the value isn't a plain decimal number.
+     */
+    static long decodeInteger(CharSequence s) {
+        int length = s.length();
+        int point = indexOf(s, '.');
+        int integerEnd = point < 0 ? length : point;
+
+        if (integerEnd == 0 || integerEnd > 9) {
+            return NOT_DECODED;
+        }
+
+        int value = digits(s, 0, integerEnd);
+        if (value < 0 || (point >= 0 && !allDigits(s, point + 1, length))) {
+            return NOT_DECODED;
+        }
+
+        return value;
+    }
+
+    /**
+     * Decodes plain decimal number like {@code -12.345} with the same result as {@link Double#parseDouble(String)}.
+     *
+     * @return value or {@code NaN} if the value isn't a plain decimal number of at most {@link #MAX_FAST_DIGITS}.
+     */
+    static double decodeDecimal(CharSequence s) {
+        int length = s.length();
+        int i = 0;
+        boolean negative = false;
+        if (length > 0 && s.charAt(0) == '-') {
+            negative = true;
+            i++;
+        }
+
+        long mantissa = 0;
+        int digitCount = 0;
+        int fractionDigits = -1;
+        for (; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                mantissa = mantissa * 10 + (c - '0');
+                digitCount++;
+                if (fractionDigits >= 0) {
+                    fractionDigits++;
+                }
+            } else if (c == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else {
+                return Double.NaN;
+            }
+        }
+
+        if (digitCount == 0 || digitCount > MAX_FAST_DIGITS) {
+            return Double.NaN;
+        }
+
+        double value = fractionDigits > 0 ? mantissa / POWERS_OF_TEN[fractionDigits] : mantissa;
+        return negative ? -value : value;
+    }
+
+    /**
+     * @return value of decimal digits in [from, to) or -1 if there is a non-digit character.
+     */
+    private static int digits(CharSequence s, int from, int to) {
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static int indexOf(CharSequence s, char c) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean allDigits(CharSequence s, int from, int to) {
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int lengthOfMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                return isLeapYear(year) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    private static boolean isLeapYear(int year) {
+        return (year & 3) == 0 && (year % 100 != 0 || year % 400 == 0);
+    }
+
+    /**
+     * Same as {@code LocalDate.of(year, month, day).toEpochDay()} for non-negative years.
+     */
+    private static long epochDay(int year, int month, int day) {
+        long total = 365L * year + (year + 3) / 4 - (year + 99) / 100 + (year + 399) / 400
+            + (367 * month - 362) / 12 + day - 1;
+        if (month > 2) {
+            total--;
+            if (!isLeapYear(year)) {
+                total--;
+            }
+        }
+        return total - DAYS_0000_TO_1970;
+    }
 }
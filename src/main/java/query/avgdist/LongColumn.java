@@ -0,0 +1,186 @@
+package query.avgdist;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Read-only column of long values, either on heap or in {@link ByteBuffer}s.
+ * Heap columns spanning less than 2^32 are kept as 32-bit offsets from their minimum.
+ */
+abstract class LongColumn {
+    /**
+     * Buffer-backed columns are split into chunks of 2^CHUNK_SHIFT values, as a buffer is limited to 2GB.
+     */
+    static final int CHUNK_SHIFT = 27;
+    static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+    public abstract int size();
+
+    public abstract long get(int index);
+
+    /**
+     * Decodes values [from, from + count) to the start of the target: a single virtual call per block
+     * rather than per value, with a loop specialized to the encoding.
+     */
+    public void get(int from, int count, long[] target) {
+        for (int i = 0; i < count; i++) {
+            target[i] = get(from + i);
+        }
+    }
+
+    /**
+     * @return size of the values in bytes.
+     */
+    public abstract long memorySize();
+
+    /**
+     * @return heap column of the values, in the most compact encoding.
+     */
+    public static LongColumn of(long[] values) {
+        if (values.length == 0) {
+            return new Heap(values);
+        }
+
+        long min = values[0];
+        long max = values[0];
+        for (long value : values) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        // the span overflows to negative for values of both signs far apart
+        if (max - min < 0 || max - min > Offsets.MAX_OFFSET) {
+            return new Heap(values);
+        }
+
+        int[] offsets = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            offsets[i] = (int) (values[i] - min);
+        }
+        return new Offsets(min, offsets);
+    }
+
+    /**
+     * Copies the column to the storage. {@link IndexStorage#MAPPED} columns are created by {@link IndexSnapshot} only.
+     */
+    public LongColumn copyTo(IndexStorage storage) {
+        switch (storage) {
+            case HEAP:
+                long[] values = new long[size()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = get(i);
+                }
+                return of(values);
+            case DIRECT:
+                ByteBuffer[] chunks = new ByteBuffer[chunkCount(size())];
+                for (int chunk = 0; chunk < chunks.length; chunk++) {
+                    int from = chunk << CHUNK_SHIFT;
+                    int count = Math.min(size() - from, 1 << CHUNK_SHIFT);
+                    chunks[chunk] = ByteBuffer.allocateDirect(count * 8).order(ByteOrder.LITTLE_ENDIAN);
+                    for (int i = 0; i < count; i++) {
+                        chunks[chunk].putLong(i * 8, get(from + i));
+                    }
+                }
+                return new Buffer(chunks, size());
+            default:
+                throw new IllegalArgumentException("Can't copy column to " + storage + " storage");
+        }
+    }
+
+    static int chunkCount(int size) {
+        return (size + CHUNK_MASK) >>> CHUNK_SHIFT;
+    }
+
+    static final class Heap extends LongColumn {
+        final long[] values;
+
+        Heap(long[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public int size() {
+            return values.length;
+        }
+
+        @Override
+        public long get(int index) {
+            return values[index];
+        }
+
+        @Override
+        public void get(int from, int count, long[] target) {
+            System.arraycopy(values, from, target, 0, count);
+        }
+
+        @Override
+        public long memorySize() {
+            return 8L * values.length;
+        }
+    }
+
+    /**
+     * Values stored as unsigned 32-bit offsets from the column minimum: timestamps of years fit in 4 bytes.
+     */
+    static final class Offsets extends LongColumn {
+        static final long MAX_OFFSET = 0xFFFFFFFFL;
+
+        final long base;
+        final int[] offsets;
+
+        Offsets(long base, int[] offsets) {
+            this.base = base;
+            this.offsets = offsets;
+        }
+
+        @Override
+        public int size() {
+            return offsets.length;
+        }
+
+        @Override
+        public long get(int index) {
+            return base + (offsets[index] & MAX_OFFSET);
+        }
+
+        @Override
+        public void get(int from, int count, long[] target) {
+            for (int i = 0; i < count; i++) {
+                target[i] = base + (offsets[from + i] & MAX_OFFSET);
+            }
+        }
+
+        @Override
+        public long memorySize() {
+            return 4L * offsets.length;
+        }
+    }
+
+    static final class Buffer extends LongColumn {
+        /**
+         * Little-endian chunks, every one but the last holds exactly 2^CHUNK_SHIFT values.
+         */
+        final ByteBuffer[] chunks;
+
+        private final int size;
+
+        Buffer(ByteBuffer[] chunks, int size) {
+            this.chunks = chunks;
+            this.size = size;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public long get(int index) {
+            return chunks[index >>> CHUNK_SHIFT].getLong((index & CHUNK_MASK) << 3);
+        }
+
+        @Override
+        public long memorySize() {
+            return 8L * size;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package query.avgdist;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
@@ -10,9 +11,20 @@ import java.util.concurrent.ThreadLocalRandom;
 public class ManualTest {
     private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
+    private static final int DEFAULT_PORT = 7470;
+
+    /**
+     * Limits the queries of serve mode, so one expensive request fails instead of occupying the server.
+     */
+    private static final long SERVE_QUERY_TIMEOUT_SECONDS = 30;
+
     public static void main(String[] args) {
         if (args.length == 0) {
-            System.err.println("Argument needed: directory with CSVs");
+            System.err.println("Argument needed: directory with CSVs, or: serve <directory with CSVs> [port]");
+            return;
+        }
+        if (args[0].equals("serve")) {
+            serve(args);
             return;
         }
 
@@ -42,6 +54,41 @@ public class ManualTest {
         }
     }
 
+    /**
+     * Loads the data once and serves it to {@link QueryClient}s until the process is stopped.
+     */
+    private static void serve(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Arguments needed: serve <directory with CSVs> [port]");
+            return;
+        }
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_PORT;
+
+        AverageDistances avgDist = new AverageDistancesImpl(
+            Math.max(Runtime.getRuntime().availableProcessors() * 4 / 5, 2), SERVE_QUERY_TIMEOUT_SECONDS);
+        System.out.println("Loading CSVs...");
+        avgDist.init(Paths.get(args[1]));
+        try {
+            QueryServer server = new QueryServer(avgDist, new InetSocketAddress(port));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.close();
+                try {
+                    avgDist.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }));
+            System.out.println("Serving queries at " + server.getAddress());
+        } catch (IOException e) {
+            e.printStackTrace();
+            try {
+                avgDist.close();
+            } catch (IOException closeFailure) {
+                closeFailure.printStackTrace();
+            }
+        }
+    }
+
     private static void query(AverageDistances service, LocalDateTime from, LocalDateTime to) {
         System.out.println("Query: " + from + " - " + to);
 
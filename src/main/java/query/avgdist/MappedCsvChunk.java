@@ -0,0 +1,309 @@
+package query.avgdist;
+
+import de.siegmar.fastcsv.reader.CsvReader;
+import de.siegmar.fastcsv.reader.CsvRow;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Byte range of a big plain CSV file, parsed right from the memory mapping of the range,
+ * so that chunks of a single file are loaded in parallel.
+ * <p>
+ * Chunks start at line starts, so every line belongs to exactly one chunk. Fields are decoded from mapped bytes
+ * through reusable {@link CharSequence} views, without a {@code String} per field; a row is converted to strings
+ * only if the fast path of {@link InputTuple} fails, and lines with quotes are split by {@link CsvReader}.
+ * Line breaks are CR LF, lone CR and lone LF, as for {@link CsvReader}; quoted line breaks are not supported:
+ * TLC trip files don't have them.
+ * <p>
+ * Original line numbers of a chunk are known once the lines of the preceding chunks are counted, see
+ * {@link #countLines()} and {@link #numberLines(List, long[])}, so error messages report the same line numbers
+ * as {@link IngestionBuffer#load(File)}.
+ */
+final class MappedCsvChunk {
+    static final long CHUNK_SIZE = 64L << 20;
+
+    /**
+     * Plain CSV files of at least this size are loaded by chunks.
+     */
+    static final long MIN_FILE_SIZE = 2 * CHUNK_SIZE;
+
+    private static final int SCAN_BUFFER_SIZE = 1 << 16;
+
+    final File file;
+
+    /**
+     * Byte range [start, end) of the file.
+     */
+    final long start;
+    final long end;
+
+    /**
+     * Field indexes of dimension values, from the header of the file.
+     */
+    private final int[] keyColumns;
+
+    /**
+     * Original line number of the first line of the chunk.
+     */
+    private long firstLine;
+
+    private MappedCsvChunk(File file, long start, long end, int[] keyColumns, long firstLine) {
+        this.file = file;
+        this.start = start;
+        this.end = end;
+        this.keyColumns = keyColumns;
+        this.firstLine = firstLine;
+    }
+
+    /**
+     * Splits the rows of the file into chunks of about {@code chunkSize} bytes, ending at line breaks.
+     * Only the first chunk has its line numbers assigned.
+     */
+    static List<MappedCsvChunk> split(File file, long chunkSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long headerEnd = nextLineStart(channel, 0);
+            if (headerEnd == 0) {
+                return new ArrayList<>();
+            }
+
+            ByteBuffer header = ByteBuffer.allocate((int) headerEnd);
+            while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+                // read until the whole header is in the buffer
+            }
+            int[] keyColumns;
+            try (CsvReader headerReader = CsvReader.builder().build(new String(header.array(), StandardCharsets.UTF_8))) {
+                keyColumns = InputTuple.keyColumns(headerReader.iterator().next());
+            }
+
+            List<MappedCsvChunk> chunks = new ArrayList<>();
+            long chunkStart = headerEnd;
+            while (chunkStart < size) {
+                long chunkEnd = size - chunkStart <= chunkSize ? size : nextLineStart(channel, chunkStart + chunkSize);
+                if (chunkEnd - chunkStart > Integer.MAX_VALUE) {
+                    throw new IOException("Line of " + file + " at " + chunkStart + " is too long");
+                }
+                chunks.add(new MappedCsvChunk(file, chunkStart, chunkEnd, keyColumns, chunks.isEmpty() ? 2 : 0));
+                chunkStart = chunkEnd;
+            }
+            return chunks;
+        }
+    }
+
+    /**
+     * @return position right after the first line break at or after the given one, or the file size if none.
+     */
+    private static long nextLineStart(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        long blockStart = position;
+        while (true) {
+            buffer.clear();
+            int read = channel.read(buffer, blockStart);
+            if (read < 0) {
+                return channel.size();
+            }
+            for (int i = 0; i < read; i++) {
+                byte b = buffer.get(i);
+                if (b == '\n') {
+                    return blockStart + i + 1;
+                }
+                if (b == '\r') {
+                    // CR LF is a single line break, so it's never split between chunks
+                    long next = blockStart + i + 1;
+                    ByteBuffer nextByte = ByteBuffer.allocate(1);
+                    return channel.read(nextByte, next) == 1 && nextByte.get(0) == '\n' ? next + 1 : next;
+                }
+            }
+            blockStart += read;
+        }
+    }
+
+    /**
+     * @return number of line breaks in the chunk; CR LF, lone CR and lone LF are line breaks, as for {@link CsvReader}.
+     */
+    long countLines() throws IOException {
+        MappedByteBuffer bytes = map();
+        int length = bytes.limit();
+        long count = 0;
+        for (int i = 0; i < length; i++) {
+            byte b = bytes.get(i);
+            if (b == '\n' || (b == '\r' && (i + 1 == length || bytes.get(i + 1) != '\n'))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Assigns line numbers of all chunks of a file from the line numbers of the first one.
+     *
+     * @param chunks     all chunks of a file in order, as returned by {@link #split(File, long)}.
+     * @param lineCounts {@link #countLines()} of every chunk.
+     */
+    static void numberLines(List<MappedCsvChunk> chunks, long[] lineCounts) {
+        for (int i = 1; i < chunks.size(); i++) {
+            chunks.get(i).firstLine = chunks.get(i - 1).firstLine + lineCounts[i - 1];
+        }
+    }
+
+    /**
+     * Loads all valid rows of the chunk to the buffer, reporting invalid ones.
+     */
+    void load(IngestionBuffer target, Consumer<String> errorReporter) throws IOException {
+        MappedByteBuffer bytes = map();
+        String fileName = file.getName();
+        InputTuple tuple = new InputTuple();
+
+        int[] fieldStarts = new int[32];
+        int[] fieldEnds = new int[32];
+        ByteField[] fields = new ByteField[32];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = new ByteField(bytes);
+        }
+
+        int length = bytes.limit();
+        long lineNumber = firstLine;
+        for (int lineStart = 0; lineStart < length; lineNumber++) {
+            int fieldCount = 0;
+            boolean quoted = false;
+            fieldStarts[0] = lineStart;
+            int lineEnd = lineStart;
+            for (; lineEnd < length; lineEnd++) {
+                byte b = bytes.get(lineEnd);
+                if (b == '\n' || b == '\r') {
+                    break;
+                } else if (b == ',') {
+                    fieldEnds[fieldCount++] = lineEnd;
+                    if (fieldCount == fieldStarts.length) {
+                        fieldStarts = Arrays.copyOf(fieldStarts, 2 * fieldCount);
+                        fieldEnds = Arrays.copyOf(fieldEnds, 2 * fieldCount);
+                        fields = Arrays.copyOf(fields, 2 * fieldCount);
+                        for (int i = fieldCount; i < fields.length; i++) {
+                            fields[i] = new ByteField(bytes);
+                        }
+                    }
+                    fieldStarts[fieldCount] = lineEnd + 1;
+                } else if (b == '"') {
+                    quoted = true;
+                }
+            }
+            fieldEnds[fieldCount++] = lineEnd;
+
+            // empty rows are skipped
+            if (lineEnd > lineStart) {
+                CharSequence[] rowFields;
+                if (quoted) {
+                    rowFields = splitQuoted(new ByteField(bytes).set(lineStart, lineEnd).toString());
+                    fieldCount = rowFields.length;
+                } else {
+                    for (int i = 0; i < fieldCount; i++) {
+                        fields[i].set(fieldStarts[i], fieldEnds[i]);
+                    }
+                    rowFields = fields;
+                }
+
+                if (parseRow(rowFields, fieldCount, fileName, lineNumber, errorReporter, tuple)) {
+                    target.addParsed(tuple, fileName, lineNumber, errorReporter);
+                } else {
+                    target.unparseableRows++;
+                }
+            }
+            // CR LF is a single line break
+            boolean crLf = lineEnd + 1 < length && bytes.get(lineEnd) == '\r' && bytes.get(lineEnd + 1) == '\n';
+            lineStart = lineEnd + (crLf ? 2 : 1);
+        }
+    }
+
+    private boolean parseRow(CharSequence[] fields, int fieldCount, String fileName, long lineNumber,
+                             Consumer<String> errorReporter, InputTuple target) {
+        if (!InputTuple.checkFieldCount(fieldCount, fileName, lineNumber, errorReporter)) {
+            return false;
+        }
+        if (!InputTuple.parseFields(fields[1], fields[2], fields[3], fields[4], fileName, lineNumber,
+            errorReporter, target)) {
+            return false;
+        }
+
+        long key = TripDimension.UNKNOWN_KEY;
+        for (int i = 0; i < keyColumns.length; i++) {
+            if (keyColumns[i] >= 0 && keyColumns[i] < fieldCount) {
+                key = InputTuple.withKeyValue(key, i, fields[keyColumns[i]]);
+            }
+        }
+        target.groupKey = key;
+        return true;
+    }
+
+    private static CharSequence[] splitQuoted(String line) throws IOException {
+        try (CsvReader csvReader = CsvReader.builder().errorOnDifferentFieldCount(false).build(line)) {
+            Iterator<CsvRow> rows = csvReader.iterator();
+            return rows.hasNext() ? rows.next().getFields().toArray(new CharSequence[0]) : new CharSequence[0];
+        }
+    }
+
+    private MappedByteBuffer map() throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return file.getName() + " [" + start + ", " + end + ")";
+    }
+
+    /**
+     * Reusable view of a field in mapped bytes. Characters are bytes, which is exact for ASCII;
+     * {@link #toString()} decodes UTF-8.
+     */
+    private static final class ByteField implements CharSequence {
+        private final ByteBuffer bytes;
+        private int from;
+        private int to;
+
+        ByteField(ByteBuffer bytes) {
+            this.bytes = bytes;
+        }
+
+        ByteField set(int from, int to) {
+            this.from = from;
+            this.to = to;
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return to - from;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (bytes.get(from + index) & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            byte[] value = new byte[to - from];
+            for (int i = 0; i < value.length; i++) {
+                value[i] = bytes.get(from + i);
+            }
+            return new String(value, StandardCharsets.UTF_8);
+        }
+    }
+}
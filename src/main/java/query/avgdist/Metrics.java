@@ -0,0 +1,262 @@
+package query.avgdist;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Thread-safe counters behind {@link AverageDistancesMXBean}.
+ * Gauges are read from the current snapshot and executor on every call.
+ */
+final class Metrics implements AverageDistancesMXBean {
+    /**
+     * Bucket {@code i} counts latencies up to {@code 2^i} microseconds, the last one counts all longer ones.
+     */
+    private static final int LATENCY_BUCKET_COUNT = 28;
+
+    private final LongAdder queryCount = new LongAdder();
+    private final LongAdder[] queryLatencyHistogram = new LongAdder[LATENCY_BUCKET_COUNT];
+    private final LongAdder queryJobCount = new LongAdder();
+    private final LongAdder candidateRowCount = new LongAdder();
+    private final LongAdder acceptedRowCount = new LongAdder();
+    private final LongAdder prunedSegmentCount = new LongAdder();
+    private final LongAdder fullSegmentCount = new LongAdder();
+    private final LongAdder searchedSegmentCount = new LongAdder();
+    private final LongAdder queryTimeoutCount = new LongAdder();
+    private final LongAdder queryCacheHitCount = new LongAdder();
+    private final LongAdder inlineQueryCount = new LongAdder();
+    private final LongAdder rejectedQueryCount = new LongAdder();
+    private final LongAdder approximateQueryCount = new LongAdder();
+
+    private final LongAdder loadedRowCount = new LongAdder();
+    private final LongAdder invertedRowCount = new LongAdder();
+    private final LongAdder unparseableRowCount = new LongAdder();
+    private volatile double lastIngestionRowsPerSecond;
+
+    private final Supplier<IndexSnapshot> snapshot;
+    private final Supplier<ForkJoinPool> executor;
+    private final AdmissionControl admissionControl;
+
+    Metrics(Supplier<IndexSnapshot> snapshot, Supplier<ForkJoinPool> executor,
+            AdmissionControl admissionControl) {
+        this.snapshot = snapshot;
+        this.executor = executor;
+        this.admissionControl = admissionControl;
+        for (int i = 0; i < LATENCY_BUCKET_COUNT; i++) {
+            queryLatencyHistogram[i] = new LongAdder();
+        }
+    }
+
+    void queryCompleted(long nanos) {
+        queryCount.increment();
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        int bucket = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+        queryLatencyHistogram[Math.min(bucket, LATENCY_BUCKET_COUNT - 1)].increment();
+    }
+
+    void jobsSubmitted(int count) {
+        queryJobCount.add(count);
+    }
+
+    void rowsFiltered(long candidates, long accepted) {
+        candidateRowCount.add(candidates);
+        acceptedRowCount.add(accepted);
+    }
+
+    void segmentsVisited(int pruned, int full, int searched) {
+        prunedSegmentCount.add(pruned);
+        fullSegmentCount.add(full);
+        searchedSegmentCount.add(searched);
+    }
+
+    void queryTimedOut() {
+        queryTimeoutCount.increment();
+    }
+
+    void queryCacheHit() {
+        queryCacheHitCount.increment();
+    }
+
+    void queryRunInline() {
+        inlineQueryCount.increment();
+    }
+
+    void queryRejected() {
+        rejectedQueryCount.increment();
+    }
+
+    void approximateQuery() {
+        approximateQueryCount.increment();
+    }
+
+    void ingested(IngestionBuffer loaded, long nanos) {
+        loadedRowCount.add(loaded.loadedRows);
+        invertedRowCount.add(loaded.invertedRows);
+        unparseableRowCount.add(loaded.unparseableRows);
+        lastIngestionRowsPerSecond = nanos > 0 ? loaded.loadedRows * 1e9 / nanos : 0.0;
+    }
+
+    @Override
+    public long getQueryCount() {
+        return queryCount.sum();
+    }
+
+    @Override
+    public long[] getQueryLatencyHistogram() {
+        long[] histogram = new long[LATENCY_BUCKET_COUNT];
+        for (int i = 0; i < LATENCY_BUCKET_COUNT; i++) {
+            histogram[i] = queryLatencyHistogram[i].sum();
+        }
+        return histogram;
+    }
+
+    @Override
+    public long[] getQueryLatencyBucketBoundsMicros() {
+        long[] bounds = new long[LATENCY_BUCKET_COUNT];
+        for (int i = 0; i < LATENCY_BUCKET_COUNT; i++) {
+            bounds[i] = i < LATENCY_BUCKET_COUNT - 1 ? 1L << i : Long.MAX_VALUE;
+        }
+        return bounds;
+    }
+
+    @Override
+    public long getQueryLatencyP50Micros() {
+        return latencyPercentile(0.5);
+    }
+
+    @Override
+    public long getQueryLatencyP99Micros() {
+        return latencyPercentile(0.99);
+    }
+
+    /**
+     * @return upper bound of the bucket containing the percentile, 0 if there were no queries.
+     */
+    private long latencyPercentile(double percentile) {
+        long[] histogram = getQueryLatencyHistogram();
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+
+        long rank = (long) Math.ceil(total * percentile);
+        long seen = 0;
+        for (int i = 0; i < histogram.length && total > 0; i++) {
+            seen += histogram[i];
+            if (seen >= rank) {
+                return getQueryLatencyBucketBoundsMicros()[i];
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public long getQueryJobCount() {
+        return queryJobCount.sum();
+    }
+
+    @Override
+    public long getCandidateRowCount() {
+        return candidateRowCount.sum();
+    }
+
+    @Override
+    public long getAcceptedRowCount() {
+        return acceptedRowCount.sum();
+    }
+
+    @Override
+    public long getPrunedSegmentCount() {
+        return prunedSegmentCount.sum();
+    }
+
+    @Override
+    public long getFullSegmentCount() {
+        return fullSegmentCount.sum();
+    }
+
+    @Override
+    public long getSearchedSegmentCount() {
+        return searchedSegmentCount.sum();
+    }
+
+    @Override
+    public long getQueryTimeoutCount() {
+        return queryTimeoutCount.sum();
+    }
+
+    @Override
+    public long getQueryCacheHitCount() {
+        return queryCacheHitCount.sum();
+    }
+
+    @Override
+    public long getInlineQueryCount() {
+        return inlineQueryCount.sum();
+    }
+
+    @Override
+    public long getApproximateQueryCount() {
+        return approximateQueryCount.sum();
+    }
+
+    @Override
+    public long getRejectedQueryCount() {
+        return rejectedQueryCount.sum();
+    }
+
+    @Override
+    public int getQueuedQueryCount() {
+        return admissionControl.queuedCount();
+    }
+
+    @Override
+    public int getExecutorQueueDepth() {
+        ForkJoinPool current = executor.get();
+        return current != null ? (int) Math.min(Integer.MAX_VALUE,
+            current.getQueuedSubmissionCount() + current.getQueuedTaskCount()) : 0;
+    }
+
+    @Override
+    public int getExecutorActiveThreads() {
+        ForkJoinPool current = executor.get();
+        return current != null ? current.getActiveThreadCount() : 0;
+    }
+
+    @Override
+    public long getExecutorStealCount() {
+        ForkJoinPool current = executor.get();
+        return current != null ? current.getStealCount() : 0;
+    }
+
+    @Override
+    public long getLoadedRowCount() {
+        return loadedRowCount.sum();
+    }
+
+    @Override
+    public long getInvertedRowCount() {
+        return invertedRowCount.sum();
+    }
+
+    @Override
+    public long getUnparseableRowCount() {
+        return unparseableRowCount.sum();
+    }
+
+    @Override
+    public double getLastIngestionRowsPerSecond() {
+        return lastIngestionRowsPerSecond;
+    }
+
+    @Override
+    public long getIndexedTripCount() {
+        return snapshot.get().indexPerPassCnt.values().stream().mapToLong(SegmentedIndex::size).sum();
+    }
+
+    @Override
+    public long getIndexMemoryBytes() {
+        return snapshot.get().indexPerPassCnt.values().stream().mapToLong(SegmentedIndex::memorySize).sum();
+    }
+}
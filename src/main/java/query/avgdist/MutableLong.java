@@ -1,9 +0,0 @@
-package query.avgdist;
-
-public class MutableLong {
-    public long value;
-
-    public MutableLong(long value) {
-        this.value = value;
-    }
-}
@@ -0,0 +1,163 @@
+package query.avgdist;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Bounded LRU cache of query results of a single {@link IndexSnapshot}, keyed by the query interval
+ * clamped to the snapshot spread.
+ * <p>
+ * Besides exact hits, a query differing from a cached one only by start is answered with the cached totals
+ * plus or minus the trips picked up between the two starts and dropped off by the common end. This is
+ * a single aggregation over a narrow row range per segment, done on the calling thread. A different end
+ * isn't reused: trips dropped off between two ends can be anywhere in the pickup order, so such a delta
+ * costs as much as the query itself.
+ * <p>
+ * Trip counts of derived results are exact, distance sums may differ from a fresh evaluation of the window
+ * in the last bits: the delta is added to or subtracted from the cached sum, so the rounding differs, just as
+ * a query split into jobs rounds differently than the same query run in the calling thread. Only results of
+ * full evaluations are taken as a base for deltas, so the difference doesn't build up over chains of derived
+ * results and stays within a few ulps of the sums involved.
+ */
+final class QueryCache {
+    private final int capacity;
+
+    /**
+     * Snapshot cached results belong to; results of other snapshots are neither returned nor stored.
+     */
+    private IndexSnapshot snapshot = IndexSnapshot.EMPTY;
+
+    /**
+     * Cached totals in access order.
+     */
+    private final LinkedHashMap<TimeInterval, TripTotals> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Cached totals of full evaluations by query end and start, to find reusable results.
+     */
+    private final Map<Long, TreeMap<Long, TripTotals>> entriesPerEnd = new HashMap<>();
+
+    /**
+     * @param capacity maximum number of cached query results, positive.
+     */
+    QueryCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Query cache capacity should be positive");
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Drops all cached results and binds the cache to the new snapshot.
+     */
+    public synchronized void invalidate(IndexSnapshot snapshot) {
+        this.snapshot = snapshot;
+        entries.clear();
+        entriesPerEnd.clear();
+    }
+
+    /**
+     * @param query  query interval clamped to the snapshot spread.
+     * @param target totals to fill with the cached or derived result.
+     * @return {@code true} if the target is filled, {@code false} if the query has to be executed.
+     */
+    public boolean get(IndexSnapshot snapshot, TimeInterval query, TripTotals target) {
+        Map.Entry<Long, TripTotals> nearest;
+        synchronized (this) {
+            if (snapshot != this.snapshot) {
+                return false;
+            }
+            TripTotals exact = entries.get(query);
+            if (exact != null) {
+                target.set(exact);
+                return true;
+            }
+            nearest = nearestStart(query);
+            if (nearest == null) {
+                return false;
+            }
+            // cached totals are never modified, so they can be read outside the lock
+        }
+
+        long fromPickup = Math.min(query.start, nearest.getKey());
+        long toPickup = Math.max(query.start, nearest.getKey());
+        int sign = query.start < nearest.getKey() ? 1 : -1;
+        target.set(nearest.getValue());
+        DoubleAccumulator delta = target.scratch;
+        snapshot.indexPerPassCnt.forEach((passCnt, index) -> {
+            delta.reset();
+            for (ContainmentIndex segment : index.segments) {
+                int fromRow = segment.lowerBound(fromPickup);
+                segment.aggregate(fromRow, segment.lowerBound(toPickup, fromRow), query.end, delta);
+            }
+            target.add(passCnt, sign * delta.count.sum(), sign * delta.value.sum());
+        });
+
+        put(snapshot, query, target, false);
+        return true;
+    }
+
+    /**
+     * Caches a copy of the totals of a full evaluation, so the caller can keep reusing them.
+     */
+    public void put(IndexSnapshot snapshot, TimeInterval query, TripTotals totals) {
+        put(snapshot, query, totals, true);
+    }
+
+    /**
+     * @param base whether the totals may be taken as a base for deltas, i.e. are not derived themselves.
+     */
+    private synchronized void put(IndexSnapshot snapshot, TimeInterval query, TripTotals totals, boolean base) {
+        if (snapshot != this.snapshot) {
+            return;
+        }
+
+        TripTotals copy = totals.copy();
+        TripTotals replaced = entries.put(query, copy);
+        if (base) {
+            entriesPerEnd.computeIfAbsent(query.end, end -> new TreeMap<>()).put(query.start, copy);
+        } else if (replaced != null) {
+            removeBase(query, replaced);
+        }
+
+        if (entries.size() > capacity) {
+            Iterator<Map.Entry<TimeInterval, TripTotals>> eldest = entries.entrySet().iterator();
+            Map.Entry<TimeInterval, TripTotals> evicted = eldest.next();
+            eldest.remove();
+            removeBase(evicted.getKey(), evicted.getValue());
+        }
+    }
+
+    /**
+     * Stops using the totals as a base for deltas, if they are one.
+     */
+    private void removeBase(TimeInterval query, TripTotals totals) {
+        TreeMap<Long, TripTotals> starts = entriesPerEnd.get(query.end);
+        if (starts != null && starts.get(query.start) == totals) {
+            starts.remove(query.start);
+            if (starts.isEmpty()) {
+                entriesPerEnd.remove(query.end);
+            }
+        }
+    }
+
+    /**
+     * @return cached entry with the same end and the closest start, or {@code null} if none.
+     */
+    private Map.Entry<Long, TripTotals> nearestStart(TimeInterval query) {
+        TreeMap<Long, TripTotals> starts = entriesPerEnd.get(query.end);
+        if (starts == null) {
+            return null;
+        }
+
+        Map.Entry<Long, TripTotals> floor = starts.floorEntry(query.start);
+        Map.Entry<Long, TripTotals> ceiling = starts.ceilingEntry(query.start);
+        if (floor == null || (ceiling != null && ceiling.getKey() - query.start < query.start - floor.getKey())) {
+            return ceiling;
+        }
+        return floor;
+    }
+}
@@ -0,0 +1,174 @@
+package query.avgdist;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client of {@link QueryServer}, with the queries of {@link AverageDistances} over one connection.
+ * <p>
+ * Thread-safe: requests of all threads are pipelined over the connection without waiting for each other,
+ * and a reader thread completes them as responses arrive. Errors of the server fail queries with the same
+ * exceptions as local ones: {@link IllegalArgumentException} for invalid windows and {@link QueryRejectedException}
+ * under overload. A lost connection fails pending and further queries with {@link UncheckedIOException}.
+ */
+public final class QueryClient implements Closeable {
+    private final Socket socket;
+    private final OutputStream out;
+    private final DataInputStream in;
+    private final Thread reader;
+
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final Map<Long, CompletableFuture<List<Map<Integer, Double>>>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Failure of the connection, {@code null} while it's usable.
+     */
+    private volatile IOException failure;
+
+    public QueryClient(InetSocketAddress serverAddress) throws IOException {
+        this.socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(serverAddress);
+            this.out = socket.getOutputStream();
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        this.reader = new Thread(this::readResponses, "avgdist-client " + serverAddress);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Same as {@link AverageDistances#getAverageDistances(LocalDateTime, LocalDateTime)}, evaluated by the server.
+     */
+    public Map<Integer, Double> getAverageDistances(LocalDateTime start, LocalDateTime end) {
+        return getAverageDistances(Collections.singletonList(TimeWindow.of(start, end))).get(0);
+    }
+
+    /**
+     * Same as {@link AverageDistances#getAverageDistances(List)}, evaluated by the server.
+     */
+    public List<Map<Integer, Double>> getAverageDistances(List<TimeWindow> windows) {
+        try {
+            return getAverageDistancesAsync(windows).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Asynchronous version of {@link #getAverageDistances(List)}: the request is sent right away,
+     * and the future is completed by the reader thread.
+     */
+    public CompletableFuture<List<Map<Integer, Double>>> getAverageDistancesAsync(List<TimeWindow> windows) {
+        long id = nextRequestId.getAndIncrement();
+        ByteBuffer request = QueryProtocol.encodeRequest(id, windows);
+
+        CompletableFuture<List<Map<Integer, Double>>> result = new CompletableFuture<>();
+        pending.put(id, result);
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+            synchronized (out) {
+                out.write(request.array(), request.arrayOffset(), request.remaining());
+                out.flush();
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+        return result;
+    }
+
+    /**
+     * Closes the connection, pending queries fail.
+     */
+    @Override
+    public void close() throws IOException {
+        fail(new IOException("Client is closed"));
+        socket.close();
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void readResponses() {
+        try {
+            while (true) {
+                int frameSize = in.readInt();
+                if (frameSize < Long.BYTES + 1 || frameSize > QueryProtocol.MAX_FRAME_SIZE) {
+                    throw new IOException("Invalid frame size " + frameSize);
+                }
+                long id = in.readLong();
+                byte status = in.readByte();
+                CompletableFuture<List<Map<Integer, Double>>> result = pending.remove(id);
+                if (result == null) {
+                    throw new IOException("Response to unknown request " + id);
+                }
+
+                if (status == QueryProtocol.OK) {
+                    result.complete(QueryProtocol.readResults(in));
+                    continue;
+                }
+
+                byte[] message = new byte[frameSize - Long.BYTES - 1];
+                in.readFully(message);
+                result.completeExceptionally(error(status, new String(message, StandardCharsets.UTF_8)));
+            }
+        } catch (EOFException e) {
+            fail(new IOException("Connection closed by the server"));
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private static RuntimeException error(byte status, String message) {
+        switch (status) {
+            case QueryProtocol.BAD_REQUEST:
+                return new IllegalArgumentException(message);
+            case QueryProtocol.REJECTED:
+                return new QueryRejectedException(message);
+            default:
+                return new RuntimeException("Query failed on the server: " + message);
+        }
+    }
+
+    /**
+     * Fails pending queries and all further ones.
+     */
+    private void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+        UncheckedIOException error = new UncheckedIOException(failure);
+        for (Long id : pending.keySet()) {
+            CompletableFuture<List<Map<Integer, Double>>> result = pending.remove(id);
+            if (result != null) {
+                result.completeExceptionally(error);
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package query.avgdist;
+
+/**
+ * Cancellation state of a single query shared by all its jobs. Jobs check it before doing any work,
+ * so a timed out or abandoned query stops occupying query executor threads.
+ */
+final class QueryDeadline {
+    private final long startNanos;
+    private final long timeoutNanos;
+
+    private volatile boolean cancelled;
+
+    private QueryDeadline(long startNanos, long timeoutNanos) {
+        this.startNanos = startNanos;
+        this.timeoutNanos = timeoutNanos;
+    }
+
+    /**
+     * @param timeoutNanos time from now the query may take, {@link Long#MAX_VALUE} for no limit.
+     */
+    public static QueryDeadline after(long timeoutNanos) {
+        return new QueryDeadline(System.nanoTime(), timeoutNanos);
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return {@code true} if jobs may go on, {@code false} if the query is cancelled or its time is over;
+     * in the latter case the query becomes cancelled.
+     */
+    public boolean check() {
+        if (!cancelled && remainingNanos() <= 0) {
+            cancelled = true;
+        }
+        return !cancelled;
+    }
+
+    public long remainingNanos() {
+        return timeoutNanos - (System.nanoTime() - startNanos);
+    }
+}
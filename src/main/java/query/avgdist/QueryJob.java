@@ -1,38 +1,77 @@
 package query.avgdist;
 
-import com.brein.time.timeintervals.indexes.IntervalTree;
-import com.brein.time.timeintervals.intervals.LongInterval;
+import java.util.concurrent.RecursiveAction;
 
 /**
- * Job that searches in IntervalTree of {@link IntervalWithDistance}s.
+ * Job that aggregates trips from a row range of {@link ContainmentIndex}.
+ * <p>
+ * Runs in a {@link java.util.concurrent.ForkJoinPool}: a job with more than {@link #maxRows} rows splits
+ * into two halves of equal row count, one of them is left in the work queue of the current worker,
+ * so that idle workers steal it. Skewed groups are thus spread over all workers, whatever their share of trips.
+ * <p>
+ * Jobs of a cancelled or timed out query do nothing.
  */
-class QueryJob implements Runnable {
-    public final IntervalTree searchTree;
+class QueryJob extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
 
-    public final LongInterval queryInterval;
+    public final ContainmentIndex index;
+
+    /**
+     * Row range [fromRow, toRow) of the index, i.e. range of pickup timestamps.
+     */
+    public final int fromRow;
+    public final int toRow;
+
+    /**
+     * Maximum dropoff timestamp, i.e. end of query interval.
+     */
+    public final long maxDropoff;
 
     public final DoubleAccumulator accumulator;
 
-    public QueryJob(IntervalTree searchTree, LongInterval queryInterval, DoubleAccumulator accumulator) {
-        this.searchTree = searchTree;
-        this.queryInterval = queryInterval;
+    /**
+     * Maximum row count of a job aggregated without splitting.
+     */
+    public final int maxRows;
+
+    public final QueryDeadline deadline;
+
+    public QueryJob(ContainmentIndex index, int fromRow, int toRow, long maxDropoff, DoubleAccumulator accumulator,
+                    int maxRows, QueryDeadline deadline) {
+        this.index = index;
+        this.fromRow = fromRow;
+        this.toRow = toRow;
+        this.maxDropoff = maxDropoff;
         this.accumulator = accumulator;
+        this.maxRows = maxRows;
+        this.deadline = deadline;
+    }
+
+    public int rowCount() {
+        return toRow - fromRow;
     }
 
     @Override
-    public void run() {
-        // Interval tree structure can't find intervals inside query interval,
-        // it looks for all overlapping intervals, so additional filtering is required.
-        // IntervalTree implementation can return overlap() result in a form of stream,
-        // so the filtering does not change time complexity of log n + m.
-        // (Filtering contributes only to a coefficient of m).
-        searchTree.overlapStream(queryInterval)
-            .map(IntervalWithDistance.class::cast)
-            .filter(interval -> contains(queryInterval, interval))
-            .forEach(interval -> accumulator.add(interval.distance));
+    protected void compute() {
+        if (!deadline.check()) {
+            return;
+        }
+
+        if (rowCount() > maxRows) {
+            int center = fromRow + rowCount() / 2;
+            invokeAll(
+                new QueryJob(index, fromRow, center, maxDropoff, accumulator, maxRows, deadline),
+                new QueryJob(index, center, toRow, maxDropoff, accumulator, maxRows, deadline));
+            return;
+        }
+
+        // The index selects contained trips by itself, so no results are enumerated here,
+        // partial sum and count are added to the accumulator once per job.
+        index.aggregate(fromRow, toRow, maxDropoff, accumulator);
     }
 
-    private static boolean contains(LongInterval container, LongInterval candidate) {
-        return container.getStart() <= candidate.getStart() && candidate.getEnd() <= container.getEnd();
+    @Override
+    public String toString() {
+        return "rows [" + fromRow + ", " + toRow + "), dropoff <= " + maxDropoff;
     }
 }
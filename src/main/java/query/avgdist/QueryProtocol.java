@@ -0,0 +1,172 @@
+package query.avgdist;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Length-prefixed binary protocol of {@link QueryServer} and {@link QueryClient}.
+ * <p>
+ * Every message is a frame: payload length as a big-endian int, then the payload.
+ * <ul>
+ * <li>Request: long request id, int window count, then start and end of every window as unix timestamps.</li>
+ * <li>Response: long request id of the request, byte status. {@link #OK} is followed by int window count,
+ * then for every window int group count and (int passenger count, double average distance) of every group.
+ * Other statuses are followed by a UTF-8 error message.</li>
+ * </ul>
+ * A client can send any number of requests without waiting for responses. Responses of a connection may come
+ * in any order, the request id matches them.
+ * <p>
+ * Frames of both directions are limited to {@link #MAX_FRAME_SIZE}. A response grows with the number of
+ * passenger count groups of every window, so a request that fits may have an answer that doesn't; such
+ * a request is answered with {@link #BAD_REQUEST}, and has to be split.
+ */
+final class QueryProtocol {
+    static final int MAX_FRAME_SIZE = 1 << 20;
+
+    static final byte OK = 0;
+
+    /**
+     * Invalid request, e.g. an inverted window; failed with {@link IllegalArgumentException}.
+     */
+    static final byte BAD_REQUEST = 1;
+
+    /**
+     * Not admitted by the server, can be retried later; failed with {@link QueryRejectedException}.
+     */
+    static final byte REJECTED = 2;
+
+    /**
+     * Query failure, e.g. a timeout.
+     */
+    static final byte FAILED = 3;
+
+    private static final int REQUEST_HEADER_SIZE = Long.BYTES + Integer.BYTES;
+    private static final int WINDOW_SIZE = 2 * Long.BYTES;
+
+    private QueryProtocol() {
+    }
+
+    /**
+     * Request decoded by the server.
+     */
+    static final class Request {
+        final long id;
+        final List<TimeWindow> windows;
+
+        Request(long id, List<TimeWindow> windows) {
+            this.id = id;
+            this.windows = windows;
+        }
+    }
+
+    static ByteBuffer encodeRequest(long id, List<TimeWindow> windows) {
+        int payloadSize = REQUEST_HEADER_SIZE + windows.size() * WINDOW_SIZE;
+        if (payloadSize > MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException("Too many windows in a request: " + windows.size());
+        }
+
+        ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + payloadSize);
+        frame.putInt(payloadSize);
+        frame.putLong(id);
+        frame.putInt(windows.size());
+        for (TimeWindow window : windows) {
+            frame.putLong(InputTuple.toUnixTimestamp(window.getStart()));
+            frame.putLong(InputTuple.toUnixTimestamp(window.getEnd()));
+        }
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * @param payload request payload, consumed.
+     * @throws IllegalArgumentException if the payload is malformed.
+     */
+    static Request decodeRequest(ByteBuffer payload) {
+        if (payload.remaining() < REQUEST_HEADER_SIZE) {
+            throw new IllegalArgumentException("Truncated request header");
+        }
+        long id = payload.getLong();
+        int windowCount = payload.getInt();
+        if (windowCount < 0 || (long) windowCount * WINDOW_SIZE != payload.remaining()) {
+            throw new IllegalArgumentException("Request " + id + " size doesn't match its window count " + windowCount);
+        }
+
+        List<TimeWindow> windows = new ArrayList<>(windowCount);
+        for (int i = 0; i < windowCount; i++) {
+            windows.add(TimeWindow.of(fromUnixTimestamp(payload.getLong()), fromUnixTimestamp(payload.getLong())));
+        }
+        return new Request(id, windows);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the results don't fit in a frame.
+     */
+    static ByteBuffer encodeResults(long id, List<Map<Integer, Double>> results) {
+        long payloadSize = Long.BYTES + 1 + Integer.BYTES;
+        for (Map<Integer, Double> result : results) {
+            payloadSize += Integer.BYTES + result.size() * (Integer.BYTES + Double.BYTES);
+        }
+        if (payloadSize > MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException("Answer of " + results.size() + " windows takes " + payloadSize
+                + " bytes, more than " + MAX_FRAME_SIZE + ", split the request");
+        }
+
+        ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + (int) payloadSize);
+        frame.putInt((int) payloadSize);
+        frame.putLong(id);
+        frame.put(OK);
+        frame.putInt(results.size());
+        for (Map<Integer, Double> result : results) {
+            frame.putInt(result.size());
+            result.forEach((passCnt, average) -> {
+                frame.putInt(passCnt);
+                frame.putDouble(average);
+            });
+        }
+        frame.flip();
+        return frame;
+    }
+
+    static ByteBuffer encodeError(long id, byte status, String message) {
+        byte[] messageBytes = String.valueOf(message).getBytes(StandardCharsets.UTF_8);
+        int payloadSize = Long.BYTES + 1 + messageBytes.length;
+
+        ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + payloadSize);
+        frame.putInt(payloadSize);
+        frame.putLong(id);
+        frame.put(status);
+        frame.put(messageBytes);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Reads the results of an {@link #OK} response, after its request id and status.
+     */
+    static List<Map<Integer, Double>> readResults(DataInputStream in) throws IOException {
+        int windowCount = in.readInt();
+        List<Map<Integer, Double>> results = new ArrayList<>(windowCount);
+        for (int i = 0; i < windowCount; i++) {
+            int groupCount = in.readInt();
+            Map<Integer, Double> result = new HashMap<>();
+            for (int j = 0; j < groupCount; j++) {
+                int passCnt = in.readInt();
+                result.put(passCnt, in.readDouble());
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
+    static LocalDateTime fromUnixTimestamp(long timestamp) {
+        return LocalDateTime.ofEpochSecond(timestamp, 0, ZoneOffset.UTC);
+    }
+}
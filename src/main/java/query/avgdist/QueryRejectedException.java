@@ -0,0 +1,13 @@
+package query.avgdist;
+
+/**
+ * Thrown when a query is not admitted for execution because too many queries are already waiting.
+ * It's a back-pressure signal: the query can be retried later.
+ */
+public class QueryRejectedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public QueryRejectedException(String message) {
+        super(message);
+    }
+}
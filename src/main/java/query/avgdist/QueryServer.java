@@ -0,0 +1,457 @@
+package query.avgdist;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.DateTimeException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves queries of a single {@link AverageDistances} instance to many clients over TCP,
+ * with the protocol of {@link QueryProtocol}; see {@link QueryClient}.
+ * <p>
+ * A selector thread does all network I/O without blocking, so idle and slow connections cost no threads.
+ * Requests are pipelined: a connection may have up to {@link #MAX_OUTSTANDING_REQUESTS} requests in flight,
+ * then it isn't read until some of them are answered.
+ * <p>
+ * A dispatcher thread takes all requests received while no batch could be started, from all connections,
+ * and evaluates their windows with a single {@link AverageDistances#getAverageDistancesAsync(List)} call, identical
+ * windows once. So concurrent requests share one read of the data and one set of jobs, and the more load,
+ * the bigger the batches. Up to {@link #MAX_BATCHES_IN_FLIGHT} batches run at once, so a slow batch doesn't hold
+ * up the others. If a batch fails, its requests are evaluated again one by one, so that a failure
+ * caused by one request only fails that request.
+ */
+public final class QueryServer implements Closeable {
+    /**
+     * Windows of a batch, unless a single request has more.
+     */
+    static final int MAX_BATCH_WINDOWS = 4096;
+
+    static final int MAX_OUTSTANDING_REQUESTS = 256;
+
+    /**
+     * Batches evaluated concurrently; requests received meanwhile wait for one of them to complete.
+     */
+    static final int MAX_BATCHES_IN_FLIGHT = 4;
+
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+
+    private final AverageDistances avgDist;
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+
+    private final Thread selectorThread;
+    private final Thread dispatcherThread;
+
+    private final BlockingQueue<PendingRequest> pending = new LinkedBlockingQueue<>();
+
+    private final Semaphore batchesInFlight = new Semaphore(MAX_BATCHES_IN_FLIGHT);
+
+    /**
+     * Connections with new responses or fewer outstanding requests, for the selector thread to update.
+     */
+    private final Queue<Connection> updated = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean closed;
+
+    /**
+     * Starts serving. The instance must be initialized by the caller, and stays owned by the caller.
+     *
+     * @param address address to listen at, port 0 picks a free one.
+     */
+    public QueryServer(AverageDistances avgDist, InetSocketAddress address) throws IOException {
+        this.avgDist = avgDist;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(address);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+
+        this.selectorThread = new Thread(this::select, "avgdist-server-selector");
+        this.dispatcherThread = new Thread(this::dispatch, "avgdist-server-dispatcher");
+        selectorThread.start();
+        dispatcherThread.start();
+    }
+
+    /**
+     * @return address the server listens at, with the actual port.
+     */
+    public InetSocketAddress getAddress() {
+        try {
+            return (InetSocketAddress) serverChannel.getLocalAddress();
+        } catch (IOException e) {
+            throw new IllegalStateException("Server is closed", e);
+        }
+    }
+
+    /**
+     * Stops serving and closes all connections; requests in flight are not answered.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        dispatcherThread.interrupt();
+        try {
+            selectorThread.join();
+            dispatcherThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void select() {
+        try {
+            while (!closed) {
+                selector.select();
+                Connection connection;
+                while ((connection = updated.poll()) != null) {
+                    try {
+                        // requests left in the buffer when the connection had too many outstanding ones
+                        connection.readFrames();
+                    } catch (IOException | RuntimeException e) {
+                        AverageDistancesImpl.debug("Closing connection " + connection + ": " + e);
+                        connection.close();
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+
+                    connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        AverageDistancesImpl.debug("Closing connection " + connection + ": " + e);
+                        connection.close();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            AverageDistancesImpl.warn("Query server failed: " + e.getMessage());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    // closing anyway
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                AverageDistancesImpl.warn("Failed to close selector: " + e.getMessage());
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+    }
+
+    private void dispatch() {
+        try {
+            while (!closed) {
+                // taken before the requests, so that they pile up into a bigger batch while all permits are used
+                batchesInFlight.acquire();
+                List<PendingRequest> batch = new ArrayList<>();
+                try {
+                    batch.add(pending.take());
+                } catch (InterruptedException e) {
+                    batchesInFlight.release();
+                    throw e;
+                }
+                int windowCount = batch.get(0).request.windows.size();
+                PendingRequest next;
+                while ((next = pending.peek()) != null && windowCount + next.request.windows.size() <= MAX_BATCH_WINDOWS) {
+                    batch.add(pending.poll());
+                    windowCount += next.request.windows.size();
+                }
+                execute(batch).whenComplete((ignored, e) -> batchesInFlight.release());
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    /**
+     * @return future completed when all requests of the batch are answered, never exceptionally.
+     */
+    private CompletableFuture<Void> execute(List<PendingRequest> batch) {
+        Map<TimeWindow, Integer> positions = new LinkedHashMap<>();
+        for (PendingRequest pendingRequest : batch) {
+            for (TimeWindow window : pendingRequest.request.windows) {
+                positions.putIfAbsent(window, positions.size());
+            }
+        }
+
+        CompletableFuture<List<Map<Integer, Double>>> results;
+        try {
+            results = positions.isEmpty()
+                ? CompletableFuture.completedFuture(Collections.emptyList())
+                : avgDist.getAverageDistancesAsync(new ArrayList<>(positions.keySet()));
+        } catch (RuntimeException e) {
+            results = new CompletableFuture<>();
+            results.completeExceptionally(e);
+        }
+
+        return results.handle((batchResults, failure) -> {
+            if (failure == null) {
+                respond(batch, positions, batchResults);
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+            Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+                ? failure.getCause()
+                : failure;
+            if (cause instanceof QueryRejectedException) {
+                if (!closed) {
+                    batch.forEach(pendingRequest -> pendingRequest.respondError(QueryProtocol.REJECTED, cause.getMessage()));
+                }
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+            if (batch.size() > 1) {
+                // may be caused by a single request, e.g. a huge one timing out, so others don't fail with it;
+                // one after another, as the batch holds a single permit
+                AverageDistancesImpl.debug("Query batch failed, evaluating its requests one by one: " + cause);
+                CompletableFuture<Void> retries = CompletableFuture.completedFuture(null);
+                for (PendingRequest pendingRequest : batch) {
+                    retries = retries.thenCompose(ignored -> closed
+                        ? CompletableFuture.<Void>completedFuture(null)
+                        : execute(Collections.singletonList(pendingRequest)));
+                }
+                return retries;
+            }
+            if (!closed) {
+                AverageDistancesImpl.warn("Query failed: " + cause);
+                batch.get(0).respondError(QueryProtocol.FAILED, cause.toString());
+            }
+            return CompletableFuture.<Void>completedFuture(null);
+        }).thenCompose(done -> done);
+    }
+
+    private void respond(List<PendingRequest> batch, Map<TimeWindow, Integer> positions,
+                         List<Map<Integer, Double>> results) {
+        if (closed) {
+            return;
+        }
+
+        for (PendingRequest pendingRequest : batch) {
+            List<Map<Integer, Double>> requestResults = new ArrayList<>(pendingRequest.request.windows.size());
+            for (TimeWindow window : pendingRequest.request.windows) {
+                requestResults.add(results.get(positions.get(window)));
+            }
+            ByteBuffer response;
+            try {
+                response = QueryProtocol.encodeResults(pendingRequest.request.id, requestResults);
+            } catch (IllegalArgumentException e) {
+                // the client couldn't read the frame and would drop the connection with all its requests
+                response = QueryProtocol.encodeError(pendingRequest.request.id, QueryProtocol.BAD_REQUEST, e.getMessage());
+            }
+            pendingRequest.respond(response);
+        }
+    }
+
+    private static final class PendingRequest {
+        final Connection connection;
+        final QueryProtocol.Request request;
+
+        PendingRequest(Connection connection, QueryProtocol.Request request) {
+            this.connection = connection;
+            this.request = request;
+        }
+
+        void respond(ByteBuffer response) {
+            connection.respond(response);
+        }
+
+        void respondError(byte status, String message) {
+            respond(QueryProtocol.encodeError(request.id, status, message));
+        }
+    }
+
+    /**
+     * Client connection. Channel I/O and interest changes happen in the selector thread only.
+     */
+    private final class Connection {
+        private final SocketChannel channel;
+        private SelectionKey key;
+
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        private final Queue<ByteBuffer> responses = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Requests received and not answered yet.
+         */
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            if (channel.read(readBuffer) < 0) {
+                close();
+                return;
+            }
+            readFrames();
+        }
+
+        /**
+         * Takes the complete requests of the read buffer while more can be outstanding.
+         */
+        void readFrames() throws IOException {
+            if (!key.isValid()) {
+                return;
+            }
+
+            readBuffer.flip();
+            while (readBuffer.remaining() >= Integer.BYTES && outstanding.get() < MAX_OUTSTANDING_REQUESTS) {
+                int frameSize = readBuffer.getInt(readBuffer.position());
+                if (frameSize < 0 || frameSize > QueryProtocol.MAX_FRAME_SIZE) {
+                    throw new IOException("Invalid frame size " + frameSize);
+                }
+                if (readBuffer.remaining() < Integer.BYTES + frameSize) {
+                    break;
+                }
+
+                ByteBuffer payload = readBuffer.duplicate();
+                payload.position(readBuffer.position() + Integer.BYTES).limit(readBuffer.position() + Integer.BYTES + frameSize);
+                readBuffer.position(payload.limit());
+                received(payload);
+            }
+            readBuffer.compact();
+
+            // make room for the whole next frame
+            if (readBuffer.position() >= Integer.BYTES) {
+                int frameSize = readBuffer.getInt(0);
+                if (frameSize >= 0 && frameSize <= QueryProtocol.MAX_FRAME_SIZE
+                    && readBuffer.capacity() < Integer.BYTES + frameSize) {
+                    ByteBuffer grown = ByteBuffer.allocate(Integer.BYTES + frameSize);
+                    readBuffer.flip();
+                    grown.put(readBuffer);
+                    readBuffer = grown;
+                }
+            }
+            updateInterest();
+        }
+
+        private void received(ByteBuffer payload) {
+            QueryProtocol.Request request;
+            try {
+                request = QueryProtocol.decodeRequest(payload);
+            } catch (DateTimeException e) {
+                throw new IllegalArgumentException("Invalid timestamp in a request", e);
+            }
+
+            outstanding.incrementAndGet();
+            PendingRequest pendingRequest = new PendingRequest(this, request);
+            for (TimeWindow window : request.windows) {
+                if (window.getStart().isAfter(window.getEnd())) {
+                    pendingRequest.respondError(QueryProtocol.BAD_REQUEST, "Inverted window: " + window);
+                    return;
+                }
+            }
+            pending.add(pendingRequest);
+        }
+
+        /**
+         * Queues the response for writing, can be called from any thread.
+         */
+        void respond(ByteBuffer response) {
+            responses.add(response);
+            outstanding.decrementAndGet();
+            updated.add(this);
+            selector.wakeup();
+        }
+
+        void write() throws IOException {
+            ByteBuffer response;
+            while ((response = responses.peek()) != null) {
+                channel.write(response);
+                if (response.hasRemaining()) {
+                    break;
+                }
+                responses.poll();
+            }
+            updateInterest();
+        }
+
+        /**
+         * Reads while requests can be accepted, writes while responses are queued.
+         */
+        void updateInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+            int ops = 0;
+            if (outstanding.get() < MAX_OUTSTANDING_REQUESTS) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (!responses.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(channel.socket().getRemoteSocketAddress());
+        }
+    }
+}
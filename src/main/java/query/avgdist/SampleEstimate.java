@@ -0,0 +1,61 @@
+package query.avgdist;
+
+/**
+ * Ratio estimate of the average distance of a group from exactly known totals and from samples
+ * of different sampling fractions (strata).
+ * <p>
+ * The average is estimated as the ratio of estimated distance sum and trip count, each sample scaled by
+ * its inverse sampling fraction. Its variance is approximated with the linearization of the ratio: every sample
+ * contributes {@code (1 - f) / f^2 * sum((d - average)^2)} over its contained trips, as for simple random sampling.
+ */
+final class SampleEstimate {
+    /**
+     * Two-sided 95% quantile of the normal distribution.
+     */
+    static final double Z_95 = 1.959964;
+
+    private long exactCount;
+    private double exactSum;
+
+    private double sampledCount;
+    private double sampledSum;
+    private long sampleCount;
+
+    /**
+     * Sums of sampled values weighted by {@code (1 - f) / f^2}, to get the variance once the average is known.
+     */
+    private double weightedCount;
+    private double weightedSum;
+    private double weightedSumOfSquares;
+
+    public void addExact(long count, double sum) {
+        exactCount += count;
+        exactSum += sum;
+    }
+
+    /**
+     * @param fraction sampling fraction of the sample, in (0, 1].
+     */
+    public void addSampled(long count, double sum, double sumOfSquares, double fraction) {
+        sampledCount += count / fraction;
+        sampledSum += sum / fraction;
+        sampleCount += count;
+
+        double weight = (1 - fraction) / (fraction * fraction);
+        weightedCount += weight * count;
+        weightedSum += weight * sum;
+        weightedSumOfSquares += weight * sumOfSquares;
+    }
+
+    public ApproximateAverage result() {
+        double count = exactCount + sampledCount;
+        if (count == 0) {
+            return new ApproximateAverage(0.0, 0.0, 0);
+        }
+
+        double average = (exactSum + sampledSum) / count;
+        double residualVariance = weightedSumOfSquares - 2 * average * weightedSum + average * average * weightedCount;
+        double marginOfError = Z_95 * Math.sqrt(Math.max(0.0, residualVariance)) / count;
+        return new ApproximateAverage(average, marginOfError, exactCount + sampleCount);
+    }
+}
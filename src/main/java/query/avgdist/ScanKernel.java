@@ -0,0 +1,86 @@
+package query.avgdist;
+
+/**
+ * Filter-and-sum over row ranges of {@link ContainmentIndex} columns, used for rows not covered by whole tree nodes.
+ * <p>
+ * Rows are decoded in blocks into primitive arrays with one call per column, then a block is filtered with
+ * a branch-free loop: no virtual call and no mispredicted branch per row, and the loop is simple enough for
+ * the JIT to unroll. Count and sum stay local to the kernel and are added to an accumulator once per job.
+ * <p>
+ * Not thread-safe, every thread uses its own instance, see {@link #local()}.
+ */
+final class ScanKernel {
+    static final int BLOCK_SIZE = 256;
+
+    private static final ThreadLocal<ScanKernel> LOCAL = ThreadLocal.withInitial(ScanKernel::new);
+
+    private final long[] dropoffBlock = new long[BLOCK_SIZE];
+    private final double[] distanceBlock = new double[BLOCK_SIZE];
+    private final long[] groupBlock = new long[BLOCK_SIZE];
+
+    /**
+     * Number and distance sum of contained trips since the last {@link #reset()}.
+     */
+    long count;
+    double sum;
+
+    /**
+     * @return reset kernel of the current thread; reusing it keeps queries on the calling thread allocation-free.
+     */
+    static ScanKernel local() {
+        ScanKernel kernel = LOCAL.get();
+        kernel.reset();
+        return kernel;
+    }
+
+    void reset() {
+        count = 0;
+        sum = 0.0;
+    }
+
+    /**
+     * Adds trips of rows [fromRow, toRow) with dropoff <= {@code maxDropoff} to the count and sum.
+     */
+    void scan(LongColumn dropoffs, DoubleColumn distances, int fromRow, int toRow, long maxDropoff) {
+        for (int blockStart = fromRow; blockStart < toRow; blockStart += BLOCK_SIZE) {
+            int blockSize = Math.min(BLOCK_SIZE, toRow - blockStart);
+            dropoffs.get(blockStart, blockSize, dropoffBlock);
+            distances.get(blockStart, blockSize, distanceBlock);
+            scanBlock(blockSize, maxDropoff);
+        }
+    }
+
+    private void scanBlock(int blockSize, long maxDropoff) {
+        long blockCount = 0;
+        double blockSum = 0.0;
+        for (int i = 0; i < blockSize; i++) {
+            // selects compile to conditional moves
+            boolean contained = dropoffBlock[i] <= maxDropoff;
+            blockCount += contained ? 1 : 0;
+            blockSum += contained ? distanceBlock[i] : 0.0;
+        }
+        count += blockCount;
+        sum += blockSum;
+    }
+
+    /**
+     * Adds trips of rows [fromRow, toRow) with dropoff <= {@code maxDropoff} to the aggregator, by group key;
+     * the count and sum are not changed.
+     *
+     * @param groupKeys group keys by group id, see {@link GroupDictionary}.
+     */
+    void scanGroups(LongColumn dropoffs, DoubleColumn distances, LongColumn groups, int fromRow, int toRow,
+                    long maxDropoff, long[] groupKeys, GroupAggregator aggregator) {
+        for (int blockStart = fromRow; blockStart < toRow; blockStart += BLOCK_SIZE) {
+            int blockSize = Math.min(BLOCK_SIZE, toRow - blockStart);
+            dropoffs.get(blockStart, blockSize, dropoffBlock);
+            distances.get(blockStart, blockSize, distanceBlock);
+            groups.get(blockStart, blockSize, groupBlock);
+            for (int i = 0; i < blockSize; i++) {
+                if (dropoffBlock[i] <= maxDropoff) {
+                    aggregator.add(groupKeys[(int) groupBlock[i]], distanceBlock[i]);
+                }
+            }
+        }
+    }
+}
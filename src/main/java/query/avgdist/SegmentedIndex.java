@@ -0,0 +1,174 @@
+package query.avgdist;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Immutable index of a passengerCount group made of {@link ContainmentIndex} segments.
+ * <p>
+ * Trips are partitioned by the actual pickup timestamp into partitions of {@link #PARTITION_SECONDS}, regardless
+ * of the file they come from, so that zone maps of segments are tight and queries skip or fully take most
+ * segments without a search (see {@link ContainmentIndex#isDisjoint(TimeInterval)}). A trip with an unexpected
+ * timestamp lands in a partition of its own instead of widening the segment of its file.
+ * <p>
+ * Appended trips of a partition become a new segment. To keep the number of segments logarithmic in the number
+ * of trips, a new segment is merged with the newest existing segments of the partition while they are at most
+ * {@link #MERGE_FACTOR} times larger (the logarithmic method of Bentley and Saxe). So every trip is rebuilt
+ * O(log n) times in total.
+ */
+final class SegmentedIndex {
+    static final int MERGE_FACTOR = 2;
+
+    /**
+     * Width of a time partition.
+     */
+    static final long PARTITION_SECONDS = 7 * 24 * 3600;
+
+    static final SegmentedIndex EMPTY = new SegmentedIndex(Collections.emptyList());
+
+    /**
+     * Segments ordered by partition, then from the oldest (the largest) to the newest.
+     */
+    final List<ContainmentIndex> segments;
+
+    SegmentedIndex(List<ContainmentIndex> segments) {
+        this.segments = Collections.unmodifiableList(segments);
+    }
+
+    public static SegmentedIndex of(ContainmentIndex segment) {
+        return new SegmentedIndex(Collections.singletonList(segment));
+    }
+
+    /**
+     * @param storage storage for the segments, {@link IndexStorage#HEAP} or {@link IndexStorage#DIRECT}.
+     */
+    public static SegmentedIndex build(TripColumns trips, IndexStorage storage) {
+        return EMPTY.append(trips, storage);
+    }
+
+    static long partitionOf(long pickup) {
+        return Math.floorDiv(pickup, PARTITION_SECONDS);
+    }
+
+    public long size() {
+        return segments.stream().mapToLong(ContainmentIndex::size).sum();
+    }
+
+    public long memorySize() {
+        return segments.stream().mapToLong(ContainmentIndex::memorySize).sum();
+    }
+
+    /**
+     * @param storage storage for the new segments, {@link IndexStorage#HEAP} or {@link IndexStorage#DIRECT}.
+     * @return new index with the trips appended; this index stays unchanged.
+     */
+    public SegmentedIndex append(TripColumns trips, IndexStorage storage) {
+        // segments of older snapshots may span partitions, they are kept in the partition of their first pickup
+        TreeMap<Long, List<ContainmentIndex>> partitions = new TreeMap<>();
+        for (ContainmentIndex segment : segments) {
+            partitions.computeIfAbsent(partitionOf(segment.minPickup), partition -> new ArrayList<>()).add(segment);
+        }
+
+        for (Map.Entry<Long, TripColumns> entry : partition(trips).entrySet()) {
+            List<ContainmentIndex> partitionSegments = partitions.computeIfAbsent(entry.getKey(), partition -> new ArrayList<>());
+
+            TripColumns added = entry.getValue();
+            TripColumns merged = added;
+            while (!partitionSegments.isEmpty()
+                && partitionSegments.get(partitionSegments.size() - 1).size() <= (long) merged.size * MERGE_FACTOR) {
+                if (merged == added) {
+                    merged = new TripColumns();
+                    merged.addAll(added);
+                }
+                partitionSegments.remove(partitionSegments.size() - 1).appendRowsTo(merged);
+            }
+
+            ContainmentIndex segment = ContainmentIndex.build(merged);
+            partitionSegments.add(storage == IndexStorage.HEAP ? segment : segment.copyTo(storage));
+        }
+
+        List<ContainmentIndex> result = new ArrayList<>();
+        partitions.values().forEach(result::addAll);
+        return new SegmentedIndex(result);
+    }
+
+    /**
+     * @return trips split by partition, the trips themselves if they are all in the same partition.
+     */
+    private static TreeMap<Long, TripColumns> partition(TripColumns trips) {
+        TreeMap<Long, TripColumns> result = new TreeMap<>();
+        if (trips.size == 0) {
+            return result;
+        }
+
+        long minPartition = Long.MAX_VALUE;
+        long maxPartition = Long.MIN_VALUE;
+        for (int i = 0; i < trips.size; i++) {
+            long partition = partitionOf(trips.pickups[i]);
+            minPartition = Math.min(minPartition, partition);
+            maxPartition = Math.max(maxPartition, partition);
+        }
+        if (minPartition == maxPartition) {
+            result.put(minPartition, trips);
+            return result;
+        }
+
+        // partitions by index: all of the span if it's dense, or the distinct ones if a few outliers make it sparse
+        long[] partitions;
+        boolean dense = maxPartition - minPartition < trips.size;
+        if (dense) {
+            partitions = new long[(int) (maxPartition - minPartition + 1)];
+            for (int p = 0; p < partitions.length; p++) {
+                partitions[p] = minPartition + p;
+            }
+        } else {
+            long[] sorted = new long[trips.size];
+            for (int i = 0; i < trips.size; i++) {
+                sorted[i] = partitionOf(trips.pickups[i]);
+            }
+            Arrays.sort(sorted);
+            int distinct = 1;
+            for (int i = 1; i < sorted.length; i++) {
+                if (sorted[i] != sorted[distinct - 1]) {
+                    sorted[distinct++] = sorted[i];
+                }
+            }
+            partitions = Arrays.copyOf(sorted, distinct);
+        }
+
+        // one pass to size the columns of every partition, so that rows are copied without growing them
+        int[] rowPartitions = new int[trips.size];
+        int[] counts = new int[partitions.length];
+        for (int i = 0; i < trips.size; i++) {
+            long partition = partitionOf(trips.pickups[i]);
+            int p = dense ? (int) (partition - minPartition) : Arrays.binarySearch(partitions, partition);
+            rowPartitions[i] = p;
+            counts[p]++;
+        }
+
+        TripColumns[] columns = new TripColumns[partitions.length];
+        for (int p = 0; p < partitions.length; p++) {
+            if (counts[p] > 0) {
+                columns[p] = new TripColumns(counts[p]);
+                result.put(partitions[p], columns[p]);
+            }
+        }
+        for (int i = 0; i < trips.size; i++) {
+            columns[rowPartitions[i]].add(trips.pickups[i], trips.dropoffs[i], trips.distances[i], trips.groups[i]);
+        }
+        return result;
+    }
+
+    /**
+     * @return copy of the index with all segments moved to the storage.
+     */
+    public SegmentedIndex copyTo(IndexStorage storage) {
+        List<ContainmentIndex> result = new ArrayList<>();
+        segments.forEach(segment -> result.add(segment.copyTo(storage)));
+        return new SegmentedIndex(result);
+    }
+}
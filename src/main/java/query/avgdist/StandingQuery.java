@@ -0,0 +1,154 @@
+package query.avgdist;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/**
+ * Query registered with {@link AverageDistances#registerStandingQuery(TimeWindow, Consumer)} or
+ * {@link AverageDistances#registerStandingQuery(Duration, Consumer)}. Its result is maintained on every data update,
+ * so reading it doesn't run a query.
+ * <p>
+ * The window is either fixed, or sliding: the last {@code length} of data, ending at the latest dropoff
+ * of all loaded trips. Result getters are thread-safe and see the result of the latest update.
+ */
+public final class StandingQuery implements Closeable {
+    /**
+     * Fixed window, {@code null} for a sliding one.
+     */
+    private final TimeWindow fixedWindow;
+
+    /**
+     * Length of a sliding window, {@code null} for a fixed one.
+     */
+    private final Duration length;
+
+    private final Consumer<Map<Integer, Double>> listener;
+
+    private final Consumer<StandingQuery> unregister;
+
+    /**
+     * Current result, replaced as a whole on every change.
+     */
+    private volatile TripTotals totals = new TripTotals();
+
+    /**
+     * Window of the current result, {@code null} if a sliding window has no data to end at.
+     */
+    private volatile TimeWindow window;
+
+    /**
+     * Whether the last data update failed to update the result.
+     */
+    private volatile boolean stale;
+
+    StandingQuery(TimeWindow fixedWindow, Duration length, Consumer<Map<Integer, Double>> listener,
+                  Consumer<StandingQuery> unregister) {
+        this.fixedWindow = fixedWindow;
+        this.length = length;
+        this.listener = Objects.requireNonNull(listener);
+        this.unregister = unregister;
+        this.window = fixedWindow;
+    }
+
+    public boolean isSliding() {
+        return length != null;
+    }
+
+    /**
+     * @return window of the current result; empty if the window is sliding and there is no data.
+     */
+    public Optional<TimeWindow> getWindow() {
+        return Optional.ofNullable(window);
+    }
+
+    /**
+     * @return {@code true} if the last data update failed to update the result, e.g. because the query
+     * was rejected by admission control; the result is then of the previous data, until the next data update
+     * evaluates the query again.
+     */
+    public boolean isStale() {
+        return stale;
+    }
+
+    /**
+     * @return current result, same as {@link AverageDistances#getAverageDistances(LocalDateTime, LocalDateTime)}
+     * for the current window.
+     */
+    public Map<Integer, Double> getAverageDistances() {
+        return totals.averageDistances();
+    }
+
+    /**
+     * @param target totals to fill, cleared first.
+     * @return the target filled with the current trip counts and distance sums.
+     */
+    public TripTotals getTotals(TripTotals target) {
+        target.set(totals);
+        return target;
+    }
+
+    /**
+     * Unregisters the query, the listener is not called anymore.
+     */
+    @Override
+    public void close() {
+        unregister.accept(this);
+    }
+
+    /**
+     * @param spread timestamp spread of the data, {@code null} if there is no data.
+     * @return window of the query over the data, {@code null} if a sliding window has no data to end at.
+     */
+    TimeWindow windowFor(TimeInterval spread) {
+        if (!isSliding()) {
+            return fixedWindow;
+        }
+        if (spread == null) {
+            return null;
+        }
+        LocalDateTime end = LocalDateTime.ofEpochSecond(spread.end, 0, ZoneOffset.UTC);
+        return TimeWindow.of(end.minus(length), end);
+    }
+
+    TripTotals totals() {
+        return totals;
+    }
+
+    /**
+     * Publishes a new result, notifying the listener if the averages have changed.
+     * A failing listener is reported, so that it doesn't fail the data update.
+     */
+    void update(TimeWindow newWindow, TripTotals newTotals) {
+        Map<Integer, Double> previous = totals.averageDistances();
+        window = newWindow;
+        totals = newTotals;
+        stale = false;
+
+        Map<Integer, Double> averages = newTotals.averageDistances();
+        if (!averages.equals(previous)) {
+            try {
+                listener.accept(averages);
+            } catch (RuntimeException e) {
+                AverageDistancesImpl.warn("Standing query listener failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * Marks the result as not updated with the latest data.
+     */
+    void markStale() {
+        stale = true;
+    }
+
+    @Override
+    public String toString() {
+        return isSliding() ? "last " + length + " " + window : String.valueOf(window);
+    }
+}
@@ -0,0 +1,44 @@
+package query.avgdist;
+
+/**
+ * Closed interval of unix timestamps.
+ */
+final class TimeInterval {
+    public final long start;
+
+    public final long end;
+
+    public TimeInterval(long start, long end) {
+        if (start > end) {
+            throw new IllegalArgumentException("Inverted time interval: " + start + " > " + end);
+        }
+        this.start = start;
+        this.end = end;
+    }
+
+    public long width() {
+        return end - start;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TimeInterval)) {
+            return false;
+        }
+        TimeInterval other = (TimeInterval) o;
+        return start == other.start && end == other.end;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(start) * 31 + Long.hashCode(end);
+    }
+
+    @Override
+    public String toString() {
+        return "[" + start + ", " + end + "]";
+    }
+}
@@ -0,0 +1,56 @@
+package query.avgdist;
+
+import java.time.LocalDateTime;
+import java.util.Objects;
+
+/**
+ * Query time window for {@link AverageDistances#getAverageDistances(java.util.List)}.
+ */
+public final class TimeWindow {
+    private final LocalDateTime start;
+
+    private final LocalDateTime end;
+
+    private TimeWindow(LocalDateTime start, LocalDateTime end) {
+        this.start = Objects.requireNonNull(start);
+        this.end = Objects.requireNonNull(end);
+    }
+
+    /**
+     * @param start minimum tpep_pickup_datetime, inclusive.
+     * @param end   maximum tpep_dropoff_datetime, inclusive.
+     */
+    public static TimeWindow of(LocalDateTime start, LocalDateTime end) {
+        return new TimeWindow(start, end);
+    }
+
+    public LocalDateTime getStart() {
+        return start;
+    }
+
+    public LocalDateTime getEnd() {
+        return end;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TimeWindow)) {
+            return false;
+        }
+        TimeWindow other = (TimeWindow) o;
+        return start.equals(other.start) && end.equals(other.end);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return "[" + start + ", " + end + "]";
+    }
+}
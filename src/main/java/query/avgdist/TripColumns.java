@@ -0,0 +1,80 @@
+package query.avgdist;
+
+import java.util.Arrays;
+
+/**
+ * Growable parallel primitive columns of trips, used as a load buffer before an index is built.
+ */
+class TripColumns {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    long[] pickups;
+    long[] dropoffs;
+    double[] distances;
+
+    /**
+     * Ids of {@link GroupDictionary} the trips are loaded with.
+     */
+    int[] groups;
+    int size;
+
+    TripColumns() {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param capacity number of trips to add without growing, e.g. when it's known in advance.
+     */
+    TripColumns(int capacity) {
+        pickups = new long[capacity];
+        dropoffs = new long[capacity];
+        distances = new double[capacity];
+        groups = new int[capacity];
+    }
+
+    /**
+     * Adds a trip of the group with all dimensions unknown.
+     */
+    public void add(long pickup, long dropoff, double distance) {
+        add(pickup, dropoff, distance, 0);
+    }
+
+    public void add(long pickup, long dropoff, double distance, int group) {
+        if (size == pickups.length) {
+            grow(size + 1);
+        }
+        pickups[size] = pickup;
+        dropoffs[size] = dropoff;
+        distances[size] = distance;
+        groups[size] = group;
+        size++;
+    }
+
+    public void addAll(TripColumns other) {
+        if (size + other.size > pickups.length) {
+            grow(size + other.size);
+        }
+        System.arraycopy(other.pickups, 0, pickups, size, other.size);
+        System.arraycopy(other.dropoffs, 0, dropoffs, size, other.size);
+        System.arraycopy(other.distances, 0, distances, size, other.size);
+        System.arraycopy(other.groups, 0, groups, size, other.size);
+        size += other.size;
+    }
+
+    /**
+     * Replaces every group id with {@code mapping[id]}, e.g. when dictionaries are merged.
+     */
+    public void remapGroups(int[] mapping) {
+        for (int i = 0; i < size; i++) {
+            groups[i] = mapping[groups[i]];
+        }
+    }
+
+    private void grow(int minCapacity) {
+        int capacity = Math.max(minCapacity, pickups.length + (pickups.length >> 1));
+        pickups = Arrays.copyOf(pickups, capacity);
+        dropoffs = Arrays.copyOf(dropoffs, capacity);
+        distances = Arrays.copyOf(distances, capacity);
+        groups = Arrays.copyOf(groups, capacity);
+    }
+}
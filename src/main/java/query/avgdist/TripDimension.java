@@ -0,0 +1,67 @@
+package query.avgdist;
+
+/**
+ * Integer CSV columns trips can be grouped and filtered by, see
+ * {@link AverageDistances#getAverageDistances(java.time.LocalDateTime, java.time.LocalDateTime, java.util.List, java.util.Map)}.
+ * <p>
+ * Values are 0 to {@link #MAX_VALUE}. A value missing in the file (e.g. location IDs in files before July 2016),
+ * empty or out of range is {@link #UNKNOWN}.
+ */
+public enum TripDimension {
+    VENDOR_ID("VendorID", 0),
+    PASSENGER_COUNT("passenger_count", -1),
+    PAYMENT_TYPE("payment_type", 16),
+    PICKUP_LOCATION_ID("PULocationID", 32),
+    DROPOFF_LOCATION_ID("DOLocationID", 48);
+
+    public static final int UNKNOWN = -1;
+
+    public static final int MAX_VALUE = 0xFFFE;
+
+    /**
+     * Dimensions packed into group keys, all but {@link #PASSENGER_COUNT} that has an index per value.
+     */
+    static final TripDimension[] KEY_DIMENSIONS = {VENDOR_ID, PAYMENT_TYPE, PICKUP_LOCATION_ID, DROPOFF_LOCATION_ID};
+
+    /**
+     * Group key of a trip with all key dimensions unknown.
+     */
+    static final long UNKNOWN_KEY = -1L;
+
+    private static final long VALUE_MASK = 0xFFFF;
+
+    /**
+     * CSV header of the column, matched ignoring case.
+     */
+    final String columnName;
+
+    /**
+     * Position of the 16-bit value in group keys, -1 for {@link #PASSENGER_COUNT} that isn't a part of them.
+     */
+    private final int keyShift;
+
+    TripDimension(String columnName, int keyShift) {
+        this.columnName = columnName;
+        this.keyShift = keyShift;
+    }
+
+    /**
+     * @return group key with the value of this dimension replaced.
+     */
+    long withValue(long key, int value) {
+        long encoded = value < 0 || value > MAX_VALUE ? VALUE_MASK : value;
+        return (key & ~(VALUE_MASK << keyShift)) | (encoded << keyShift);
+    }
+
+    int valueOf(long key) {
+        long encoded = (key >>> keyShift) & VALUE_MASK;
+        return encoded == VALUE_MASK ? UNKNOWN : (int) encoded;
+    }
+
+    /**
+     * @return bits of group keys holding the value of this dimension.
+     */
+    long keyMask() {
+        return VALUE_MASK << keyShift;
+    }
+}
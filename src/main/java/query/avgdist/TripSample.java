@@ -0,0 +1,223 @@
+package query.avgdist;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Systematic sample of the rows of a {@link ContainmentIndex}: every {@link #SAMPLE_INTERVAL}-th row
+ * in pickup order, so the sample is spread evenly over the time span of the index.
+ * Small indexes are kept as a whole, their estimates are exact.
+ * <p>
+ * The sample has a merge-sort tree of its own, laid out as the one of {@link ContainmentIndex}, with node-local
+ * prefix sums of distances and of their squares. So an estimate costs a tree walk over
+ * {@value #SAMPLE_INTERVAL} times fewer rows than the exact query of the index, on heap arrays.
+ */
+final class TripSample {
+    static final int SAMPLE_INTERVAL = 32;
+
+    /**
+     * Indexes with at most this number of rows are sampled completely.
+     */
+    static final int MIN_SAMPLED_ROWS = 4096;
+
+    /**
+     * Sampled trip columns ordered by pickup timestamp.
+     */
+    final long[] pickups;
+    final long[] dropoffs;
+    final double[] distances;
+
+    /**
+     * Per tree level: dropoff timestamps sorted within each node, see {@link ContainmentIndex#levelDropoffs}.
+     */
+    private final long[][] levelDropoffs;
+
+    /**
+     * Per tree level: node-local prefix sums of distances and of squared distances
+     * in the order of {@link #levelDropoffs}.
+     */
+    private final double[][] levelDistanceSums;
+    private final double[][] levelSquareSums;
+
+    /**
+     * Number of rows of the index, so the sampling fraction is {@code pickups.length / populationSize}.
+     */
+    final int populationSize;
+
+    private TripSample(long[] pickups, long[] dropoffs, double[] distances, int populationSize) {
+        this.pickups = pickups;
+        this.dropoffs = dropoffs;
+        this.distances = distances;
+        this.populationSize = populationSize;
+
+        // same bottom-up merge sort as ContainmentIndex.build(), with squares derived from the merged distances
+        int size = pickups.length;
+        List<long[]> dropoffLevels = new ArrayList<>();
+        List<double[]> distanceLevels = new ArrayList<>();
+        List<double[]> squareLevels = new ArrayList<>();
+
+        long[] keys = dropoffs.clone();
+        double[] values = distances.clone();
+        long[] keysBuffer = new long[size];
+        double[] valuesBuffer = new double[size];
+
+        long nextLevelWidth = ContainmentIndex.LEAF_SIZE;
+        for (long width = 1; ; width *= 2) {
+            if (width == nextLevelWidth) {
+                int nodeWidth = (int) Math.min(width, Integer.MAX_VALUE);
+                double[] sums = new double[size];
+                double[] squareSums = new double[size];
+                for (int i = 0; i < size; i++) {
+                    boolean nodeStart = i % nodeWidth == 0;
+                    sums[i] = nodeStart ? values[i] : sums[i - 1] + values[i];
+                    squareSums[i] = nodeStart ? values[i] * values[i] : squareSums[i - 1] + values[i] * values[i];
+                }
+                dropoffLevels.add(keys.clone());
+                distanceLevels.add(sums);
+                squareLevels.add(squareSums);
+                if (width >= size) {
+                    break;
+                }
+                nextLevelWidth *= ContainmentIndex.FANOUT;
+            }
+
+            ContainmentIndex.mergePass(keys, values, width, size, keysBuffer, valuesBuffer);
+
+            long[] swapKeys = keys;
+            keys = keysBuffer;
+            keysBuffer = swapKeys;
+            double[] swapValues = values;
+            values = valuesBuffer;
+            valuesBuffer = swapValues;
+        }
+
+        this.levelDropoffs = dropoffLevels.toArray(new long[0][]);
+        this.levelDistanceSums = distanceLevels.toArray(new double[0][]);
+        this.levelSquareSums = squareLevels.toArray(new double[0][]);
+    }
+
+    public static TripSample of(ContainmentIndex index) {
+        int size = index.size();
+        int interval = size <= MIN_SAMPLED_ROWS ? 1 : SAMPLE_INTERVAL;
+        int sampleSize = (size + interval - 1 - interval / 2) / interval;
+
+        long[] pickups = new long[sampleSize];
+        long[] dropoffs = new long[sampleSize];
+        double[] distances = new double[sampleSize];
+        for (int i = 0; i < sampleSize; i++) {
+            int row = i * interval + interval / 2;
+            pickups[i] = index.pickups.get(row);
+            dropoffs[i] = index.dropoffs.get(row);
+            distances[i] = index.distances.get(row);
+        }
+        return new TripSample(pickups, dropoffs, distances, size);
+    }
+
+    /**
+     * Adds the estimate of trips contained in the query interval to the estimate.
+     */
+    public void estimate(TimeInterval query, SampleEstimate estimate) {
+        // trips picked up after query end can't be dropped off before it
+        int fromRow = lowerBound(query.start);
+        int toRow = query.end == Long.MAX_VALUE ? pickups.length : lowerBound(query.end + 1);
+        long maxDropoff = query.end;
+
+        int firstLeaf = fromRow / ContainmentIndex.LEAF_SIZE + (fromRow % ContainmentIndex.LEAF_SIZE == 0 ? 0 : 1);
+        int lastLeaf = toRow / ContainmentIndex.LEAF_SIZE;
+        if (firstLeaf >= lastLeaf) {
+            scan(fromRow, toRow, maxDropoff, estimate);
+            return;
+        }
+        scan(fromRow, firstLeaf * ContainmentIndex.LEAF_SIZE, maxDropoff, estimate);
+        scan(lastLeaf * ContainmentIndex.LEAF_SIZE, toRow, maxDropoff, estimate);
+
+        // the same bottom-up walk as ContainmentIndex.aggregate()
+        long count = 0;
+        double sum = 0.0;
+        double sumOfSquares = 0.0;
+        int left = firstLeaf;
+        int right = lastLeaf;
+        long nodeWidth = ContainmentIndex.LEAF_SIZE;
+        for (int level = 0; left < right; level++) {
+            long[] sortedDropoffs = levelDropoffs[level];
+            while (left < right && left % ContainmentIndex.FANOUT != 0) {
+                int nodeStart = (int) (left * nodeWidth);
+                int found = upperBound(sortedDropoffs, nodeStart, (int) (nodeStart + nodeWidth), maxDropoff);
+                if (found > nodeStart) {
+                    count += found - nodeStart;
+                    sum += levelDistanceSums[level][found - 1];
+                    sumOfSquares += levelSquareSums[level][found - 1];
+                }
+                left++;
+            }
+            while (left < right && right % ContainmentIndex.FANOUT != 0) {
+                right--;
+                int nodeStart = (int) (right * nodeWidth);
+                int found = upperBound(sortedDropoffs, nodeStart, (int) (nodeStart + nodeWidth), maxDropoff);
+                if (found > nodeStart) {
+                    count += found - nodeStart;
+                    sum += levelDistanceSums[level][found - 1];
+                    sumOfSquares += levelSquareSums[level][found - 1];
+                }
+            }
+
+            left /= ContainmentIndex.FANOUT;
+            right /= ContainmentIndex.FANOUT;
+            nodeWidth *= ContainmentIndex.FANOUT;
+        }
+        estimate.addSampled(count, sum, sumOfSquares, fraction());
+    }
+
+    /**
+     * Adds the estimate of trips of rows [fromRow, toRow) with dropoff <= {@code maxDropoff} to the estimate.
+     */
+    private void scan(int fromRow, int toRow, long maxDropoff, SampleEstimate estimate) {
+        long count = 0;
+        double sum = 0.0;
+        double sumOfSquares = 0.0;
+        for (int i = fromRow; i < toRow; i++) {
+            if (dropoffs[i] <= maxDropoff) {
+                count++;
+                sum += distances[i];
+                sumOfSquares += distances[i] * distances[i];
+            }
+        }
+        estimate.addSampled(count, sum, sumOfSquares, fraction());
+    }
+
+    private double fraction() {
+        return (double) pickups.length / populationSize;
+    }
+
+    private int lowerBound(long pickup) {
+        int lo = 0;
+        int hi = pickups.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (pickups[mid] < pickup) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static int upperBound(long[] sorted, int from, int to, long value) {
+        int lo = from;
+        int hi = to;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid] <= value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    public long memorySize() {
+        return 24L * pickups.length * (1 + levelDropoffs.length);
+    }
+}
@@ -0,0 +1,180 @@
+package query.avgdist;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Trip count and distance sum per passengerCount value, in parallel primitive arrays.
+ * <p>
+ * Unlike averages, totals compose: totals of disjoint sets of trips, e.g. of different instances holding
+ * different shards of data, are combined with {@link #merge(TripTotals)}. Note that totals of adjacent
+ * windows don't make the totals of their union: a trip crossing the common boundary is contained in neither
+ * of the windows.
+ * <p>
+ * Instances are mutable and can be reused between queries, see
+ * {@link AverageDistances#getTotals(java.time.LocalDateTime, java.time.LocalDateTime, TripTotals)}:
+ * once arrays have grown to the number of groups, filling doesn't allocate. Not thread-safe.
+ */
+public final class TripTotals {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int size;
+    private int[] passengerCounts;
+    private long[] tripCounts;
+    private double[] distanceSums;
+
+    /**
+     * Accumulator reused by queries filling this instance in the calling thread.
+     */
+    final DoubleAccumulator scratch = new DoubleAccumulator();
+
+    public TripTotals() {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param capacity expected number of groups.
+     */
+    public TripTotals(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity should be non-negative");
+        }
+        passengerCounts = new int[capacity];
+        tripCounts = new long[capacity];
+        distanceSums = new double[capacity];
+    }
+
+    /**
+     * @return number of groups; groups are indexed from 0 to {@code size() - 1} in no particular order.
+     */
+    public int size() {
+        return size;
+    }
+
+    public int passengerCount(int group) {
+        checkGroup(group);
+        return passengerCounts[group];
+    }
+
+    public long tripCount(int group) {
+        checkGroup(group);
+        return tripCounts[group];
+    }
+
+    public double distanceSum(int group) {
+        checkGroup(group);
+        return distanceSums[group];
+    }
+
+    /**
+     * @return average trip distance of the group, 0.0 if the group has no trips.
+     */
+    public double averageDistance(int group) {
+        checkGroup(group);
+        return tripCounts[group] != 0 ? distanceSums[group] / tripCounts[group] : 0.0;
+    }
+
+    /**
+     * @return index of the group with the passengerCount value, or -1 if none.
+     */
+    public int indexOf(int passengerCount) {
+        for (int i = 0; i < size; i++) {
+            if (passengerCounts[i] == passengerCount) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return trip count of all groups.
+     */
+    public long totalTripCount() {
+        long total = 0;
+        for (int i = 0; i < size; i++) {
+            total += tripCounts[i];
+        }
+        return total;
+    }
+
+    /**
+     * Removes all groups, keeping the arrays for reuse.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Adds trips to the group with the passengerCount value, creating the group if needed.
+     */
+    public void add(int passengerCount, long tripCount, double distanceSum) {
+        int group = indexOf(passengerCount);
+        if (group < 0) {
+            if (size == passengerCounts.length) {
+                int capacity = Math.max(INITIAL_CAPACITY, 2 * size);
+                passengerCounts = Arrays.copyOf(passengerCounts, capacity);
+                tripCounts = Arrays.copyOf(tripCounts, capacity);
+                distanceSums = Arrays.copyOf(distanceSums, capacity);
+            }
+            group = size++;
+            passengerCounts[group] = passengerCount;
+            tripCounts[group] = 0;
+            distanceSums[group] = 0.0;
+        }
+        tripCounts[group] += tripCount;
+        distanceSums[group] += distanceSum;
+    }
+
+    /**
+     * Adds all groups of the other totals to this one.
+     */
+    public void merge(TripTotals other) {
+        for (int i = 0; i < other.size; i++) {
+            add(other.passengerCounts[i], other.tripCounts[i], other.distanceSums[i]);
+        }
+    }
+
+    /**
+     * Replaces all groups of this totals with the groups of the other one.
+     */
+    public void set(TripTotals other) {
+        clear();
+        merge(other);
+    }
+
+    public TripTotals copy() {
+        TripTotals result = new TripTotals(size);
+        result.merge(this);
+        return result;
+    }
+
+    /**
+     * @return average distance per passengerCount value, 0.0 for groups without trips.
+     */
+    public Map<Integer, Double> averageDistances() {
+        Map<Integer, Double> result = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            result.put(passengerCounts[i], averageDistance(i));
+        }
+        return result;
+    }
+
+    private void checkGroup(int group) {
+        if (group < 0 || group >= size) {
+            throw new IndexOutOfBoundsException("Group " + group + " out of " + size);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder("{");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                result.append(", ");
+            }
+            result.append(passengerCounts[i]).append("=").append(tripCounts[i]).append("/").append(distanceSums[i]);
+        }
+        return result.append("}").toString();
+    }
+}
@@ -1,13 +1,47 @@
 package query.avgdist;
 
+import de.siegmar.fastcsv.reader.CsvReader;
+import de.siegmar.fastcsv.reader.CsvRow;
 import org.junit.jupiter.api.Test;
 
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -94,6 +128,1265 @@ public class UnitTests {
         }
     }
 
+    @Test
+    public void batchQueries() {
+        try (AverageDistancesImpl impl = new AverageDistancesImpl(3, Long.MAX_VALUE)) {
+            impl.init(Paths.get("testdata", "12days"));
+
+            List<TimeWindow> windows = new ArrayList<>();
+            for (int day = 0; day < 366; day++) {
+                LocalDateTime start = MIN_DATETIME.plusDays(day);
+                windows.add(TimeWindow.of(start.plusHours(day % 13), start.plusDays(day % 40).plusHours(12)));
+            }
+            windows.add(TimeWindow.of(LocalDateTime.of(2019, 1, 1, 0, 0), LocalDateTime.of(2019, 2, 1, 0, 0)));
+            windows.add(TimeWindow.of(MIN_DATETIME, MAX_DATETIME));
+
+            List<Map<Integer, Double>> results = impl.getAverageDistances(windows);
+            assertEquals(windows.size(), results.size());
+            for (int i = 0; i < windows.size(); i++) {
+                TimeWindow window = windows.get(i);
+                assertEquals(impl.getAverageDistances(window.getStart(), window.getEnd()), results.get(i), window.toString());
+            }
+            assertTrue(results.get(366).isEmpty());
+            assertEquals(12, results.get(367).size());
+
+            assertThrows(IllegalArgumentException.class, () -> impl.getAverageDistances(Arrays.asList(
+                TimeWindow.of(MIN_DATETIME, MAX_DATETIME), TimeWindow.of(MAX_DATETIME, MIN_DATETIME))));
+        }
+    }
+
+    @Test
+    public void queryCache() throws IOException {
+        Path dataDir = Files.createTempDirectory("avgdist");
+        Path otherDir = Files.createTempDirectory("avgdist");
+        Random random = new Random(11);
+        try (AverageDistancesImpl plain = new AverageDistancesImpl(2, Long.MAX_VALUE, 1);
+             AverageDistancesImpl cached = new AverageDistancesImpl(2, Long.MAX_VALUE, 1, null, IndexStorage.HEAP, 8)) {
+            writeRandomTrips(dataDir.resolve("1.csv"), random, 3000);
+            writeRandomTrips(otherDir.resolve("2.csv"), random, 3000);
+            plain.init(dataDir);
+            cached.init(dataDir);
+
+            for (int round = 0; round < 2; round++) {
+                for (int q = 0; q < 300; q++) {
+                    // few distinct ends, so that most queries differ from cached ones only by start
+                    LocalDateTime end = MIN_DATETIME.plusDays(5 + random.nextInt(4) * 7);
+                    LocalDateTime start = end.minusHours(random.nextInt(24 * 20));
+                    Map<Integer, Double> expected = plain.getAverageDistances(start, end);
+                    Map<Integer, Double> actual = cached.getAverageDistances(start, end);
+                    assertEquals(expected.keySet(), actual.keySet());
+                    expected.forEach((passCnt, avg) -> assertEquals(avg, actual.get(passCnt), DELTA));
+
+                    // start edge moved from cached results: counts are exact, sums differ only by rounding
+                    LocalDateTime movedStart = start.minusMinutes(1 + random.nextInt(600));
+                    TripTotals expectedTotals = plain.getTotals(movedStart, end, new TripTotals());
+                    TripTotals actualTotals = cached.getTotals(movedStart, end, new TripTotals());
+                    assertEquals(expectedTotals.size(), actualTotals.size());
+                    for (int group = 0; group < expectedTotals.size(); group++) {
+                        int actualGroup = actualTotals.indexOf(expectedTotals.passengerCount(group));
+                        assertEquals(expectedTotals.tripCount(group), actualTotals.tripCount(actualGroup));
+                        assertEquals(expectedTotals.distanceSum(group), actualTotals.distanceSum(actualGroup),
+                            1e-12 * Math.abs(expectedTotals.distanceSum(group)));
+                    }
+                }
+                assertTrue(cached.getMetrics().getQueryCacheHitCount() > 0);
+
+                if (round == 0) {
+                    // cached results must not survive a data update
+                    plain.append(otherDir.resolve("2.csv"));
+                    cached.append(otherDir.resolve("2.csv"));
+                }
+            }
+        } finally {
+            deleteDirs(dataDir, otherDir);
+        }
+
+        assertThrows(IllegalArgumentException.class, () -> new AverageDistancesImpl(2, Long.MAX_VALUE, 1, null, IndexStorage.HEAP, -1));
+    }
+
+    @Test
+    public void shardedTotals() throws IOException {
+        Path dataDir = Files.createTempDirectory("avgdist");
+        Path otherDir = Files.createTempDirectory("avgdist");
+        Random random = new Random(15);
+        try (AverageDistancesImpl shard1 = new AverageDistancesImpl(2, Long.MAX_VALUE, 1);
+             AverageDistancesImpl shard2 = new AverageDistancesImpl(2, Long.MAX_VALUE, 1);
+             AverageDistancesImpl all = new AverageDistancesImpl(2, Long.MAX_VALUE, 1)) {
+            // enough trips for wide queries to be split into jobs
+            writeRandomTrips(dataDir.resolve("1.csv"), random, 40000);
+            writeRandomTrips(otherDir.resolve("2.csv"), random, 40000);
+            shard1.init(dataDir);
+            shard2.init(otherDir);
+            all.init(dataDir);
+            all.append(otherDir.resolve("2.csv"));
+
+            TripTotals expected = new TripTotals();
+            TripTotals merged = new TripTotals(0);
+            TripTotals shard = new TripTotals();
+            for (int q = 0; q < 100; q++) {
+                LocalDateTime start = MIN_DATETIME.plusHours(random.nextInt(24 * 31));
+                LocalDateTime end = q % 10 == 0 ? MAX_DATETIME : start.plusHours(random.nextInt(24 * 3));
+
+                assertTrue(all.getTotals(start, end, expected) == expected);
+                shard1.getTotals(start, end, merged);
+                merged.merge(shard2.getTotals(start, end, shard));
+
+                assertEquals(expected.size(), merged.size());
+                for (int group = 0; group < expected.size(); group++) {
+                    int other = merged.indexOf(expected.passengerCount(group));
+                    assertEquals(expected.tripCount(group), merged.tripCount(other));
+                    assertEquals(expected.distanceSum(group), merged.distanceSum(other), DELTA);
+                }
+
+                Map<Integer, Double> averages = all.getAverageDistances(start, end);
+                assertEquals(averages.keySet(), merged.averageDistances().keySet());
+                averages.forEach((passCnt, avg) ->
+                    assertEquals(avg, merged.averageDistance(merged.indexOf(passCnt)), DELTA));
+            }
+
+            assertEquals(-1, merged.indexOf(100));
+            assertThrows(IndexOutOfBoundsException.class, () -> merged.tripCount(merged.size()));
+            assertEquals(merged.totalTripCount(), merged.copy().totalTripCount());
+        } finally {
+            deleteDirs(dataDir, otherDir);
+        }
+    }
+
+    @Test
+    public void approximateQueries() throws IOException {
+        Path dataDir = Files.createTempDirectory("avgdist");
+        Random random = new Random(19);
+
+        // estimates from the tree of the sample are the ones of a scan of the sample
+        for (int size : new int[] {1, 1000, 100000}) {
+            TripColumns columns = new TripColumns();
+            for (int i = 0; i < size; i++) {
+                long pickup = random.nextInt(1000000);
+                columns.add(pickup, pickup + random.nextInt(random.nextInt(10) == 0 ? 100000 : 1000),
+                    random.nextInt(1000) / 100.0);
+            }
+            TripSample sample = ContainmentIndex.build(columns).sample;
+            for (int q = 0; q < 200; q++) {
+                long start = random.nextInt(1100000) - 50000;
+                TimeInterval query = new TimeInterval(start, start + random.nextInt(q % 2 == 0 ? 10000 : 1000000));
+
+                long count = 0;
+                double sum = 0.0;
+                double sumOfSquares = 0.0;
+                for (int i = 0; i < sample.pickups.length; i++) {
+                    if (query.start <= sample.pickups[i] && sample.dropoffs[i] <= query.end) {
+                        count++;
+                        sum += sample.distances[i];
+                        sumOfSquares += sample.distances[i] * sample.distances[i];
+                    }
+                }
+                SampleEstimate expected = new SampleEstimate();
+                expected.addSampled(count, sum, sumOfSquares, (double) sample.pickups.length / size);
+                SampleEstimate actual = new SampleEstimate();
+                sample.estimate(query, actual);
+                assertEquals(expected.result().getSampleCount(), actual.result().getSampleCount());
+                assertEquals(expected.result().getAverage(), actual.result().getAverage(), DELTA);
+                assertEquals(expected.result().getMarginOfError(), actual.result().getMarginOfError(), DELTA);
+            }
+        }
+
+        try (AverageDistancesImpl impl = new AverageDistancesImpl(2, Long.MAX_VALUE, 1)) {
+            writeRandomTrips(dataDir.resolve("1.csv"), random, 200000);
+            impl.init(dataDir);
+
+            Map<Integer, ApproximateAverage> all = impl.getApproximateAverageDistances(MIN_DATETIME, MAX_DATETIME);
+            Map<Integer, Double> exactAll = impl.getAverageDistances(MIN_DATETIME, MAX_DATETIME);
+            assertEquals(exactAll.keySet(), all.keySet());
+            exactAll.forEach((passCnt, avg) -> {
+                assertEquals(avg, all.get(passCnt).getAverage(), DELTA);
+                assertEquals(0.0, all.get(passCnt).getMarginOfError());
+            });
+
+            // only trips picked up on the first day are estimated, the rest are taken from zone maps
+            impl.getApproximateAverageDistances(MIN_DATETIME.plusHours(12), MAX_DATETIME).forEach((passCnt, estimate) ->
+                assertTrue(estimate.getMarginOfError() < 0.01 * estimate.getAverage(), "interval too wide: " + estimate));
+
+            int outside = 0;
+            for (int q = 0; q < 100; q++) {
+                LocalDateTime start = MIN_DATETIME.plusMinutes(random.nextInt(31 * 24 * 60));
+                LocalDateTime end = start.plusMinutes(random.nextInt(31 * 24 * 60));
+                Map<Integer, Double> exact = impl.getAverageDistances(start, end);
+                Map<Integer, ApproximateAverage> approximate = impl.getApproximateAverageDistances(start, end);
+                assertEquals(exact.keySet(), approximate.keySet());
+
+                for (Map.Entry<Integer, Double> entry : exact.entrySet()) {
+                    ApproximateAverage estimate = approximate.get(entry.getKey());
+                    assertTrue(estimate.getLowerBound() <= estimate.getUpperBound());
+                    if (Math.abs(estimate.getAverage() - entry.getValue()) > estimate.getMarginOfError() + DELTA) {
+                        outside++;
+                    }
+                }
+            }
+            // 95% intervals, with some slack for the approximated variance
+            assertTrue(outside <= 40, outside + " of 400 exact averages outside of confidence intervals");
+            assertEquals(102, impl.getMetrics().getApproximateQueryCount());
+        } finally {
+            deleteDirs(dataDir);
+        }
+    }
+
+    @Test
+    public void metrics() throws Exception {
+        ObjectName name = new ObjectName("query.avgdist:type=AverageDistances,name=" + ObjectName.quote("metrics test"));
+        try (AverageDistancesImpl impl = new AverageDistancesImpl(2, Long.MAX_VALUE, 1)) {
+            impl.registerMBean("metrics test");
+            AverageDistancesMXBean metrics = impl.getMetrics();
+
+            impl.init(Paths.get("testdata", "invertedInterval"));
+            assertEquals(0, metrics.getLoadedRowCount());
+            assertEquals(1, metrics.getInvertedRowCount());
+
+            impl.init(Paths.get("testdata", "2passCntValues"));
+            assertEquals(7, metrics.getLoadedRowCount());
+            assertEquals(7, metrics.getIndexedTripCount());
+            assertTrue(metrics.getIndexMemoryBytes() >= 7 * 5 * 4);
+
+            impl.getAverageDistances(toDateTime("2020-01-01 00:00:00"), toDateTime("2020-01-01 14:00:00"));
+            assertEquals(1, metrics.getQueryCount());
+            assertEquals(1, metrics.getInlineQueryCount());
+            assertEquals(4, metrics.getAcceptedRowCount());
+            assertTrue(metrics.getCandidateRowCount() >= 4);
+            assertEquals(1, Arrays.stream(metrics.getQueryLatencyHistogram()).sum());
+            assertTrue(metrics.getQueryLatencyP99Micros() > 0);
+
+            assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "QueryCount"));
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+
+    @Test
+    public void queryAdmissionAndCancellation() throws Exception {
+        AdmissionControl admissionControl = new AdmissionControl(1, 1);
+        assertTrue(admissionControl.acquire().isDone());
+        CompletableFuture<Void> abandoned = admissionControl.acquire();
+        assertFalse(abandoned.isDone());
+        assertThrows(QueryRejectedException.class, admissionControl::acquire);
+        admissionControl.abandon(abandoned);
+        assertTrue(abandoned.isCompletedExceptionally());
+        assertEquals(0, admissionControl.queuedCount());
+
+        CompletableFuture<Void> next = admissionControl.acquire();
+        admissionControl.release();
+        assertTrue(next.isDone() && !next.isCompletedExceptionally());
+        admissionControl.release();
+        assertTrue(admissionControl.acquire().isDone());
+
+        TripColumns columns = new TripColumns();
+        for (int i = 0; i < 1000; i++) {
+            columns.add(i, i + 10, 1.0);
+        }
+        ContainmentIndex index = ContainmentIndex.build(columns);
+        QueryDeadline cancelled = QueryDeadline.after(Long.MAX_VALUE);
+        cancelled.cancel();
+        DoubleAccumulator accumulator = new DoubleAccumulator();
+        ForkJoinPool.commonPool().invoke(new QueryJob(index, 0, 1000, 2000, accumulator, 100, cancelled));
+        assertEquals(0, accumulator.count.longValue());
+        assertFalse(QueryDeadline.after(0).check());
+
+        Path dataDir = Files.createTempDirectory("avgdist");
+        try (AverageDistancesImpl impl = new AverageDistancesImpl(2, Long.MAX_VALUE, 1, null, IndexStorage.HEAP, 0, 1, 100)) {
+            // all trips are picked up within a single time partition, so queries cutting it need a search
+            LocalDateTime partitionStart = toDateTime("2020-01-02 00:00:00");
+            writeRandomTrips(dataDir.resolve("1.csv"), new Random(13), 100000, partitionStart, 6);
+            impl.init(dataDir);
+
+            Map<Integer, Double> wide = impl.getAverageDistances(partitionStart.plusHours(1), MAX_DATETIME);
+            assertEquals(4, wide.size());
+            assertTrue(impl.getMetrics().getQueryJobCount() > 0);
+            assertEquals(0, impl.getMetrics().getInlineQueryCount());
+
+            Map<Integer, Double> narrow = impl.getAverageDistances(partitionStart.plusHours(1), partitionStart.plusHours(2));
+            assertEquals(4, narrow.size());
+            assertEquals(1, impl.getMetrics().getInlineQueryCount());
+
+            // the whole partition is answered from the zone maps of its segments
+            assertEquals(4, impl.getAverageDistances(MIN_DATETIME, MAX_DATETIME).size());
+            assertEquals(2, impl.getMetrics().getInlineQueryCount());
+            assertTrue(impl.getMetrics().getFullSegmentCount() >= 4);
+
+            // concurrent async queries wait for admission one by one, without blocking threads
+            List<CompletableFuture<Map<Integer, Double>>> futures = new ArrayList<>();
+            for (int minute = 1; minute <= 20; minute++) {
+                futures.add(impl.getAverageDistancesAsync(partitionStart.plusHours(1).plusMinutes(minute), MAX_DATETIME));
+            }
+            for (int minute = 1; minute <= 20; minute++) {
+                assertEquals(impl.getAverageDistances(partitionStart.plusHours(1).plusMinutes(minute), MAX_DATETIME),
+                    futures.get(minute - 1).get());
+            }
+            assertEquals(0, impl.getMetrics().getQueuedQueryCount());
+
+            // an interrupted wide query leaves the target empty, and its jobs don't fill it later;
+            // the jobs may finish before the interrupt is noticed, so it takes a few attempts
+            TripTotals interrupted = new TripTotals();
+            int attempts = 0;
+            do {
+                attempts++;
+                Thread.currentThread().interrupt();
+                impl.getTotals(partitionStart.plusHours(1), MAX_DATETIME, interrupted);
+                assertTrue(Thread.interrupted());
+            } while (interrupted.size() > 0 && attempts < 1000);
+            assertEquals(0, interrupted.size());
+            assertEquals(wide, impl.getAverageDistances(partitionStart.plusHours(1), MAX_DATETIME));
+            assertEquals(0, interrupted.size());
+
+            // queries waiting for admission when the instance is closed are cancelled
+            AverageDistancesImpl closing = new AverageDistancesImpl(2, Long.MAX_VALUE, 1, null, IndexStorage.HEAP, 0, 1, 100);
+            closing.init(dataDir);
+            List<CompletableFuture<Map<Integer, Double>>> racing = new ArrayList<>();
+            for (int minute = 1; minute <= 20; minute++) {
+                racing.add(closing.getAverageDistancesAsync(partitionStart.plusHours(1).plusMinutes(minute), MAX_DATETIME));
+            }
+            closing.close();
+            int cancelledCount = 0;
+            for (CompletableFuture<Map<Integer, Double>> future : racing) {
+                Throwable failure = future.handle((v, e) -> e instanceof CompletionException ? e.getCause() : e).get();
+                if (failure != null) {
+                    assertTrue(failure instanceof CancellationException, failure.toString());
+                    cancelledCount++;
+                }
+            }
+            assertTrue(cancelledCount > 0);
+        } finally {
+            deleteDirs(dataDir);
+        }
+    }
+
+    @Test
+    public void parallelIngestion() {
+        try (AverageDistancesImpl sequential = new AverageDistancesImpl(2, Long.MAX_VALUE, 1);
+             AverageDistancesImpl parallel = new AverageDistancesImpl(2, Long.MAX_VALUE, 3)) {
+            for (String dataDir : new String[] {"severalFiles", "12days", "2passCntValues"}) {
+                sequential.init(Paths.get("testdata", dataDir));
+                parallel.init(Paths.get("testdata", dataDir));
+                assertEquals(sequential.getAverageDistances(MIN_DATETIME, MAX_DATETIME),
+                    parallel.getAverageDistances(MIN_DATETIME, MAX_DATETIME));
+            }
+        }
+    }
+
+    @Test
+    public void indexSnapshot() throws IOException {
+        Path dataDir = Files.createTempDirectory("avgdist");
+        Path csvFile = dataDir.resolve("1.csv");
+        Path snapshotFile = dataDir.resolve("index.snapshot");
+        try {
+            Files.copy(Paths.get("testdata", "2passCntValues", "1.csv"), csvFile);
+
+            Map<Integer, Double> expected;
+            List<Path> segmentFiles;
+            try (AverageDistancesImpl impl = new AverageDistancesImpl(2, Long.MAX_VALUE, 1, snapshotFile)) {
+                impl.init(dataDir);
+                expected = impl.getAverageDistances(MIN_DATETIME, MAX_DATETIME);
+            }
+            assertTrue(Files.isRegularFile(snapshotFile));
+
+            // same size and modification time: the snapshot is trusted, so content change is not noticed
+            long lastModified = csvFile.toFile().lastModified();
+            Files.write(csvFile, new String(Files.readAllBytes(csvFile)).replace(",2,5.0", ",2,7.0").getBytes());
+            assertTrue(csvFile.toFile().setLastModified(lastModified));
+            try (AverageDistancesImpl impl = new AverageDistancesImpl(2, Long.MAX_VALUE, 1, snapshotFile)) {
+                impl.init(dataDir);
+                assertEquals(expected, impl.getAverageDistances(MIN_DATETIME, MAX_DATETIME));
+            }
+
+            // modification time changed: the snapshot is rebuilt
+            assertTrue(csvFile.toFile().setLastModified(lastModified + 1000));
+            try (AverageDistancesImpl impl = new AverageDistancesImpl(2, Long.MAX_VALUE, 1, snapshotFile)) {
+                impl.init(dataDir);
+                assertEquals(2.0, impl.getAverageDistances(MIN_DATETIME, MAX_DATETIME).get(1), DELTA);
+                assertEquals(11.0, impl.getAverageDistances(MIN_DATETIME, MAX_DATETIME).get(2), DELTA);
+
+                // a new file only adds the files of its segments, the files of existing segments are kept
+                segmentFiles = segmentFiles(snapshotFile);
+                assertEquals(2, segmentFiles.size());
+                Files.write(dataDir.resolve("2.csv"), Arrays.asList(
+                    "VendorID,tpep_pickup_datetime,tpep_dropoff_datetime,passenger_count,trip_distance",
+                    "1,2020-02-01 12:00:00,2020-02-01 12:15:00,1,8.0"));
+                impl.rescan();
+                assertEquals(3.5, impl.getAverageDistances(MIN_DATETIME, MAX_DATETIME).get(1), DELTA);
+                List<Path> appendedSegmentFiles = segmentFiles(snapshotFile);
+                assertEquals(3, appendedSegmentFiles.size());
+                assertTrue(appendedSegmentFiles.containsAll(segmentFiles));
+                expected = impl.getAverageDistances(MIN_DATETIME, MAX_DATETIME);
+                segmentFiles = appendedSegmentFiles;
+            }
+
+            // the appended snapshot is restored as is
+            try (AverageDistancesImpl impl = new AverageDistancesImpl(2, Long.MAX_VALUE, 1, snapshotFile)) {
+                impl.init(dataDir);
+                assertEquals(expected, impl.getAverageDistances(MIN_DATETIME, MAX_DATETIME));
+                assertEquals(segmentFiles, segmentFiles(snapshotFile));
+            }
+
+            // files of the replaced segments are deleted
+            assertTrue(csvFile.toFile().setLastModified(lastModified + 2000));
+            try (AverageDistancesImpl impl = new AverageDistancesImpl(2, Long.MAX_VALUE, 1, snapshotFile)) {
+                impl.init(dataDir);
+                List<Path> rebuiltSegmentFiles = segmentFiles(snapshotFile);
+                assertEquals(3, rebuiltSegmentFiles.size());
+                rebuiltSegmentFiles.retainAll(segmentFiles);
+                assertTrue(rebuiltSegmentFiles.isEmpty());
+            }
+        } finally {
+            deleteDirs(dataDir);
+        }
+    }
+
+    @Test
+    public void offHeapStorage() throws IOException {
+        Path snapshotDir = Files.createTempDirectory("avgdist");
+        Path snapshotFile = snapshotDir.resolve("index.snapshot");
+        try (AverageDistancesImpl heap = new AverageDistancesImpl(2, Long.MAX_VALUE, 1, null, IndexStorage.HEAP);
+             AverageDistancesImpl direct = new AverageDistancesImpl(2, Long.MAX_VALUE, 1, null, IndexStorage.DIRECT);
+             AverageDistancesImpl mapped = new AverageDistancesImpl(2, Long.MAX_VALUE, 1, snapshotFile, IndexStorage.MAPPED)) {
+            for (String dataDir : new String[] {"12days", "2passCntValues"}) {
+                heap.init(Paths.get("testdata", dataDir));
+                direct.init(Paths.get("testdata", dataDir));
+                mapped.init(Paths.get("testdata", dataDir));
+
+                for (int hour = 0; hour < 24; hour++) {
+                    LocalDateTime start = toDateTime("2020-01-01 00:00:00").plusHours(hour);
+                    Map<Integer, Double> expected = heap.getAverageDistances(start, MAX_DATETIME);
+                    assertEquals(expected, direct.getAverageDistances(start, MAX_DATETIME));
+                    assertEquals(expected, mapped.getAverageDistances(start, MAX_DATETIME));
+                }
+            }
+        } finally {
+            deleteDirs(snapshotDir);
+        }
+
+        assertThrows(IllegalArgumentException.class, () -> new AverageDistancesImpl(2, Long.MAX_VALUE, 1, null, IndexStorage.MAPPED));
+    }
+
+    @Test
+    public void appendAndRescan() throws IOException {
+        Path dataDir = Files.createTempDirectory("avgdist");
+        Path otherDir = Files.createTempDirectory("avgdist");
+        try (AverageDistancesImpl impl = new AverageDistancesImpl(2, Long.MAX_VALUE, 2)) {
+            assertThrows(IllegalStateException.class, impl::rescan);
+
+            Files.copy(Paths.get("testdata", "severalFiles", "1.csv"), dataDir.resolve("1.csv"));
+            impl.init(dataDir);
+            assertEquals(5.0, impl.getAverageDistances(MIN_DATETIME, MAX_DATETIME).get(1), DELTA);
+
+            Files.copy(Paths.get("testdata", "severalFiles", "2.csv"), otherDir.resolve("2.csv"));
+            impl.append(otherDir.resolve("2.csv"));
+            assertEquals(7.5, impl.getAverageDistances(MIN_DATETIME, MAX_DATETIME).get(1), DELTA);
+            assertThrows(IllegalArgumentException.class, () -> impl.append(otherDir.resolve("2.csv")));
+
+            Files.copy(Paths.get("testdata", "severalFiles", "3.csv"), dataDir.resolve("3.csv"));
+            impl.rescan();
+            assertEquals(10.0, impl.getAverageDistances(MIN_DATETIME, MAX_DATETIME).get(1), DELTA);
+
+            // 2.csv is not in the data directory, but it's loaded again on reload caused by a changed file...
+            assertEquals(3, impl.getTotals(MIN_DATETIME, MAX_DATETIME, new TripTotals()).totalTripCount());
+            assertTrue(dataDir.resolve("1.csv").toFile().setLastModified(0));
+            impl.rescan();
+            assertEquals(3, impl.getTotals(MIN_DATETIME, MAX_DATETIME, new TripTotals()).totalTripCount());
+
+            // ...until it's removed
+            Files.delete(otherDir.resolve("2.csv"));
+            impl.rescan();
+            assertEquals(10.0, impl.getAverageDistances(MIN_DATETIME, MAX_DATETIME).get(1), DELTA);
+            assertEquals(1, impl.getAverageDistances(toDateTime("2020-01-02 00:00:00"), MAX_DATETIME).size());
+            assertEquals(15.0, impl.getAverageDistances(toDateTime("2020-01-02 00:00:00"), MAX_DATETIME).get(1), DELTA);
+        } finally {
+            deleteDirs(dataDir, otherDir);
+        }
+    }
+
+    @Test
+    public void standingQueries() throws IOException {
+        Path dataDir = Files.createTempDirectory("avgdist");
+        Path otherDir = Files.createTempDirectory("avgdist");
+        try (AverageDistancesImpl impl = new AverageDistancesImpl(2, Long.MAX_VALUE, 2)) {
+            Files.copy(Paths.get("testdata", "severalFiles", "1.csv"), dataDir.resolve("1.csv"));
+            for (String name : new String[] {"2.csv", "3.csv"}) {
+                Files.copy(Paths.get("testdata", "severalFiles", name), otherDir.resolve(name));
+            }
+
+            List<Map<Integer, Double>> fixedResults = new ArrayList<>();
+            List<Map<Integer, Double>> slidingResults = new ArrayList<>();
+            TimeWindow window = TimeWindow.of(MIN_DATETIME, toDateTime("2020-01-02 23:59:59"));
+            // starts before the supported date range once there is data, so every update of it fails
+            StandingQuery overflowing = impl.registerStandingQuery(Duration.ofSeconds(Long.MAX_VALUE), result -> { });
+            StandingQuery fixed = impl.registerStandingQuery(window, fixedResults::add);
+            StandingQuery sliding = impl.registerStandingQuery(Duration.ofHours(36), slidingResults::add);
+            StandingQuery failing = impl.registerStandingQuery(window, result -> {
+                throw new IllegalStateException("listener failure");
+            });
+            assertThrows(IllegalArgumentException.class,
+                () -> impl.registerStandingQuery(TimeWindow.of(MAX_DATETIME, MIN_DATETIME), result -> { }));
+            assertThrows(IllegalArgumentException.class,
+                () -> impl.registerStandingQuery(Duration.ofHours(-1), result -> { }));
+            assertTrue(fixed.getAverageDistances().isEmpty());
+            assertFalse(sliding.getWindow().isPresent());
+
+            impl.init(dataDir);
+            assertEquals(5.0, fixed.getAverageDistances().get(1), DELTA);
+            assertEquals(5.0, sliding.getAverageDistances().get(1), DELTA);
+            // a failed update doesn't fail the data update nor the updates of other queries
+            assertTrue(overflowing.isStale());
+            assertFalse(fixed.isStale());
+            assertFalse(sliding.isStale());
+            assertEquals(toDateTime("2020-01-01 12:15:00"), sliding.getWindow().get().getEnd());
+
+            // the fixed window is updated with the appended trips, the sliding one ends at the new data
+            impl.append(otherDir.resolve("2.csv"));
+            assertEquals(7.5, fixed.getAverageDistances().get(1), DELTA);
+            assertEquals(7.5, sliding.getAverageDistances().get(1), DELTA);
+            assertEquals(2, fixed.getTotals(new TripTotals()).totalTripCount());
+            assertEquals(7.5, impl.getAverageDistances(MIN_DATETIME, MAX_DATETIME).get(1), DELTA);
+            assertTrue(overflowing.isStale());
+            overflowing.close();
+
+            impl.append(otherDir.resolve("3.csv"));
+            assertEquals(7.5, fixed.getAverageDistances().get(1), DELTA);
+            assertEquals(12.5, sliding.getAverageDistances().get(1), DELTA);
+            TimeWindow slidingWindow = sliding.getWindow().get();
+            assertEquals(impl.getAverageDistances(slidingWindow.getStart(), slidingWindow.getEnd()),
+                sliding.getAverageDistances());
+
+            // listeners are only called on changes
+            assertEquals(Arrays.asList(Collections.singletonMap(1, 5.0), Collections.singletonMap(1, 7.5)),
+                fixedResults);
+            assertEquals(3, slidingResults.size());
+
+            fixed.close();
+            failing.close();
+            Files.delete(otherDir.resolve("3.csv"));
+            impl.rescan();
+            assertEquals(2, fixedResults.size());
+            assertEquals(7.5, sliding.getAverageDistances().get(1), DELTA);
+            assertEquals(4, slidingResults.size());
+        } finally {
+            deleteDirs(dataDir, otherDir);
+        }
+    }
+
+    @Test
+    public void queryServer() throws Exception {
+        Path dataDir = Paths.get("testdata", "severalFiles");
+        try (AverageDistancesImpl impl = new AverageDistancesImpl(2, Long.MAX_VALUE, 2)) {
+            impl.init(dataDir);
+            // the client outlives the server, to see it fail queries once the server is closed
+            QueryServer server = new QueryServer(impl, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            try (QueryClient client = new QueryClient(server.getAddress())) {
+                try (QueryServer closedServer = server;
+                     QueryClient otherClient = new QueryClient(closedServer.getAddress())) {
+                    assertEquals(impl.getAverageDistances(MIN_DATETIME, MAX_DATETIME),
+                        client.getAverageDistances(MIN_DATETIME, MAX_DATETIME));
+                    assertTrue(client.getAverageDistances(MAX_DATETIME, MAX_DATETIME).isEmpty());
+                    assertThrows(IllegalArgumentException.class, () -> client.getAverageDistances(MAX_DATETIME, MIN_DATETIME));
+
+                    // pipelined requests of both clients, more than a connection may have outstanding
+                    Random random = new Random(41);
+                    List<List<TimeWindow>> requests = new ArrayList<>();
+                    List<CompletableFuture<List<Map<Integer, Double>>>> results = new ArrayList<>();
+                    for (int i = 0; i < 2 * QueryServer.MAX_OUTSTANDING_REQUESTS; i++) {
+                        List<TimeWindow> windows = new ArrayList<>();
+                        for (int j = random.nextInt(4); j >= 0; j--) {
+                            LocalDateTime start = toDateTime("2020-01-01 00:00:00").plusHours(random.nextInt(96));
+                            windows.add(TimeWindow.of(start, start.plusHours(random.nextInt(96))));
+                        }
+                        requests.add(windows);
+                        results.add((i % 2 == 0 ? client : otherClient).getAverageDistancesAsync(windows));
+                    }
+                    for (int i = 0; i < requests.size(); i++) {
+                        assertEquals(impl.getAverageDistances(requests.get(i)), results.get(i).get());
+                    }
+                }
+
+                // a closed server fails further queries
+                assertThrows(UncheckedIOException.class, () -> client.getAverageDistances(MIN_DATETIME, MAX_DATETIME));
+            }
+        }
+    }
+
+    @Test
+    public void queryServerFailures() throws Exception {
+        List<TimeWindow> windows = Collections.singletonList(TimeWindow.of(MIN_DATETIME, MAX_DATETIME));
+        try (AverageDistancesImpl impl = new AverageDistancesImpl(2, Long.MAX_VALUE, 1)) {
+            impl.init(Paths.get("testdata", "12days"));
+            try (QueryServer server = new QueryServer(impl, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                 QueryClient client = new QueryClient(server.getAddress())) {
+                // the request fits in a frame, but its answer of 12 groups per window doesn't;
+                // it fails alone, and the connection stays usable
+                List<TimeWindow> huge = Collections.nCopies(10000, windows.get(0));
+                CompletableFuture<List<Map<Integer, Double>>> hugeResult = client.getAverageDistancesAsync(huge);
+                CompletableFuture<List<Map<Integer, Double>>> next = client.getAverageDistancesAsync(windows);
+                ExecutionException e = assertThrows(ExecutionException.class, hugeResult::get);
+                assertTrue(e.getCause() instanceof IllegalArgumentException);
+                assertEquals(impl.getAverageDistances(windows), next.get());
+                assertEquals(impl.getAverageDistances(windows), client.getAverageDistances(windows));
+            }
+
+            // fails every batch with the poisoned window, as a query timing out because of one request would;
+            // batches with the stalled window don't complete until released
+            TimeWindow poisoned = TimeWindow.of(MIN_DATETIME, MIN_DATETIME.plusSeconds(1));
+            TimeWindow stalled = TimeWindow.of(MIN_DATETIME, MIN_DATETIME.plusSeconds(2));
+            CompletableFuture<List<Map<Integer, Double>>> stalledResult = new CompletableFuture<>();
+            CountDownLatch stalledStarted = new CountDownLatch(1);
+            AverageDistances failing = (AverageDistances) Proxy.newProxyInstance(AverageDistances.class.getClassLoader(),
+                new Class<?>[] {AverageDistances.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("getAverageDistancesAsync") && args.length == 1
+                        && ((List<?>) args[0]).contains(poisoned)) {
+                        CompletableFuture<List<Map<Integer, Double>>> failed = new CompletableFuture<>();
+                        failed.completeExceptionally(new IllegalStateException("poisoned batch"));
+                        return failed;
+                    }
+                    if (method.getName().equals("getAverageDistancesAsync") && args.length == 1
+                        && ((List<?>) args[0]).contains(stalled)) {
+                        stalledStarted.countDown();
+                        return stalledResult;
+                    }
+                    try {
+                        return method.invoke(impl, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+            try (QueryServer server = new QueryServer(failing, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                 QueryClient client = new QueryClient(server.getAddress())) {
+                // pipelined, so that most of them are batched with a poisoned one
+                List<CompletableFuture<List<Map<Integer, Double>>>> results = new ArrayList<>();
+                for (int i = 0; i < 100; i++) {
+                    results.add(client.getAverageDistancesAsync(i % 10 == 0 ? Collections.singletonList(poisoned) : windows));
+                }
+                for (int i = 0; i < results.size(); i++) {
+                    if (i % 10 == 0) {
+                        ExecutionException e = assertThrows(ExecutionException.class, results.get(i)::get);
+                        assertTrue(e.getCause().getMessage().contains("poisoned batch"));
+                    } else {
+                        assertEquals(impl.getAverageDistances(windows), results.get(i).get());
+                    }
+                }
+
+                // a stalled batch doesn't hold up the requests received after it
+                CompletableFuture<List<Map<Integer, Double>>> stalledRequest =
+                    client.getAverageDistancesAsync(Collections.singletonList(stalled));
+                assertTrue(stalledStarted.await(10, TimeUnit.SECONDS));
+                for (int i = 0; i < 10; i++) {
+                    assertEquals(impl.getAverageDistances(windows), client.getAverageDistancesAsync(windows).get(10, TimeUnit.SECONDS));
+                }
+                assertFalse(stalledRequest.isDone());
+                stalledResult.complete(impl.getAverageDistances(Collections.singletonList(stalled)));
+                assertEquals(impl.getAverageDistances(Collections.singletonList(stalled)), stalledRequest.get());
+            }
+        }
+    }
+
+    @Test
+    public void segmentedIndexAppends() {
+        Random random = new Random(7);
+        TripColumns all = new TripColumns();
+        SegmentedIndex index = null;
+
+        for (int batch = 0; batch < 40; batch++) {
+            TripColumns trips = new TripColumns();
+            for (int i = random.nextInt(300); i >= 0; i--) {
+                long pickup = random.nextInt(100000);
+                trips.add(pickup, pickup + random.nextInt(1000), random.nextInt(1000) / 100.0);
+            }
+            all.addAll(trips);
+            index = index == null ? SegmentedIndex.of(ContainmentIndex.build(trips)) : index.append(trips, IndexStorage.HEAP);
+
+            assertEquals(all.size, index.size());
+            assertTrue(index.segments.size() <= 64 - Long.numberOfLeadingZeros(all.size) + 1, "too many segments");
+
+            TimeInterval query = new TimeInterval(random.nextInt(50000), 50000 + random.nextInt(50000));
+            DoubleAccumulator expected = new DoubleAccumulator();
+            ContainmentIndex.build(all).aggregate(query, expected);
+            DoubleAccumulator actual = new DoubleAccumulator();
+            index.segments.forEach(segment -> segment.aggregate(query, actual));
+            assertEquals(expected.count.longValue(), actual.count.longValue());
+            assertEquals(expected.value.doubleValue(), actual.value.doubleValue(), DELTA);
+        }
+    }
+
+    @Test
+    public void timePartitionedSegments() {
+        Random random = new Random(17);
+        long day = 24 * 3600;
+        TripColumns all = new TripColumns();
+        SegmentedIndex index = SegmentedIndex.EMPTY;
+
+        for (int batch = 0; batch < 10; batch++) {
+            TripColumns trips = new TripColumns();
+            for (int i = 0; i < 2000; i++) {
+                // a few trips with timestamps far from the rest, like the ones found in real files
+                long pickup = random.nextInt(100) == 0 ? 2000 * day + random.nextInt(1000) : random.nextInt((int) (60 * day));
+                trips.add(pickup, pickup + random.nextInt(random.nextInt(10) == 0 ? (int) (3 * day) : 3600),
+                    random.nextInt(1000) / 100.0);
+            }
+            if (batch % 2 == 1) {
+                // makes the partitions of the batch too sparse to be counted by their offset in the span
+                trips.add(100000 * day, 100000 * day + 60, 1.0);
+            }
+            all.addAll(trips);
+            index = index.append(trips, IndexStorage.HEAP);
+        }
+
+        assertEquals(all.size, index.size());
+        for (ContainmentIndex segment : index.segments) {
+            assertEquals(SegmentedIndex.partitionOf(segment.minPickup), SegmentedIndex.partitionOf(segment.maxPickup));
+        }
+
+        ContainmentIndex reference = ContainmentIndex.build(all);
+        for (int q = 0; q < 200; q++) {
+            long start = random.nextInt((int) (70 * day));
+            TimeInterval query = new TimeInterval(start, start + random.nextInt((int) (30 * day)));
+
+            DoubleAccumulator expected = new DoubleAccumulator();
+            reference.aggregate(reference.lowerBound(query.start), reference.upperBound(query.end), query.end, expected);
+            DoubleAccumulator actual = new DoubleAccumulator();
+            int searched = 0;
+            for (ContainmentIndex segment : index.segments) {
+                if (!segment.isContainedIn(query) && !segment.isDisjoint(query)) {
+                    searched++;
+                }
+                segment.aggregate(query, actual);
+            }
+            assertEquals(expected.count.longValue(), actual.count.longValue());
+            assertEquals(expected.value.doubleValue(), actual.value.doubleValue(), DELTA);
+            // only partitions at query edges need a search
+            assertTrue(searched <= 4 * (64 - Long.numberOfLeadingZeros(all.size)), "too many searched segments");
+        }
+    }
+
+    @Test
+    public void compactColumns() {
+        long[] timestamps = {1577836800L, 1577836800L + 3600, 1577836800L + 86400 * 365L, 1577836800L + 1};
+        LongColumn offsets = LongColumn.of(timestamps);
+        assertTrue(offsets instanceof LongColumn.Offsets);
+        assertEquals(4L * timestamps.length, offsets.memorySize());
+        for (int i = 0; i < timestamps.length; i++) {
+            assertEquals(timestamps[i], offsets.get(i));
+            assertEquals(timestamps[i], offsets.copyTo(IndexStorage.DIRECT).get(i));
+        }
+        assertTrue(LongColumn.of(new long[] {0, 1L << 32}) instanceof LongColumn.Heap);
+        assertTrue(LongColumn.of(new long[] {Long.MIN_VALUE, Long.MAX_VALUE}) instanceof LongColumn.Heap);
+
+        double[] distances = {0.0, 1.53, 12.1, -3.25, 9999.99, 0.07};
+        DoubleColumn fixedPoint = DoubleColumn.of(distances);
+        assertTrue(fixedPoint instanceof DoubleColumn.FixedPoint);
+        for (int i = 0; i < distances.length; i++) {
+            assertEquals(distances[i], fixedPoint.get(i));
+        }
+        assertTrue(DoubleColumn.of(new double[] {1.0 / 3}) instanceof DoubleColumn.Heap);
+        assertTrue(DoubleColumn.of(new double[] {3e7}) instanceof DoubleColumn.Heap);
+        assertTrue(DoubleColumn.of(new double[] {Double.NaN}) instanceof DoubleColumn.Heap);
+
+        // trip columns of decimal distances and group ids take 16 bytes per trip, every tree level 8 more
+        Random random = new Random(23);
+        TripColumns trips = new TripColumns();
+        for (int i = 0; i < 10000; i++) {
+            long pickup = 1577836800L + random.nextInt(31 * 24 * 3600);
+            trips.add(pickup, pickup + random.nextInt(3600), random.nextInt(2000) / 100.0);
+        }
+        ContainmentIndex index = ContainmentIndex.build(trips);
+        assertEquals((16L + 8L * index.levelDropoffs.length) * trips.size, index.memorySize());
+    }
+
+    @Test
+    public void gzippedFiles() throws IOException {
+        Path plainDir = Files.createTempDirectory("avgdist");
+        Path gzipDir = Files.createTempDirectory("avgdist");
+        Random random = new Random(41);
+        try (AverageDistancesImpl plain = new AverageDistancesImpl(2, Long.MAX_VALUE, 2);
+             AverageDistancesImpl gzipped = new AverageDistancesImpl(2, Long.MAX_VALUE, 2)) {
+            // bigger than a few decompressed chunks
+            for (String name : new String[] {"1.csv", "2.csv"}) {
+                writeRandomTrips(plainDir.resolve(name), random, 30000);
+                try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(gzipDir.resolve(name + ".gz")))) {
+                    Files.copy(plainDir.resolve(name), out);
+                }
+            }
+            plain.init(plainDir);
+            gzipped.init(gzipDir);
+            assertEquals(60000, gzipped.getMetrics().getLoadedRowCount());
+
+            for (int q = 0; q < 20; q++) {
+                LocalDateTime start = MIN_DATETIME.plusHours(random.nextInt(24 * 31));
+                LocalDateTime end = start.plusHours(random.nextInt(24 * 20));
+                Map<Integer, Double> expected = plain.getAverageDistances(start, end);
+                Map<Integer, Double> actual = gzipped.getAverageDistances(start, end);
+                assertEquals(expected.keySet(), actual.keySet());
+                expected.forEach((passCnt, avg) -> assertEquals(avg, actual.get(passCnt), DELTA));
+            }
+
+            // a truncated file fails loading rather than loading a part of it
+            byte[] compressed = Files.readAllBytes(gzipDir.resolve("2.csv.gz"));
+            Files.write(gzipDir.resolve("3.csv.gz"), Arrays.copyOf(compressed, compressed.length / 2));
+            assertThrows(RuntimeException.class, () -> gzipped.append(gzipDir.resolve("3.csv.gz")));
+            assertEquals(plain.getAverageDistances(MIN_DATETIME, MAX_DATETIME), gzipped.getAverageDistances(MIN_DATETIME, MAX_DATETIME));
+        } finally {
+            deleteDirs(plainDir, gzipDir);
+        }
+    }
+
+    @Test
+    public void mappedChunksMatchSequentialLoading() throws IOException {
+        Path csvFile = Files.createTempFile("avgdist", ".csv");
+        try {
+            Random random = new Random(43);
+            DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+            List<String> lines = new ArrayList<>();
+            List<Integer> errorLines = new ArrayList<>();
+            lines.add("VendorID,tpep_pickup_datetime,tpep_dropoff_datetime,passenger_count,trip_distance,payment_type");
+            // original line number of the next row; lone CRs are line breaks too
+            int line = 2;
+            for (int i = 0; i < 5000; i++) {
+                LocalDateTime pickup = MIN_DATETIME.plusSeconds(random.nextInt(31 * 24 * 3600));
+                LocalDateTime dropoff = pickup.plusSeconds(random.nextInt(3600));
+                String row = (1 + random.nextInt(2)) + "," + pickup.format(formatter) + "," + dropoff.format(formatter)
+                    + "," + (1 + random.nextInt(4)) + "," + random.nextInt(2000) / 100.0 + "," + random.nextInt(5);
+                switch (random.nextInt(100)) {
+                    case 0:
+                        row = row.replace(pickup.format(formatter), "2020-13-01 00:00:00");
+                        errorLines.add(line);
+                        break;
+                    case 1:
+                        // inverted interval
+                        row = "1," + dropoff.plusSeconds(1).format(formatter) + "," + dropoff.format(formatter) + ",1,1.0,1";
+                        errorLines.add(line);
+                        break;
+                    case 2:
+                        row = "";
+                        break;
+                    case 3:
+                        row = row + "\r";
+                        break;
+                    case 4:
+                        row = "\"2\"," + pickup.format(formatter) + "," + dropoff.format(formatter) + ",\"3\",1.25,\"4\"";
+                        break;
+                    case 5:
+                        // too few fields
+                        row = "1," + pickup.format(formatter) + "," + dropoff.format(formatter);
+                        errorLines.add(line);
+                        break;
+                    case 6:
+                        // two rows separated by a lone CR, the second one with an error
+                        row = row + "\r1," + pickup.format(formatter) + "," + dropoff.format(formatter) + ",x,1.0,1";
+                        line++;
+                        errorLines.add(line);
+                        break;
+                    default:
+                }
+                lines.add(row);
+                line++;
+            }
+            Files.write(csvFile, lines);
+
+            List<String> expectedErrors = new ArrayList<>();
+            IngestionBuffer expected = new IngestionBuffer();
+            expected.load(csvFile.toFile(), expectedErrors::add);
+
+            List<MappedCsvChunk> chunks = MappedCsvChunk.split(csvFile.toFile(), 4096);
+            assertTrue(chunks.size() > 10);
+            long[] lineCounts = new long[chunks.size()];
+            for (int i = 0; i < chunks.size(); i++) {
+                lineCounts[i] = chunks.get(i).countLines();
+            }
+            MappedCsvChunk.numberLines(chunks, lineCounts);
+
+            List<String> errors = new ArrayList<>();
+            IngestionBuffer actual = new IngestionBuffer();
+            // out of order, as parallel workers may take them
+            for (int i = chunks.size() - 1; i >= 0; i--) {
+                IngestionBuffer chunkBuffer = new IngestionBuffer();
+                chunks.get(i).load(chunkBuffer, errors::add);
+                actual.merge(chunkBuffer);
+            }
+
+            // same errors with the same line numbers, whatever the loading path
+            assertEquals(expected.invertedRows + expected.unparseableRows, expectedErrors.size());
+            Collections.sort(expectedErrors);
+            Collections.sort(errors);
+            assertEquals(expectedErrors, errors);
+            for (int errorLine : errorLines) {
+                assertTrue(errors.stream().anyMatch(error -> error.contains(csvFile.getFileName() + "@" + errorLine + ":")
+                    || error.endsWith(csvFile.getFileName() + "@" + errorLine)), "line " + errorLine);
+            }
+            assertTrue(errors.stream().anyMatch(error -> error.startsWith("CSV field count error")));
+            assertEquals(expected.loadedRows, actual.loadedRows);
+            assertEquals(expected.invertedRows, actual.invertedRows);
+            assertEquals(expected.unparseableRows, actual.unparseableRows);
+            assertEquals(expected.minTimestamp, actual.minTimestamp);
+            assertEquals(expected.maxTimestamp, actual.maxTimestamp);
+            assertEquals(expected.columnsPerPassCnt.keySet(), actual.columnsPerPassCnt.keySet());
+            expected.columnsPerPassCnt.forEach((passCnt, columns) -> {
+                TripColumns actualColumns = actual.columnsPerPassCnt.get(passCnt);
+                assertEquals(columns.size, actualColumns.size);
+                double expectedSum = 0.0;
+                double actualSum = 0.0;
+                for (int i = 0; i < columns.size; i++) {
+                    expectedSum += columns.distances[i] * expected.groups.keys[columns.groups[i]];
+                    actualSum += actualColumns.distances[i] * actual.groups.keys[actualColumns.groups[i]];
+                }
+                assertEquals(expectedSum, actualSum, Math.abs(expectedSum) * 1e-12);
+            });
+        } finally {
+            Files.delete(csvFile);
+        }
+    }
+
+    @Test
+    public void bulkBuildOrdersRows() {
+        Random random = new Random(37);
+        // packed parallel sort, and merge sort fallback for spans too wide to pack
+        for (long span : new long[] {3600, 1L << 40, Long.MAX_VALUE}) {
+            int size = ContainmentIndex.PARALLEL_BUILD_ROWS + random.nextInt(1000);
+            TripColumns trips = new TripColumns();
+            for (int i = 0; i < size; i++) {
+                long pickup = span == Long.MAX_VALUE ? random.nextLong() / 2 : (long) (random.nextDouble() * span);
+                trips.add(pickup, pickup + random.nextInt(1000), random.nextInt(1000) / 100.0, i);
+            }
+            ContainmentIndex index = ContainmentIndex.build(trips);
+
+            long distanceSum = 0;
+            for (int i = 0; i < size; i++) {
+                int row = (int) index.groups.get(i);
+                assertEquals(trips.pickups[row], index.pickups.get(i));
+                assertEquals(trips.dropoffs[row], index.dropoffs.get(i));
+                assertEquals(trips.distances[row], index.distances.get(i));
+                if (i > 0) {
+                    // equal pickups keep their original order
+                    assertTrue(index.pickups.get(i - 1) < index.pickups.get(i)
+                        || index.pickups.get(i - 1) == index.pickups.get(i) && index.groups.get(i - 1) < row);
+                }
+                distanceSum += Math.round(trips.distances[i] * 100);
+            }
+            assertEquals(distanceSum / 100.0, index.distanceSum, DELTA);
+            assertEquals(Arrays.stream(trips.dropoffs, 0, size).max().getAsLong(), index.maxDropoff);
+        }
+    }
+
+    @Test
+    public void scanKernelMatchesRowLoop() {
+        Random random = new Random(29);
+        int size = 3 * ScanKernel.BLOCK_SIZE + 17;
+        long[] dropoffs = new long[size];
+        double[] distances = new double[size];
+        for (int i = 0; i < size; i++) {
+            dropoffs[i] = 1577836800L + random.nextInt(100000);
+            distances[i] = random.nextInt(2000) / (i % 3 == 0 ? 3.0 : 100.0);
+        }
+        double[] fixedDistances = new double[size];
+        for (int i = 0; i < size; i++) {
+            fixedDistances[i] = random.nextInt(2000) / 100.0;
+        }
+
+        LongColumn offsets = LongColumn.of(dropoffs);
+        assertTrue(offsets instanceof LongColumn.Offsets);
+        LongColumn[] dropoffColumns = {offsets, new LongColumn.Heap(dropoffs), offsets.copyTo(IndexStorage.DIRECT)};
+        DoubleColumn fixedPoint = DoubleColumn.of(fixedDistances);
+        assertTrue(fixedPoint instanceof DoubleColumn.FixedPoint);
+        DoubleColumn[] distanceColumns = {DoubleColumn.of(distances), fixedPoint, fixedPoint.copyTo(IndexStorage.DIRECT)};
+
+        ScanKernel kernel = ScanKernel.local();
+        for (int q = 0; q < 300; q++) {
+            int from = random.nextInt(size);
+            int to = from + random.nextInt(size - from + 1);
+            long maxDropoff = 1577836800L + random.nextInt(110000);
+            LongColumn dropoffColumn = dropoffColumns[q % dropoffColumns.length];
+            DoubleColumn distanceColumn = distanceColumns[q / dropoffColumns.length % distanceColumns.length];
+
+            long expectedCount = 0;
+            double expectedSum = 0.0;
+            for (int i = from; i < to; i++) {
+                if (dropoffColumn.get(i) <= maxDropoff) {
+                    expectedCount++;
+                    expectedSum += distanceColumn.get(i);
+                }
+            }
+
+            kernel.reset();
+            kernel.scan(dropoffColumn, distanceColumn, from, to, maxDropoff);
+            assertEquals(expectedCount, kernel.count);
+            assertEquals(expectedSum, kernel.sum, DELTA);
+        }
+    }
+
+    @Test
+    public void fastCsvRowParsing() {
+        String csv = "1,2020-01-01 12:00:00,2020-01-01 12:15:00,1,1.5\n"
+            + "1,2020-02-29 23:59:59,2020-03-01 00:00:00,2.0,0.1\n"
+            + "1,1999-12-31 00:00:01,2000-01-01 00:00:00,10,-3.25\n"
+            + "1,2020-01-01 12:00:00,2020-01-01 12:15:00,1,.5\n"
+            + "1,2020-01-01 12:00:00,2020-01-01 12:15:00,1,1e2\n"
+            + "1,2020-01-01 12:00:00,2020-01-01 12:15:00, 1,12345678901234567.1\n"
+            + "1,2021-02-29 10:00:00,2021-03-01 10:00:00,1,1.0\n"
+            + "1,0000-01-01 10:00:00,0001-01-01 10:00:00,1,1.0\n"
+            + "1,0001-01-01 00:00:00,0001-01-01 10:00:00,1,1.0\n"
+            + "1,2020-01-01T12:00:00,2020-01-01 12:15:00,1,1.0\n"
+            + "1,2020-01-01 12:00:00,2020-01-01 12:15:00,,1.0\n"
+            + "1,2020-01-01 12:00:00,2020-01-01 12:15:00,1,abc\n";
+
+        try (CsvReader csvReader = CsvReader.builder().build(csv)) {
+            for (CsvRow row : csvReader) {
+                List<String> expectedErrors = new ArrayList<>();
+                InputTuple expected = new InputTuple();
+                boolean expectedParsed = parseStrictly(row, expected, expectedErrors);
+
+                List<String> errors = new ArrayList<>();
+                InputTuple tuple = new InputTuple();
+                assertEquals(expectedParsed, InputTuple.parseCsvRow(row, "test.csv", errors::add, tuple));
+                assertEquals(expectedErrors, errors);
+                if (expectedParsed) {
+                    assertEquals(expected.pickupTimestamp, tuple.pickupTimestamp);
+                    assertEquals(expected.dropoffTimestamp, tuple.dropoffTimestamp);
+                    assertEquals(expected.passengerCount, tuple.passengerCount);
+                    assertEquals(expected.distance, tuple.distance);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void containmentIndexMatchesBruteForce() {
+        Random random = new Random(42);
+        for (int size : new int[] {0, 1, 63, 64, 65, 1000, 20000}) {
+            TripColumns columns = new TripColumns();
+            for (int i = 0; i < size; i++) {
+                long pickup = random.nextInt(100000);
+                long dropoff = pickup + (random.nextInt(10) == 0 ? random.nextInt(50000) : random.nextInt(500));
+                columns.add(pickup, dropoff, random.nextInt(1000) / 100.0);
+            }
+            ContainmentIndex index = ContainmentIndex.build(columns);
+            assertEquals(size, index.size());
+
+            for (int q = 0; q < 200; q++) {
+                long start = random.nextInt(110000) - 5000;
+                TimeInterval query = new TimeInterval(start, start + random.nextInt(q % 2 == 0 ? 1000 : 150000));
+
+                long expectedCount = 0;
+                double expectedSum = 0.0;
+                for (int i = 0; i < size; i++) {
+                    if (query.start <= columns.pickups[i] && columns.dropoffs[i] <= query.end) {
+                        expectedCount++;
+                        expectedSum += columns.distances[i];
+                    }
+                }
+
+                int lowerBound = index.lowerBound(query.start);
+                assertEquals(lowerBound, index.lowerBound(query.start, random.nextInt(lowerBound + 1)));
+
+                DoubleAccumulator accumulator = new DoubleAccumulator();
+                index.aggregate(query, accumulator);
+                assertEquals(expectedCount, accumulator.count.longValue());
+                assertEquals(expectedSum, accumulator.value.doubleValue(), DELTA);
+
+                DoubleAccumulator splitAccumulator = new DoubleAccumulator();
+                ForkJoinPool.commonPool().invoke(new QueryJob(index, lowerBound, Math.max(lowerBound, index.upperBound(query.end)),
+                    query.end, splitAccumulator, 1 + random.nextInt(300), QueryDeadline.after(Long.MAX_VALUE)));
+                assertEquals(expectedCount, splitAccumulator.count.longValue());
+                assertEquals(expectedSum, splitAccumulator.value.doubleValue(), DELTA);
+            }
+        }
+    }
+
+    @Test
+    public void groupByDimensions() throws IOException {
+        // ids stay dense and stable while the dictionary grows
+        GroupDictionary dictionary = new GroupDictionary();
+        for (long key = 0; key < 1000; key++) {
+            assertEquals(key + 1, dictionary.idOf(key << 16));
+        }
+        assertEquals(0, dictionary.idOf(TripDimension.UNKNOWN_KEY));
+        GroupDictionary other = new GroupDictionary(new long[] {TripDimension.UNKNOWN_KEY, 5L << 16, 5000L << 16});
+        assertArrayEquals(new int[] {0, 6, 1001}, dictionary.addAll(other));
+        assertEquals(1002, dictionary.copy().size());
+        assertEquals(501, dictionary.copy().idOf(500L << 16));
+
+        Path dataDir = Files.createTempDirectory("avgdist");
+        Path otherDir = Files.createTempDirectory("avgdist");
+        Path snapshotFile = otherDir.resolve("index.snapshot");
+        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+        Random random = new Random(31);
+        // pickup, dropoff, passenger_count, VendorID, payment_type, distance; unknown payment_type in 2.csv
+        List<long[]> trips = new ArrayList<>();
+        List<String> lines1 = new ArrayList<>();
+        List<String> lines2 = new ArrayList<>();
+        lines1.add("VendorID,tpep_pickup_datetime,tpep_dropoff_datetime,passenger_count,trip_distance,payment_type");
+        lines2.add("VendorID,tpep_pickup_datetime,tpep_dropoff_datetime,passenger_count,trip_distance");
+        // enough trips for wide queries to be split into jobs
+        for (int i = 0; i < 150000; i++) {
+            LocalDateTime pickup = MIN_DATETIME.plusSeconds(random.nextInt(31 * 24 * 3600));
+            LocalDateTime dropoff = pickup.plusSeconds(random.nextInt(3600));
+            int passCnt = 1 + random.nextInt(3);
+            int vendorId = 1 + random.nextInt(2);
+            int paymentType = i % 2 == 0 ? 1 + random.nextInt(4) : TripDimension.UNKNOWN;
+            int distance = random.nextInt(2000);
+            trips.add(new long[] {InputTuple.toUnixTimestamp(pickup), InputTuple.toUnixTimestamp(dropoff),
+                passCnt, vendorId, paymentType, distance});
+            String row = vendorId + "," + pickup.format(formatter) + "," + dropoff.format(formatter) + ","
+                + passCnt + "," + distance / 100.0;
+            if (paymentType == TripDimension.UNKNOWN) {
+                lines2.add(row);
+            } else {
+                lines1.add(row + "," + paymentType);
+            }
+        }
+        Files.write(dataDir.resolve("1.csv"), lines1);
+        Files.write(otherDir.resolve("2.csv"), lines2);
+
+        List<TripDimension> groupBy = Arrays.asList(TripDimension.PAYMENT_TYPE, TripDimension.PASSENGER_COUNT);
+        Map<TripDimension, Integer> filters = new HashMap<>();
+        filters.put(TripDimension.VENDOR_ID, 2);
+        try {
+            try (AverageDistancesImpl impl = new AverageDistancesImpl(2, Long.MAX_VALUE, 2, snapshotFile)) {
+                impl.init(dataDir);
+                impl.append(otherDir.resolve("2.csv"));
+                assertThrows(IllegalArgumentException.class, () -> impl.getAverageDistances(MIN_DATETIME, MAX_DATETIME,
+                    groupBy, Collections.singletonMap(TripDimension.VENDOR_ID, TripDimension.MAX_VALUE + 1)));
+
+                for (int q = 0; q < 20; q++) {
+                    LocalDateTime start = MIN_DATETIME.plusSeconds(random.nextInt(20 * 24 * 3600));
+                    LocalDateTime end = start.plusSeconds(random.nextInt(15 * 24 * 3600));
+                    assertGroupsMatchBruteForce(trips, impl.getAverageDistances(start, end, groupBy, filters),
+                        start, end, groupBy, filters);
+                }
+                assertTrue(impl.getMetrics().getQueryJobCount() > 0);
+                assertTrue(impl.getMetrics().getInlineQueryCount() > 0);
+                // no grouping gives the average of all trips, equal to the merged per-passenger_count one
+                Map<List<Integer>, Double> all = impl.getAverageDistances(MIN_DATETIME, MAX_DATETIME,
+                    Collections.emptyList(), Collections.emptyMap());
+                TripTotals totals = impl.getTotals(MIN_DATETIME, MAX_DATETIME, new TripTotals());
+                double expectedAll = 0.0;
+                for (int i = 0; i < totals.size(); i++) {
+                    expectedAll += totals.distanceSum(i);
+                }
+                assertEquals(expectedAll / totals.totalTripCount(), all.get(Collections.emptyList()), DELTA);
+            }
+
+            // dictionary and group ids are restored from the snapshot
+            try (AverageDistancesImpl impl = new AverageDistancesImpl(2, Long.MAX_VALUE, 2, snapshotFile)) {
+                Files.move(otherDir.resolve("2.csv"), dataDir.resolve("2.csv"));
+                impl.init(dataDir);
+                assertGroupsMatchBruteForce(trips, impl.getAverageDistances(MIN_DATETIME, MAX_DATETIME, groupBy, filters),
+                    MIN_DATETIME, MAX_DATETIME, groupBy, filters);
+                Map<TripDimension, Integer> unknownPayment = Collections.singletonMap(TripDimension.PAYMENT_TYPE,
+                    TripDimension.UNKNOWN);
+                assertGroupsMatchBruteForce(trips, impl.getAverageDistances(MIN_DATETIME, MAX_DATETIME,
+                        Collections.singletonList(TripDimension.VENDOR_ID), unknownPayment),
+                    MIN_DATETIME, MAX_DATETIME, Collections.singletonList(TripDimension.VENDOR_ID), unknownPayment);
+            }
+        } finally {
+            deleteDirs(dataDir, otherDir);
+        }
+    }
+
+    /**
+     * @param trips pickup, dropoff, passenger_count, VendorID, payment_type and distance in hundredths.
+     */
+    private static void assertGroupsMatchBruteForce(List<long[]> trips, Map<List<Integer>, Double> actual,
+                                                    LocalDateTime start, LocalDateTime end,
+                                                    List<TripDimension> groupBy, Map<TripDimension, Integer> filters) {
+        List<TripDimension> columns = Arrays.asList(TripDimension.PASSENGER_COUNT, TripDimension.VENDOR_ID,
+            TripDimension.PAYMENT_TYPE);
+        Map<List<Integer>, DoubleAccumulator> expected = new HashMap<>();
+        for (long[] trip : trips) {
+            if (trip[0] < InputTuple.toUnixTimestamp(start) || trip[1] > InputTuple.toUnixTimestamp(end)) {
+                continue;
+            }
+            boolean matches = true;
+            for (Map.Entry<TripDimension, Integer> filter : filters.entrySet()) {
+                matches &= trip[2 + columns.indexOf(filter.getKey())] == filter.getValue();
+            }
+            if (matches) {
+                List<Integer> group = new ArrayList<>();
+                for (TripDimension dimension : groupBy) {
+                    group.add((int) trip[2 + columns.indexOf(dimension)]);
+                }
+                expected.computeIfAbsent(group, g -> new DoubleAccumulator()).add(trip[5] / 100.0);
+            }
+        }
+
+        assertEquals(expected.keySet(), actual.keySet());
+        expected.forEach((group, accumulator) ->
+            assertEquals(accumulator.value.sum() / accumulator.count.sum(), actual.get(group), DELTA));
+    }
+
+    /**
+     * Writes trips of January 2020 with passengerCount from 1 to 4.
+     */
+    private static void writeRandomTrips(Path csvFile, Random random, int count) throws IOException {
+        writeRandomTrips(csvFile, random, count, MIN_DATETIME, 31);
+    }
+
+    private static void writeRandomTrips(Path csvFile, Random random, int count, LocalDateTime firstPickup, int days)
+        throws IOException {
+        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+        List<String> lines = new ArrayList<>();
+        lines.add("VendorID,tpep_pickup_datetime,tpep_dropoff_datetime,passenger_count,trip_distance");
+        for (int i = 0; i < count; i++) {
+            LocalDateTime pickup = firstPickup.plusSeconds(random.nextInt(days * 24 * 3600));
+            LocalDateTime dropoff = pickup.plusSeconds(random.nextInt(random.nextInt(10) == 0 ? 3 * 24 * 3600 : 3600));
+            lines.add("1," + pickup.format(formatter) + "," + dropoff.format(formatter) + ","
+                + (1 + random.nextInt(4)) + "," + random.nextInt(2000) / 100.0);
+        }
+        Files.write(csvFile, lines);
+    }
+
+    /**
+     * Deletes the directories with files in them.
+     */
+    private static void deleteDirs(Path... dirs) throws IOException {
+        for (Path dir : dirs) {
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+
+    /**
+     * @return segment files of the snapshot file, sorted.
+     */
+    private static List<Path> segmentFiles(Path snapshotFile) throws IOException {
+        try (Stream<Path> files = Files.list(snapshotFile.getParent())) {
+            return files
+                .filter(file -> file.getFileName().toString().startsWith(snapshotFile.getFileName() + ".")
+                    && file.getFileName().toString().endsWith(".segment"))
+                .sorted()
+                .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Reference parsing with {@code java.time} and {@code Double.parseDouble}, as it was before the fast path.
+     */
+    private static boolean parseStrictly(CsvRow row, InputTuple target, List<String> errors) {
+        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+        try {
+            target.pickupTimestamp = InputTuple.toUnixTimestamp(LocalDateTime.parse(row.getField(1), formatter));
+            target.dropoffTimestamp = InputTuple.toUnixTimestamp(LocalDateTime.parse(row.getField(2), formatter));
+        } catch (DateTimeParseException e) {
+            errors.add(String.format("CSV datetime parsing error in %s@%d: %s",
+                "test.csv", row.getOriginalLineNumber(), e.getMessage()));
+            return false;
+        }
+        try {
+            target.passengerCount = (int) Double.parseDouble(row.getField(3));
+            target.distance = Double.parseDouble(row.getField(4));
+        } catch (NumberFormatException e) {
+            errors.add(String.format("CSV number parsing error in %s@%d: %s",
+                "test.csv", row.getOriginalLineNumber(), e.getMessage()));
+            return false;
+        }
+        return true;
+    }
+
     private static LocalDateTime toDateTime(String from) {
         return LocalDateTime.parse(from, DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
     }